@@ -0,0 +1,72 @@
+package org.trinakria.masterdataset;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import static java.lang.String.format;
+
+/**
+ * Builds and removes the temporary data sets used by the benchmarks.
+ *
+ * @author Mario Giurlanda
+ */
+final class BenchmarkFixtures {
+
+    private BenchmarkFixtures() {
+    }
+
+    static Path createTempFolder(String prefix) {
+        try {
+            return Files.createTempDirectory(prefix);
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot create temp folder", e);
+        }
+    }
+
+    /**
+     * Writes a data set of {@code noOfFiles} files of {@code fileSizeByte} bytes each, named after
+     * {@link MasterDataSetSpec#FILENAME_TEMPLATE}.
+     */
+    static Path createDataSet(Path folder, long noOfFiles, long fileSizeByte) {
+        try {
+            Files.createDirectories(folder);
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot create data set folder " + folder, e);
+        }
+        for (long idx = 0; idx < noOfFiles; idx++) {
+            FileUtils.writeFile(folder.resolve(format(MasterDataSetSpec.FILENAME_TEMPLATE, idx)), fileSizeByte, idx,
+                    WriteSettings.defaults());
+        }
+        return folder;
+    }
+
+    /**
+     * Deletes a folder and all its content, quietly.
+     */
+    static void delete(Path folder) {
+        if (Files.notExists(folder)) {
+            return;
+        }
+        try {
+            Files.walkFileTree(folder, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    Files.delete(file);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                    Files.delete(dir);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot delete " + folder, e);
+        }
+    }
+}
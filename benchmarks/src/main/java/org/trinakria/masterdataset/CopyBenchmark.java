@@ -0,0 +1,83 @@
+package org.trinakria.masterdataset;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link FileUtils#copyFile} and {@link FileUtils#copyFileTree} on trees of few large files and of many
+ * small files, with different levels of parallelism.
+ *
+ * @author Mario Giurlanda
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class CopyBenchmark {
+
+    /**
+     * Shape of the copied tree.
+     */
+    public enum Shape {
+        FEW_LARGE(4, 64L * MasterDataSetSpec.ONE_MB),
+        MANY_SMALL(2000, 16 * 1024);
+
+        private final long noOfFiles;
+        private final long fileSizeByte;
+
+        Shape(long noOfFiles, long fileSizeByte) {
+            this.noOfFiles = noOfFiles;
+            this.fileSizeByte = fileSizeByte;
+        }
+    }
+
+    @Param({"FEW_LARGE", "MANY_SMALL"})
+    public Shape shape;
+
+    @Param({"1", "4"})
+    public int parallelism;
+
+    private Path folder;
+    private Path source;
+    private Path target;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        folder = BenchmarkFixtures.createTempFolder("copy");
+        source = folder.resolve("source");
+        BenchmarkFixtures.createDataSet(source.resolve("dataset"), shape.noOfFiles, shape.fileSizeByte);
+        target = folder.resolve("target");
+    }
+
+    @Setup(Level.Invocation)
+    public void createTarget() throws IOException {
+        Files.createDirectories(target);
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteTarget() {
+        BenchmarkFixtures.delete(target);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkFixtures.delete(folder);
+    }
+
+    @Benchmark
+    public long copyFileTree() {
+        return FileUtils.copyFileTree(source, target, false, parallelism);
+    }
+
+    @Benchmark
+    public void copyFile() {
+        Path file = source.resolve("dataset").resolve("file0.txt");
+        FileUtils.copyFile(file, target.resolve("file0.txt"), false);
+    }
+}
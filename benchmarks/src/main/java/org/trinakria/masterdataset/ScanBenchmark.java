@@ -0,0 +1,69 @@
+package org.trinakria.masterdataset;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static java.util.Comparator.comparingLong;
+
+/**
+ * Measures the scans that {@code update} needs to plan the growth of a data set: {@link FileUtils#countFiles}, a
+ * listing that reads the size of each file to find the smallest one, the single-pass {@link DataSetManifest#scan}
+ * and loading a fresh {@link DataSetManifest}.
+ *
+ * @author Mario Giurlanda
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ScanBenchmark {
+
+    @Param({"1000", "20000"})
+    public long noOfFiles;
+
+    private Path folder;
+    private Path dataSet;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        folder = BenchmarkFixtures.createTempFolder("scan");
+        dataSet = BenchmarkFixtures.createDataSet(folder.resolve("dataset"), noOfFiles, 1024);
+        DataSetManifest.scan(dataSet).save();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkFixtures.delete(folder);
+    }
+
+    @Benchmark
+    public long countFiles() {
+        return FileUtils.countFiles(dataSet);
+    }
+
+    @Benchmark
+    public Path listAndFindSmallest() throws IOException {
+        try (Stream<Path> stream = Files.list(dataSet)) {
+            return stream.min(comparingLong(FileUtils::sizeOf)).get();
+        }
+    }
+
+    @Benchmark
+    public long scanManifest() {
+        DataSetManifest manifest = DataSetManifest.scan(dataSet);
+        return manifest.partialIndex().get() + manifest.referenceSize();
+    }
+
+    @Benchmark
+    public long loadManifest() {
+        DataSetManifest manifest = DataSetManifest.loadOrScan(dataSet);
+        return manifest.partialIndex().get() + manifest.referenceSize();
+    }
+}
@@ -0,0 +1,83 @@
+package org.trinakria.masterdataset;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link FileUtils#writeFile} for each {@link WriteSettings.Strategy} across file sizes, and the
+ * {@link LineGenerator} alone, which is the CPU-bound part of a write.
+ *
+ * Throughput is reported as files/s by JMH and as bytes/s and lines/s by the {@link Counters}.
+ *
+ * @author Mario Giurlanda
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class WriteFileBenchmark {
+
+    @Param({"1", "16", "64"})
+    public long fileSizeMB;
+
+    @Param({"STREAM", "MAPPED"})
+    public WriteSettings.Strategy strategy;
+
+    private Path folder;
+    private Path file;
+    private WriteSettings settings;
+    private ByteBuffer buffer;
+    private long seed;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        folder = BenchmarkFixtures.createTempFolder("write-file");
+        file = folder.resolve("file0.txt");
+        settings = WriteSettings.of(strategy, WriteSettings.DEFAULT_MAP_WINDOW_BYTES);
+        buffer = ByteBuffer.allocateDirect(MasterDataSetSpec.ONE_MB);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkFixtures.delete(folder);
+    }
+
+    @Benchmark
+    public void writeFile(Counters counters) {
+        long sizeByte = fileSizeMB * MasterDataSetSpec.ONE_MB;
+        FileUtils.writeFile(file, sizeByte, seed++, settings);
+        counters.bytes += sizeByte;
+    }
+
+    @Benchmark
+    public long generateLines(Counters counters) {
+        LineGenerator generator = new LineGenerator(fileSizeMB * MasterDataSetSpec.ONE_MB, seed++);
+        while (generator.hasRemaining()) {
+            buffer.clear();
+            counters.bytes += generator.fill(buffer);
+        }
+        counters.lines += generator.lines();
+        return buffer.get(0);
+    }
+
+    /**
+     * Bytes and lines produced, reported by JMH as rates.
+     */
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Counters {
+        public long bytes;
+        public long lines;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+            lines = 0;
+        }
+    }
+}
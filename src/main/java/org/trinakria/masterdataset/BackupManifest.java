@@ -0,0 +1,176 @@
+package org.trinakria.masterdataset;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+import static java.lang.String.format;
+
+/**
+ * Describes the files of a backup generation: for each file, relative to the backup root, the size and the
+ * modification time the source file had when it was backed up, and optionally a CRC32 of its content.
+ *
+ * The manifest is stored in the backup generation itself as {@value #FILE_NAME}, one tab separated line per file.
+ *
+ * @author Mario Giurlanda
+ */
+final class BackupManifest {
+
+    static final String FILE_NAME = ".backup-manifest";
+    private static final String HEADER = "# size\tmtime\tcrc32\tpath";
+    private static final String SEPARATOR = "\t";
+    private static final String NO_HASH = "-";
+    private static final int HASH_BUFFER_SIZE = 1024 * 1024;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * Loads the manifest of a backup generation.
+     *
+     * @param generation root folder of the backup generation
+     * @return the manifest, or empty if the generation has none
+     */
+    static Optional<BackupManifest> load(Path generation) {
+        Path manifestFile = generation.resolve(FILE_NAME);
+        if (Files.notExists(manifestFile)) {
+            return Optional.empty();
+        }
+        BackupManifest manifest = new BackupManifest();
+        try {
+            List<String> lines = Files.readAllLines(manifestFile, StandardCharsets.UTF_8);
+            for (String line : lines) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split(SEPARATOR, 4);
+                Long hash = NO_HASH.equals(fields[2]) ? null : Long.parseLong(fields[2], 16);
+                manifest.put(fields[3], new Entry(Long.parseLong(fields[0]), Long.parseLong(fields[1]), hash));
+            }
+        } catch (IOException | RuntimeException e) {
+            throw new RuntimeException(format("Cannot read backup manifest %s", manifestFile), e);
+        }
+        return Optional.of(manifest);
+    }
+
+    /**
+     * Writes the manifest in the given backup generation, replacing any previous one atomically.
+     */
+    void save(Path generation) {
+        Path manifestFile = generation.resolve(FILE_NAME);
+        Path tempFile = generation.resolve(FILE_NAME + ".tmp");
+        try {
+            try (BufferedWriter writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+                writer.write(HEADER);
+                writer.newLine();
+                for (Map.Entry<String, Entry> entry : new TreeMap<>(entries).entrySet()) {
+                    Entry e = entry.getValue();
+                    writer.write(e.size + SEPARATOR + e.modifiedMillis + SEPARATOR +
+                            (e.hash == null ? NO_HASH : Long.toHexString(e.hash)) + SEPARATOR + entry.getKey());
+                    writer.newLine();
+                }
+            }
+            Files.move(tempFile, manifestFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new RuntimeException(format("Cannot write backup manifest %s", manifestFile), e);
+        }
+    }
+
+    void put(String relativePath, Entry entry) {
+        entries.put(relativePath, entry);
+    }
+
+    Optional<Entry> get(String relativePath) {
+        return Optional.ofNullable(entries.get(relativePath));
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * Computes the CRC32 of the content of a file.
+     */
+    static long hash(Path file) {
+        return hash(file, Long.MAX_VALUE);
+    }
+
+    /**
+     * Computes the CRC32 of the first {@code size} bytes of a file, or of all of them if it is shorter.
+     */
+    static long hash(Path file, long size) {
+        CRC32 crc = new CRC32();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(HASH_BUFFER_SIZE);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long remaining = size;
+            while (remaining > 0) {
+                buffer.limit((int) Math.min(buffer.capacity(), remaining));
+                if (channel.read(buffer) < 0) {
+                    break;
+                }
+                buffer.flip();
+                remaining -= buffer.remaining();
+                crc.update(buffer);
+                buffer.clear();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(format("Cannot compute hash of %s", file), e);
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * State of a single file.
+     */
+    static final class Entry {
+        private final long size;
+        private final long modifiedMillis;
+        private final Long hash;
+
+        Entry(long size, long modifiedMillis, Long hash) {
+            this.size = size;
+            this.modifiedMillis = modifiedMillis;
+            this.hash = hash;
+        }
+
+        long size() {
+            return size;
+        }
+
+        long modifiedMillis() {
+            return modifiedMillis;
+        }
+
+        Optional<Long> hash() {
+            return Optional.ofNullable(hash);
+        }
+
+        /**
+         * @return true if the file described by this entry is unchanged in the other one
+         */
+        boolean sameAs(Entry other) {
+            return size == other.size && modifiedMillis == other.modifiedMillis &&
+                    (hash == null || other.hash == null || hash.equals(other.hash));
+        }
+
+        @Override
+        public String toString() {
+            return "Entry{" +
+                    "size=" + size +
+                    ", modifiedMillis=" + modifiedMillis +
+                    ", hash=" + hash +
+                    '}';
+        }
+    }
+}
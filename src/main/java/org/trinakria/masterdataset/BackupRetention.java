@@ -0,0 +1,119 @@
+package org.trinakria.masterdataset;
+
+import org.apache.commons.lang3.Validate;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import static java.lang.String.format;
+
+/**
+ * Decides which generations of a backup are old enough to be deleted.
+ *
+ * The latest generation of the backup of {@code <input folder>} lives in {@code <backup folder>/<input folder>}, and
+ * each backup renames it to {@code <input folder><timestamp>}, the time in milliseconds it was replaced. The latest
+ * generation is always kept. Of the older ones, a generation is kept if any rule keeps it:
+ * <ul>
+ *     <li>keep last N: it is one of the N latest generations, the latest one included</li>
+ *     <li>max age: it was replaced less than the given number of hours ago</li>
+ * </ul>
+ *
+ * @author Mario Giurlanda
+ */
+final class BackupRetention {
+
+    /**
+     * Timestamps of generations, in milliseconds, have 13 digits until the year 2286. Requiring them keeps the
+     * generations of an input folder named {@code sentiance2} out of those of {@code sentiance}.
+     */
+    private static final Pattern TIMESTAMP = Pattern.compile("\\d{13}");
+
+    private final int keepLast;
+    private final long maxAgeMillis;
+
+    private BackupRetention(int keepLast, long maxAgeMillis) {
+        this.keepLast = keepLast;
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * @param keepLast number of latest generations kept, the latest one included, 0 for no such rule
+     * @param maxAgeHours number of hours a replaced generation is kept, 0 for no such rule
+     */
+    static BackupRetention of(int keepLast, long maxAgeHours) {
+        Validate.isTrue(keepLast >= 0, "keep-last must be a positive number");
+        Validate.isTrue(maxAgeHours >= 0, "max-age-hours must be a positive number");
+        Validate.isTrue(keepLast > 0 || maxAgeHours > 0, "At least one of keep-last and max-age-hours is mandatory");
+        return new BackupRetention(keepLast, TimeUnit.HOURS.toMillis(maxAgeHours));
+    }
+
+    /**
+     * @param backupPath latest generation, {@code <backup folder>/<input folder>}
+     * @param nowMillis current time in milliseconds
+     * @return older generations that no rule keeps, oldest first
+     */
+    List<Path> expired(Path backupPath, long nowMillis) {
+        List<Generation> generations = generations(backupPath);
+        List<Path> expired = new ArrayList<>();
+        for (int i = 0; i < generations.size(); i++) {
+            Generation generation = generations.get(i);
+            // the latest generation is the first one kept by keep-last
+            boolean keptByCount = keepLast > 0 && i + 1 < keepLast;
+            boolean keptByAge = maxAgeMillis > 0 && nowMillis - generation.timestamp < maxAgeMillis;
+            if (!keptByCount && !keptByAge) {
+                expired.add(0, generation.path);
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * @return older generations of the backup, latest first
+     */
+    private static List<Generation> generations(Path backupPath) {
+        String prefix = backupPath.getFileName().toString();
+        List<Generation> generations = new ArrayList<>();
+        Path backupFolder = backupPath.toAbsolutePath().getParent();
+        if (Files.notExists(backupFolder)) {
+            return generations;
+        }
+        try (Stream<Path> stream = Files.list(backupFolder)) {
+            stream.filter(Files::isDirectory).forEach(path -> {
+                String name = path.getFileName().toString();
+                if (name.startsWith(prefix)) {
+                    Matcher matcher = TIMESTAMP.matcher(name.substring(prefix.length()));
+                    if (matcher.matches()) {
+                        generations.add(new Generation(backupPath.resolveSibling(name), Long.parseLong(matcher.group())));
+                    }
+                }
+            });
+        } catch (IOException e) {
+            throw new RuntimeException(format("Cannot list backup generations in %s", backupFolder), e);
+        }
+        generations.sort(Comparator.comparingLong((Generation generation) -> generation.timestamp).reversed());
+        return generations;
+    }
+
+    @Override
+    public String toString() {
+        return format("keep last %d, max age %d hours", keepLast, TimeUnit.MILLISECONDS.toHours(maxAgeMillis));
+    }
+
+    private static final class Generation {
+        private final Path path;
+        private final long timestamp;
+
+        Generation(Path path, long timestamp) {
+            this.path = path;
+            this.timestamp = timestamp;
+        }
+    }
+}
@@ -0,0 +1,326 @@
+package org.trinakria.masterdataset;
+
+import com.google.common.base.Throwables;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static java.lang.String.format;
+
+/**
+ * A single file archive of a folder whose content is compressed in independent blocks.
+ *
+ * Files are cut into blocks of {@value #BLOCK_SIZE} bytes that are deflated concurrently, pigz-style, and written in
+ * order. A block never spans two files. The archive ends with an index of the files (path, size, modification time,
+ * first block and number of blocks) and of the blocks (offset, compressed and uncompressed length), followed by the
+ * offset of the index and a magic number, so a single file can be extracted by reading only its own blocks:
+ * <pre>
+ *     block* index indexOffset:long magic:int
+ * </pre>
+ *
+ * @author Mario Giurlanda
+ */
+final class BlockArchive {
+
+    static final String EXTENSION = ".mda";
+    static final int BLOCK_SIZE = 1024 * 1024;
+    private static final int MAGIC = 0x4d444131; // MDA1
+    private static final int FOOTER_SIZE = Long.BYTES + Integer.BYTES;
+
+    private BlockArchive() {
+    }
+
+    /**
+     * Archives all the files of a folder.
+     *
+     * @param folder folder to be archived
+     * @param archive archive file to be created
+     * @param compressors pool the blocks are compressed on
+     * @param throttle limits the rate at which files are read
+     * @return the index of the archive
+     */
+    static Index write(Path folder, Path archive, ForkJoinPool compressors, Throttle throttle) {
+        List<FileEntry> entries = new ArrayList<>();
+        List<Block> blocks = new ArrayList<>();
+        Deque<Future<CompressedBlock>> pending = new ArrayDeque<>();
+        int maxPending = 2 * compressors.getParallelism();
+        int submittedBlocks = 0;
+        try (FileChannel out = FileChannel.open(archive, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            for (Path file : listFiles(folder)) {
+                long size = Files.size(file);
+                int firstBlock = submittedBlocks;
+                throttle.acquireFile();
+                try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+                    for (long position = 0; position < size; position += BLOCK_SIZE) {
+                        byte[] data = new byte[(int) Math.min(BLOCK_SIZE, size - position)];
+                        throttle.acquireBytes(data.length);
+                        readFully(in, ByteBuffer.wrap(data), position);
+                        pending.add(compressors.submit(() -> compress(data)));
+                        submittedBlocks++;
+                        while (pending.size() >= maxPending) {
+                            blocks.add(writeBlock(out, pending.poll().get()));
+                        }
+                    }
+                }
+                entries.add(new FileEntry(folder.relativize(file).toString().replace(File.separatorChar, '/'),
+                        size, Files.getLastModifiedTime(file).toMillis(), firstBlock, submittedBlocks - firstBlock));
+            }
+            while (!pending.isEmpty()) {
+                blocks.add(writeBlock(out, pending.poll().get()));
+            }
+            Index index = new Index(entries, blocks);
+            long indexOffset = out.position();
+            DataOutputStream indexOut = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(out)));
+            index.writeTo(indexOut);
+            indexOut.writeLong(indexOffset);
+            indexOut.writeInt(MAGIC);
+            indexOut.flush();
+            return index;
+        } catch (IOException | InterruptedException e) {
+            throw new RuntimeException(format("Unable to archive: %s to %s", folder, archive), e);
+        } catch (ExecutionException e) {
+            Throwables.propagateIfPossible(e.getCause());
+            throw new RuntimeException(format("Unable to archive: %s to %s", folder, archive), e.getCause());
+        } finally {
+            pending.forEach(future -> future.cancel(true));
+        }
+    }
+
+    /**
+     * Reads the index of an archive.
+     */
+    static Index readIndex(Path archive) {
+        try (FileChannel in = FileChannel.open(archive, StandardOpenOption.READ)) {
+            long size = in.size();
+            ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE);
+            readFully(in, footer, size - FOOTER_SIZE);
+            footer.flip();
+            long indexOffset = footer.getLong();
+            if (footer.getInt() != MAGIC) {
+                throw new IOException("Not an archive");
+            }
+            ByteBuffer index = ByteBuffer.allocate((int) (size - FOOTER_SIZE - indexOffset));
+            readFully(in, index, indexOffset);
+            return Index.readFrom(new DataInputStream(new ByteArrayInputStream(index.array())));
+        } catch (IOException e) {
+            throw new RuntimeException(format("Cannot read archive index of %s", archive), e);
+        }
+    }
+
+    /**
+     * Extracts a single file of an archive, reading only its blocks.
+     *
+     * @param archive archive file
+     * @param index index of the archive, see {@link #readIndex}
+     * @param entry file to be extracted
+     * @param target file to be written
+     * @param throttle limits the rate at which files are written
+     */
+    static void extract(Path archive, Index index, FileEntry entry, Path target, Throttle throttle) {
+        throttle.acquireFile();
+        Inflater inflater = new Inflater(true);
+        try (FileChannel in = FileChannel.open(archive, StandardOpenOption.READ);
+             OutputStream out = Files.newOutputStream(target)) {
+            for (int i = entry.firstBlock; i < entry.firstBlock + entry.blockCount; i++) {
+                Block block = index.blocks.get(i);
+                ByteBuffer compressed = ByteBuffer.allocate(block.compressedLength);
+                readFully(in, compressed, block.offset);
+                byte[] data = new byte[block.uncompressedLength];
+                inflater.reset();
+                inflater.setInput(compressed.array());
+                int inflated = 0;
+                while (inflated < data.length && !inflater.finished()) {
+                    int n = inflater.inflate(data, inflated, data.length - inflated);
+                    if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        throw new DataFormatException(format("Truncated block %d", i));
+                    }
+                    inflated += n;
+                }
+                throttle.acquireBytes(inflated);
+                out.write(data, 0, inflated);
+            }
+        } catch (IOException | DataFormatException e) {
+            throw new RuntimeException(format("Unable to extract %s from %s", entry.path, archive), e);
+        } finally {
+            inflater.end();
+        }
+        try {
+            Files.setLastModifiedTime(target, FileTime.fromMillis(entry.modifiedMillis));
+        } catch (IOException x) {
+            System.err.format("Unable to copy all attributes to: %s: %s%n", target, x);
+        }
+    }
+
+    private static List<Path> listFiles(Path folder) throws IOException {
+        try (Stream<Path> stream = Files.walk(folder)) {
+            return stream.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+        }
+    }
+
+    private static CompressedBlock compress(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2);
+            byte[] buffer = new byte[64 * 1024];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return new CompressedBlock(out.toByteArray(), data.length);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static Block writeBlock(FileChannel out, CompressedBlock block) throws IOException {
+        long offset = out.position();
+        ByteBuffer buffer = ByteBuffer.wrap(block.data);
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        return new Block(offset, block.data.length, block.uncompressedLength);
+    }
+
+    private static void readFully(FileChannel in, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = in.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("Unexpected end of file");
+            }
+            position += read;
+        }
+    }
+
+    private static final class CompressedBlock {
+        private final byte[] data;
+        private final int uncompressedLength;
+
+        CompressedBlock(byte[] data, int uncompressedLength) {
+            this.data = data;
+            this.uncompressedLength = uncompressedLength;
+        }
+    }
+
+    private static final class Block {
+        private final long offset;
+        private final int compressedLength;
+        private final int uncompressedLength;
+
+        Block(long offset, int compressedLength, int uncompressedLength) {
+            this.offset = offset;
+            this.compressedLength = compressedLength;
+            this.uncompressedLength = uncompressedLength;
+        }
+    }
+
+    /**
+     * A file stored in an archive.
+     */
+    static final class FileEntry {
+        private final String path;
+        private final long size;
+        private final long modifiedMillis;
+        private final int firstBlock;
+        private final int blockCount;
+
+        FileEntry(String path, long size, long modifiedMillis, int firstBlock, int blockCount) {
+            this.path = path;
+            this.size = size;
+            this.modifiedMillis = modifiedMillis;
+            this.firstBlock = firstBlock;
+            this.blockCount = blockCount;
+        }
+
+        /**
+         * @return path of the file relative to the archived folder, with '/' separators
+         */
+        String path() {
+            return path;
+        }
+
+        long size() {
+            return size;
+        }
+
+        long modifiedMillis() {
+            return modifiedMillis;
+        }
+    }
+
+    /**
+     * Index of the files and blocks of an archive.
+     */
+    static final class Index {
+        private final List<FileEntry> files;
+        private final List<Block> blocks;
+
+        private Index(List<FileEntry> files, List<Block> blocks) {
+            this.files = files;
+            this.blocks = blocks;
+        }
+
+        List<FileEntry> files() {
+            return files;
+        }
+
+        Optional<FileEntry> file(String path) {
+            return files.stream().filter(entry -> entry.path.equals(path)).findFirst();
+        }
+
+        long uncompressedSize() {
+            return files.stream().mapToLong(FileEntry::size).sum();
+        }
+
+        long compressedSize() {
+            return blocks.stream().mapToLong(block -> block.compressedLength).sum();
+        }
+
+        private void writeTo(DataOutputStream out) throws IOException {
+            out.writeInt(files.size());
+            for (FileEntry entry : files) {
+                out.writeUTF(entry.path);
+                out.writeLong(entry.size);
+                out.writeLong(entry.modifiedMillis);
+                out.writeInt(entry.firstBlock);
+                out.writeInt(entry.blockCount);
+            }
+            out.writeInt(blocks.size());
+            for (Block block : blocks) {
+                out.writeLong(block.offset);
+                out.writeInt(block.compressedLength);
+                out.writeInt(block.uncompressedLength);
+            }
+        }
+
+        private static Index readFrom(DataInputStream in) throws IOException {
+            int fileCount = in.readInt();
+            List<FileEntry> files = new ArrayList<>(fileCount);
+            for (int i = 0; i < fileCount; i++) {
+                files.add(new FileEntry(in.readUTF(), in.readLong(), in.readLong(), in.readInt(), in.readInt()));
+            }
+            int blockCount = in.readInt();
+            List<Block> blocks = new ArrayList<>(blockCount);
+            for (int i = 0; i < blockCount; i++) {
+                blocks.add(new Block(in.readLong(), in.readInt(), in.readInt()));
+            }
+            return new Index(files, blocks);
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package org.trinakria.masterdataset;
+
+import com.google.common.base.Throwables;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import static java.lang.String.format;
+
+/**
+ * Writes data set files as a sequence of independent gzip members, each one holding at most {@value #BLOCK_SIZE}
+ * bytes of lines, which any gzip reader decompresses as a single stream.
+ *
+ * Blocks are deflated concurrently, pigz-style, on the pool of the run given by the writer, and written in order. The
+ * writer may itself run on that pool, which is a {@link ForkJoinPool} so that it helps with the blocks it waits for
+ * rather than holding a thread idle. As in BGZF,
+ * each member carries in its header an extra field with its own compressed length, so the uncompressed size of a
+ * file is read by hopping from member to member without inflating anything. Growing a file is appending more members.
+ *
+ * @author Mario Giurlanda
+ */
+final class BlockGzip {
+
+    static final int BLOCK_SIZE = 1024 * 1024;
+    /**
+     * Max number of blocks of a single file being compressed at once, which bounds the memory used by each writer
+     */
+    private static final int MAX_PENDING = 8;
+    private static final int HEADER_SIZE = 20;
+    private static final int TRAILER_SIZE = 8;
+    private static final byte FEXTRA = 4;
+    private static final byte OS_UNKNOWN = (byte) 255;
+    private static final byte SUBFIELD_ID1 = 'M';
+    private static final byte SUBFIELD_ID2 = 'D';
+    private static final long CALIBRATION_BYTES = 4L * BLOCK_SIZE;
+    private static volatile double compressionRatio;
+
+    private BlockGzip() {
+    }
+
+    /**
+     * Compresses all the lines of the generator to the channel, from its current position.
+     *
+     * @param channel channel the members are written to
+     * @param generator lines to be compressed
+     * @param compressors pool the blocks are deflated on
+     * @param throttle limits the rate at which compressed bytes are written
+     * @param append true if the members are added to an existing file, otherwise an empty generator still writes an
+     *               empty member so that the file is a valid gzip file
+     * @return number of compressed bytes written
+     */
+    static long write(FileChannel channel, LineGenerator generator, ForkJoinPool compressors, Throttle throttle,
+                      boolean append) throws IOException {
+        Deque<Future<ByteBuffer>> pending = new ArrayDeque<>();
+        int maxPending = Math.min(2 * compressors.getParallelism(), MAX_PENDING);
+        long written = 0;
+        try {
+            if (!generator.hasRemaining() && !append) {
+                written += writeMember(channel, compress(new byte[0], 0), throttle);
+            }
+            while (generator.hasRemaining()) {
+                byte[] block = new byte[BLOCK_SIZE];
+                int length = generator.fill(ByteBuffer.wrap(block));
+                pending.add(compressors.submit(() -> compress(block, length)));
+                while (pending.size() >= maxPending) {
+                    written += writeMember(channel, pending.poll().get(), throttle);
+                }
+            }
+            while (!pending.isEmpty()) {
+                written += writeMember(channel, pending.poll().get(), throttle);
+            }
+            return written;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while compressing", e);
+        } catch (ExecutionException e) {
+            Throwables.propagateIfPossible(e.getCause(), IOException.class);
+            throw new IOException("Cannot compress block", e.getCause());
+        } finally {
+            pending.forEach(future -> future.cancel(true));
+        }
+    }
+
+    /**
+     * Sums the uncompressed size recorded by each member of a file written by {@link #write}.
+     */
+    static long uncompressedSize(Path file) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer trailer = ByteBuffer.allocate(Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = in.size();
+            long position = 0;
+            long uncompressedSize = 0;
+            while (position < size) {
+                header.clear();
+                readFully(in, header, position);
+                if ((header.get(0) & 0xff) != 0x1f || (header.get(1) & 0xff) != 0x8b ||
+                        (header.get(3) & FEXTRA) == 0 || header.get(12) != SUBFIELD_ID1 ||
+                        header.get(13) != SUBFIELD_ID2) {
+                    throw new IOException(format("no block gzip member at offset %d", position));
+                }
+                long memberSize = header.getInt(16) & 0xffffffffL;
+                trailer.clear();
+                readFully(in, trailer, position + memberSize - Integer.BYTES);
+                uncompressedSize += trailer.getInt(0) & 0xffffffffL;
+                position += memberSize;
+            }
+            return uncompressedSize;
+        } catch (IOException e) {
+            throw new RuntimeException(format("Cannot read block gzip file %s", file), e);
+        }
+    }
+
+    /**
+     * @return number of bytes of lines that compress to about the given number of bytes
+     */
+    static long uncompressedSizeFor(long compressedBytes) {
+        return Math.round(compressedBytes / compressionRatio());
+    }
+
+    /**
+     * Compressed to uncompressed size ratio of generated lines, measured once on a sample. Lines are random, so the
+     * ratio of any file of more than a few blocks is the same.
+     */
+    private static double compressionRatio() {
+        if (compressionRatio == 0) {
+            LineGenerator generator = new LineGenerator(CALIBRATION_BYTES, 0);
+            long compressed = 0;
+            while (generator.hasRemaining()) {
+                byte[] block = new byte[BLOCK_SIZE];
+                compressed += compress(block, generator.fill(ByteBuffer.wrap(block))).remaining();
+            }
+            compressionRatio = compressed / (double) CALIBRATION_BYTES;
+        }
+        return compressionRatio;
+    }
+
+    /**
+     * @return a complete gzip member holding the first {@code length} bytes of the block
+     */
+    private static ByteBuffer compress(byte[] block, int length) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            deflater.setInput(block, 0, length);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(length / 2 + 64);
+            byte[] buffer = new byte[64 * 1024];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            CRC32 crc = new CRC32();
+            crc.update(block, 0, length);
+            int memberSize = HEADER_SIZE + out.size() + TRAILER_SIZE;
+            ByteBuffer member = ByteBuffer.allocate(memberSize).order(ByteOrder.LITTLE_ENDIAN);
+            member.put((byte) 0x1f).put((byte) 0x8b).put((byte) Deflater.DEFLATED).put(FEXTRA)
+                    .putInt(0).put((byte) 0).put(OS_UNKNOWN)
+                    .putShort((short) 8).put(SUBFIELD_ID1).put(SUBFIELD_ID2).putShort((short) 4).putInt(memberSize)
+                    .put(out.toByteArray())
+                    .putInt((int) crc.getValue()).putInt(length);
+            member.flip();
+            return member;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static int writeMember(FileChannel channel, ByteBuffer member, Throttle throttle) throws IOException {
+        int size = member.remaining();
+        throttle.acquireBytes(size);
+        while (member.hasRemaining()) {
+            channel.write(member);
+        }
+        return size;
+    }
+
+    private static void readFully(FileChannel in, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = in.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+    }
+}
@@ -0,0 +1,306 @@
+package org.trinakria.masterdataset;
+
+import com.google.common.base.Throwables;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import static java.lang.String.format;
+
+/**
+ * Rewrites a data set into files of a target size.
+ *
+ * The files of the data set are taken in index order as a single stream of bytes, which is cut every
+ * {@code targetSizeByte} bytes into new files numbered from 0, so all files but the last one have exactly the target
+ * size and a line can span two consecutive files, as with {@link FileUtils#writeFile}. Each new file is assembled with
+ * {@link FileChannel#transferTo} from the ranges of the old files it covers, so content never goes through the heap,
+ * and new files are written concurrently.
+ *
+ * The new files are written to a staging folder next to the data set folder, {@code .<data set name>.compact}, which
+ * replaces the data set folder once complete. If a crash happens during the swap, the next compaction completes it.
+ *
+ * Compaction rewrites files in place under the same names, so a file of the data set that got larger may not have been
+ * appended to. The new data set folder holds a {@value #REWRITE_MARKER} file, written anew by each compaction: an
+ * incremental backup finding one it has not backed up yet copies the whole data set rather than linking or splicing
+ * its files from the previous generation, see {@link ParallelTreeCopier#incremental}.
+ *
+ * The files of a data set striped across several roots (see {@link StripeLayout}) are all gathered in the data set
+ * folder of the input folder. New files are laid out in the staging folder as given by the {@link ShardLayout} of the
+ * data set.
+ *
+ * @author Mario Giurlanda
+ */
+final class DataSetCompactor {
+
+    static final String REWRITE_MARKER = ".compacted";
+    private static final String STAGING_SUFFIX = ".compact";
+    private static final String RETIRED_SUFFIX = ".retired";
+    private static final String COMPLETE_MARKER = ".complete";
+    private static final long TRANSFER_CHUNK_BYTE = 8L * MasterDataSetSpec.ONE_MB;
+
+    private final Path dataSetFolder;
+    private final List<Path> stripeFolders;
+    private final Path stagingFolder;
+    private final Path retiredFolder;
+    private final long targetSizeByte;
+    private final int parallelism;
+    private RunMetrics.Phase metrics = RunMetrics.Phase.detached("compact");
+    private Throttle throttle = Throttle.unlimited();
+    private ForkJoinPool pool;
+    private long filesWritten;
+
+    DataSetCompactor(Path dataSetFolder, long targetSizeByte, int parallelism) {
+        this(Collections.singletonList(dataSetFolder), targetSizeByte, parallelism);
+    }
+
+    /**
+     * @param stripeFolders folders of the data set in each stripe, the one in the input folder first
+     */
+    DataSetCompactor(List<Path> stripeFolders, long targetSizeByte, int parallelism) {
+        Path dataSetFolder = stripeFolders.get(0);
+        this.dataSetFolder = dataSetFolder;
+        this.stripeFolders = stripeFolders;
+        String name = dataSetFolder.getFileName().toString();
+        this.stagingFolder = dataSetFolder.resolveSibling("." + name + STAGING_SUFFIX);
+        this.retiredFolder = dataSetFolder.resolveSibling("." + name + RETIRED_SUFFIX);
+        this.targetSizeByte = targetSizeByte;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Records each written file, with its size and latency, in the given phase.
+     *
+     * @return this compactor
+     */
+    DataSetCompactor metrics(RunMetrics.Phase metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    /**
+     * Runs the file tasks on a pool shared with other runs instead of a pool of its own, unless null.
+     *
+     * @return this compactor
+     */
+    DataSetCompactor pool(ForkJoinPool pool) {
+        this.pool = pool;
+        return this;
+    }
+
+    /**
+     * Limits the rate at which files and bytes are written.
+     *
+     * @return this compactor
+     */
+    DataSetCompactor throttle(Throttle throttle) {
+        this.throttle = throttle;
+        return this;
+    }
+
+    /**
+     * Compacts the data set, unless its files already have the target size.
+     *
+     * @return number of bytes written
+     */
+    long compact() {
+        recover();
+        DataSetManifest manifest = DataSetManifest.loadOrScan(stripeFolders);
+        if (isCompact(manifest)) {
+            System.out.format("Data set %s is already made of %dMB files%n", dataSetFolder,
+                    targetSizeByte / MasterDataSetSpec.ONE_MB);
+            return 0;
+        }
+        List<Callable<Long>> tasks = new ArrayList<>();
+        for (List<Segment> segments : plan(manifest)) {
+            long fileIndex = tasks.size();
+            Path target = manifest.shards().file(stagingFolder, fileIndex, WriteSettings.Compression.NONE);
+            tasks.add(() -> writeFile(target, segments));
+        }
+        long bytesWritten;
+        try {
+            Files.createDirectory(stagingFolder);
+            bytesWritten = runAll(tasks);
+            Files.write(stagingFolder.resolve(REWRITE_MARKER),
+                    Collections.singletonList(Long.toString(System.currentTimeMillis())), StandardCharsets.UTF_8);
+            Files.createFile(stagingFolder.resolve(COMPLETE_MARKER));
+        } catch (IOException e) {
+            throw new RuntimeException(format("Cannot compact %s", dataSetFolder), e);
+        }
+        filesWritten = tasks.size();
+        System.out.format("Rewrote data set %s from %d to %d files%n", dataSetFolder, manifest.fileCount(),
+                filesWritten);
+        swap();
+        return bytesWritten;
+    }
+
+    long filesWritten() {
+        return filesWritten;
+    }
+
+    private boolean isCompact(DataSetManifest manifest) {
+        long expectedIndex = 0;
+        long remaining = manifest.totalSize();
+        for (Map.Entry<Long, Long> file : manifest.fileSizes().entrySet()) {
+            if (file.getKey() != expectedIndex++ || file.getValue() != Math.min(targetSizeByte, remaining) ||
+                    manifest.stripe(file.getKey()) != 0) {
+                return false;
+            }
+            remaining -= file.getValue();
+        }
+        return true;
+    }
+
+    /**
+     * @return for each new file, the ranges of the old files it is made of
+     */
+    private List<List<Segment>> plan(DataSetManifest manifest) {
+        List<List<Segment>> newFiles = new ArrayList<>();
+        List<Segment> current = new ArrayList<>();
+        long currentSize = 0;
+        for (Map.Entry<Long, Long> file : manifest.fileSizes().entrySet()) {
+            Path source = manifest.file(file.getKey());
+            long position = 0;
+            while (position < file.getValue()) {
+                long count = Math.min(file.getValue() - position, targetSizeByte - currentSize);
+                current.add(new Segment(source, position, count));
+                position += count;
+                currentSize += count;
+                if (currentSize == targetSizeByte) {
+                    newFiles.add(current);
+                    current = new ArrayList<>();
+                    currentSize = 0;
+                }
+            }
+        }
+        if (!current.isEmpty()) {
+            newFiles.add(current);
+        }
+        return newFiles;
+    }
+
+    private long writeFile(Path target, List<Segment> segments) throws IOException {
+        long startTime = System.nanoTime();
+        Files.createDirectories(target.getParent());
+        throttle.acquireFile();
+        long size = 0;
+        try (FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            for (Segment segment : segments) {
+                try (FileChannel in = FileChannel.open(segment.source, StandardOpenOption.READ)) {
+                    long position = segment.position;
+                    long end = segment.position + segment.count;
+                    while (position < end) {
+                        long chunk = Math.min(TRANSFER_CHUNK_BYTE, end - position);
+                        throttle.acquireBytes(chunk);
+                        long transferred = in.transferTo(position, chunk, out);
+                        if (transferred <= 0) {
+                            throw new IOException(format("%s shrank while being compacted", segment.source));
+                        }
+                        position += transferred;
+                    }
+                }
+                size += segment.count;
+            }
+        }
+        metrics.record(dataSetFolder.getFileName().toString(), size, System.nanoTime() - startTime);
+        return size;
+    }
+
+    private long runAll(List<Callable<Long>> tasks) {
+        ExecutorService executor = pool != null ? pool : Executors.newFixedThreadPool(parallelism);
+        try {
+            long total = 0;
+            for (Future<Long> future : executor.invokeAll(tasks)) {
+                total += future.get();
+            }
+            return total;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(format("Interrupted while compacting %s", dataSetFolder), e);
+        } catch (ExecutionException e) {
+            Throwables.propagateIfPossible(e.getCause());
+            throw new RuntimeException(format("Cannot compact %s", dataSetFolder), e.getCause());
+        } finally {
+            if (executor != pool) {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Replaces the data set folder with the staging folder, removes the files of the data set from the other stripes
+     * and records the new files in the manifest. A staging folder with the complete marker is committed: a swap
+     * interrupted at any step is simply run again.
+     */
+    private void swap() {
+        try {
+            for (Path stripeFolder : stripeFolders.subList(1, stripeFolders.size())) {
+                if (Files.exists(stripeFolder)) {
+                    try (Stream<Path> stream = Files.walk(stripeFolder)) {
+                        for (Path file : (Iterable<Path>) stream.filter(MasterDataSetSpec::isDataSetFile)::iterator) {
+                            Files.delete(file);
+                        }
+                    }
+                    FileUtils.deleteEmptyFolders(stripeFolder);
+                }
+            }
+            if (Files.exists(dataSetFolder)) {
+                Files.move(dataSetFolder, retiredFolder, StandardCopyOption.ATOMIC_MOVE);
+            }
+            Files.move(stagingFolder, dataSetFolder, StandardCopyOption.ATOMIC_MOVE);
+            Files.delete(dataSetFolder.resolve(COMPLETE_MARKER));
+            DataSetManifest.scan(stripeFolders).save();
+            FileUtils.deepDelete(retiredFolder);
+        } catch (IOException e) {
+            throw new RuntimeException(format("Cannot swap %s with %s", stagingFolder, dataSetFolder), e);
+        }
+    }
+
+    /**
+     * Completes the swap of a compaction interrupted after its staging folder was complete, and removes the leftovers
+     * of any other interrupted compaction.
+     */
+    private void recover() {
+        try {
+            if (Files.exists(stagingFolder.resolve(COMPLETE_MARKER))) {
+                System.out.format("Completing interrupted compaction of %s%n", dataSetFolder);
+                swap();
+            } else if (Files.notExists(dataSetFolder) && Files.exists(retiredFolder)) {
+                System.out.format("Rolling back interrupted compaction of %s%n", dataSetFolder);
+                Files.move(retiredFolder, dataSetFolder, StandardCopyOption.ATOMIC_MOVE);
+            }
+            Files.deleteIfExists(dataSetFolder.resolve(COMPLETE_MARKER));
+            FileUtils.deepDelete(stagingFolder);
+            FileUtils.deepDelete(retiredFolder);
+        } catch (IOException e) {
+            throw new RuntimeException(format("Cannot recover interrupted compaction of %s", dataSetFolder), e);
+        }
+    }
+
+    private static final class Segment {
+        private final Path source;
+        private final long position;
+        private final long count;
+
+        Segment(Path source, long position, long count) {
+            this.source = source;
+            this.position = position;
+            this.count = count;
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package org.trinakria.masterdataset;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.LongFunction;
+
+import static java.lang.String.format;
+
+/**
+ * Records the progress of a generation or an update of a data set, so that an interrupted run can be resumed or
+ * rolled back instead of being started over.
+ *
+ * The journal is stored next to the data set folder as {@code .<data set name>.journal} and only grows, one tab
+ * separated record per line, each written with a single append:
+ * <pre>
+ *     plan       firstIndex sizeMB fileSizeMB   files an update still has to generate
+ *     append     index originalSize             an append to a file is starting
+ *     appended   index                          the append is complete
+ *     done       index size                     a file has been written and renamed to its final name
+ * </pre>
+ * A record cut short by a crash is ignored. The journal is deleted once the run completes.
+ *
+ * @author Mario Giurlanda
+ */
+final class DataSetJournal {
+
+    private static final String PREFIX = ".";
+    private static final String SUFFIX = ".journal";
+    private static final String SEPARATOR = "\t";
+    private static final String PLAN = "plan";
+    private static final String APPEND = "append";
+    private static final String APPENDED = "appended";
+    private static final String DONE = "done";
+
+    private final Path journalFile;
+    private final Map<Long, Long> doneFiles = new HashMap<>();
+    private Plan plan;
+    private long appendIndex = -1;
+    private long appendOriginalSize;
+    private boolean appended;
+
+    private DataSetJournal(Path journalFile) {
+        this.journalFile = journalFile;
+    }
+
+    /**
+     * Opens the journal of a data set, with the records left by a previous run if any.
+     */
+    static DataSetJournal open(Path dataSetFolder) {
+        DataSetJournal journal = new DataSetJournal(
+                dataSetFolder.resolveSibling(PREFIX + dataSetFolder.getFileName() + SUFFIX));
+        try {
+            journal.load();
+        } catch (IOException e) {
+            throw new RuntimeException(format("Cannot open journal %s", journal.journalFile), e);
+        }
+        return journal;
+    }
+
+    /**
+     * @return true if a previous run left the journal of the data set behind
+     */
+    static boolean exists(Path dataSetFolder) {
+        return Files.exists(dataSetFolder.resolveSibling(PREFIX + dataSetFolder.getFileName() + SUFFIX));
+    }
+
+    /**
+     * @return true if the file has been completed with the given size by a previous run and still has it
+     */
+    synchronized boolean isDone(long fileIndex, Path file) {
+        Long size = doneFiles.get(fileIndex);
+        try {
+            return size != null && Files.size(file) == size;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    synchronized void done(long fileIndex, long size) {
+        doneFiles.put(fileIndex, size);
+        write(DONE, fileIndex, size);
+    }
+
+    /**
+     * @return files an interrupted update still had to generate
+     */
+    synchronized Optional<Plan> plan() {
+        return Optional.ofNullable(plan);
+    }
+
+    synchronized void plan(long firstIndex, long sizeMB, long fileSizeMB) {
+        plan = new Plan(firstIndex, sizeMB, fileSizeMB);
+        write(PLAN, firstIndex, sizeMB, fileSizeMB);
+    }
+
+    /**
+     * Records the size of a file before data is appended to it.
+     */
+    synchronized void appendStarted(long fileIndex, long originalSize) {
+        appendIndex = fileIndex;
+        appendOriginalSize = originalSize;
+        appended = false;
+        write(APPEND, fileIndex, originalSize);
+    }
+
+    synchronized void appendDone() {
+        appended = true;
+        write(APPENDED, appendIndex);
+    }
+
+    synchronized boolean appended() {
+        return appended;
+    }
+
+    /**
+     * Truncates the file of an interrupted append back to its original size.
+     *
+     * @param fileOf resolves the path of a data set file from its index
+     * @return true if an append has been rolled back
+     */
+    synchronized boolean rollBack(LongFunction<Path> fileOf) {
+        if (appendIndex < 0 || appended) {
+            return false;
+        }
+        Path file = fileOf.apply(appendIndex);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            if (channel.size() > appendOriginalSize) {
+                channel.truncate(appendOriginalSize);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(format("Cannot roll back append to %s", file), e);
+        }
+        System.out.format("Rolled back interrupted append to %s at %d bytes%n", file, appendOriginalSize);
+        return true;
+    }
+
+    /**
+     * Forgets the records of the previous run.
+     */
+    synchronized void reset() {
+        doneFiles.clear();
+        plan = null;
+        appendIndex = -1;
+        appended = false;
+        delete();
+    }
+
+    /**
+     * Deletes the journal once the run is complete.
+     */
+    synchronized void delete() {
+        try {
+            Files.deleteIfExists(journalFile);
+        } catch (IOException e) {
+            System.err.format("Unable to delete journal %s: %s%n", journalFile, e);
+        }
+    }
+
+    private void load() throws IOException {
+        if (Files.notExists(journalFile)) {
+            return;
+        }
+        List<String> lines = Files.readAllLines(journalFile, StandardCharsets.UTF_8);
+        for (String line : lines) {
+            String[] fields = line.split(SEPARATOR);
+            try {
+                switch (fields[0]) {
+                    case PLAN: {
+                        plan = new Plan(Long.parseLong(fields[1]), Long.parseLong(fields[2]), Long.parseLong(fields[3]));
+                        break;
+                    }
+                    case APPEND: {
+                        appendIndex = Long.parseLong(fields[1]);
+                        appendOriginalSize = Long.parseLong(fields[2]);
+                        appended = false;
+                        break;
+                    }
+                    case APPENDED: {
+                        appended = appendIndex == Long.parseLong(fields[1]);
+                        break;
+                    }
+                    case DONE: {
+                        doneFiles.put(Long.parseLong(fields[1]), Long.parseLong(fields[2]));
+                        break;
+                    }
+                    default: {
+                        System.err.format("Ignoring unknown journal record in %s: %s%n", journalFile, line);
+                    }
+                }
+            } catch (RuntimeException e) {
+                // last record cut short by a crash
+                System.err.format("Ignoring incomplete journal record in %s: %s%n", journalFile, line);
+            }
+        }
+    }
+
+    private void write(String type, long... values) {
+        StringBuilder record = new StringBuilder(type);
+        for (long value : values) {
+            record.append(SEPARATOR).append(value);
+        }
+        record.append('\n');
+        try {
+            Files.write(journalFile, record.toString().getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            throw new RuntimeException(format("Cannot write journal %s", journalFile), e);
+        }
+    }
+
+    /**
+     * Files an update has planned to generate after growing the partial file.
+     */
+    static final class Plan {
+        private final long firstIndex;
+        private final long sizeMB;
+        private final long fileSizeMB;
+
+        Plan(long firstIndex, long sizeMB, long fileSizeMB) {
+            this.firstIndex = firstIndex;
+            this.sizeMB = sizeMB;
+            this.fileSizeMB = fileSizeMB;
+        }
+
+        long firstIndex() {
+            return firstIndex;
+        }
+
+        long sizeMB() {
+            return sizeMB;
+        }
+
+        long fileSizeMB() {
+            return fileSizeMB;
+        }
+    }
+}
@@ -0,0 +1,505 @@
+package org.trinakria.masterdataset;
+
+import com.google.common.base.Throwables;
+import org.apache.commons.lang3.Validate;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import static java.lang.String.format;
+
+/**
+ * Benchmarks the storage a master data set lives on with the reads its consumers issue: each read picks a data set
+ * at random, then a random offset in it, and either reads {@code readBytes} bytes from there ({@link Read#RANDOM}) or
+ * the whole line holding it ({@link Read#LINE}). Offsets are uniform over the bytes of the data set, whatever the size
+ * of its files.
+ *
+ * Reads are issued by {@code concurrency} threads for the given duration, as fast as they complete or, with a target
+ * rate (see {@link #qps}), on a fixed schedule shared by the threads. Latencies are measured from the time a read was
+ * scheduled rather than from the time it was issued, so a storage that falls behind the schedule shows it in the
+ * percentiles instead of silently lowering the rate. The time a read waits for tokens of the throttle is left out of
+ * its latency, so a throttle limit lowers the rate without showing up as a latency of the storage.
+ *
+ * Files are read with positional {@link FileChannel} reads ({@link Access#CHANNEL}) or through a mapping of the whole
+ * file ({@link Access#MMAP}). Up to {@value #MAX_OPEN_FILES} files stay open, or mapped, for the whole test; reads of
+ * further files open them and close them again, which is part of their latency. Compressed data sets cannot be read at
+ * random offsets and are skipped.
+ *
+ * @author Mario Giurlanda
+ */
+final class DataSetLoadTest {
+
+    /**
+     * What a single read returns.
+     */
+    enum Read {
+        /**
+         * A fixed number of bytes from a random offset, fewer at the end of a file
+         */
+        RANDOM,
+        /**
+         * The line holding a random offset
+         */
+        LINE
+    }
+
+    /**
+     * How files are read.
+     */
+    enum Access {
+        /**
+         * Positional reads through a {@link FileChannel}
+         */
+        CHANNEL,
+        /**
+         * Copies from a mapping of the whole file
+         */
+        MMAP
+    }
+
+    static final int MAX_OPEN_FILES = 1024;
+    /**
+     * Bytes around an offset read to find the line holding it
+     */
+    private static final int LINE_WINDOW_BYTES = 2 * LineGenerator.MAX_LINE_BYTES;
+
+    private final int concurrency;
+    private final long durationNanos;
+    private final List<Target> targets = new ArrayList<>();
+    private final Map<Path, FileChannel> channels = new ConcurrentHashMap<>();
+    private final Map<Path, MappedByteBuffer> mappings = new ConcurrentHashMap<>();
+    private Read read = Read.RANDOM;
+    private int readBytes = 4096;
+    private Access access = Access.CHANNEL;
+    private long qps;
+    private long seed;
+    private RunMetrics.Phase metrics = RunMetrics.Phase.detached("loadtest");
+    private Throttle throttle = Throttle.unlimited();
+    private long elapsedNanos;
+
+    DataSetLoadTest(int concurrency, long durationMillis) {
+        Validate.isTrue(concurrency > 0, "concurrency must be a positive number");
+        Validate.isTrue(durationMillis > 0, "duration must be a positive number");
+        this.concurrency = concurrency;
+        this.durationNanos = durationMillis * 1_000_000;
+    }
+
+    /**
+     * Adds a data set to read from, unless it is compressed or empty.
+     *
+     * @return true if the data set is read from
+     */
+    boolean dataSet(String dataSetName, DataSetManifest manifest) {
+        if (manifest.compression() != WriteSettings.Compression.NONE) {
+            System.out.format("Skipping compressed data set %s%n", dataSetName);
+            return false;
+        }
+        List<Path> files = new ArrayList<>();
+        List<Long> sizes = new ArrayList<>();
+        manifest.fileSizes().forEach((idx, size) -> {
+            if (size > 0) {
+                files.add(manifest.file(idx));
+                sizes.add(size);
+            }
+        });
+        if (files.isEmpty()) {
+            System.out.format("Skipping empty data set %s%n", dataSetName);
+            return false;
+        }
+        targets.add(new Target(dataSetName, files, sizes));
+        return true;
+    }
+
+    /**
+     * @return this load test
+     */
+    DataSetLoadTest read(Read read) {
+        this.read = read;
+        return this;
+    }
+
+    /**
+     * Sets the number of bytes of a {@link Read#RANDOM} read.
+     *
+     * @return this load test
+     */
+    DataSetLoadTest readBytes(int readBytes) {
+        Validate.isTrue(readBytes > 0, "read-bytes must be a positive number");
+        this.readBytes = readBytes;
+        return this;
+    }
+
+    /**
+     * @return this load test
+     */
+    DataSetLoadTest access(Access access) {
+        this.access = access;
+        return this;
+    }
+
+    /**
+     * Issues reads at the given rate across all threads, 0 for as fast as they complete.
+     *
+     * @return this load test
+     */
+    DataSetLoadTest qps(long qps) {
+        Validate.isTrue(qps >= 0, "qps must be a positive number");
+        this.qps = qps;
+        return this;
+    }
+
+    /**
+     * Sets the seed the offsets are drawn from, so that two runs issue the same reads.
+     *
+     * @return this load test
+     */
+    DataSetLoadTest seed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    /**
+     * Records each read, with its size and latency, in the given phase.
+     *
+     * @return this load test
+     */
+    DataSetLoadTest metrics(RunMetrics.Phase metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    /**
+     * Limits the rate at which bytes are read.
+     *
+     * @return this load test
+     */
+    DataSetLoadTest throttle(Throttle throttle) {
+        this.throttle = throttle;
+        return this;
+    }
+
+    /**
+     * Runs the load test.
+     *
+     * @return results of each data set, in the order they were added
+     */
+    List<Result> run() {
+        Validate.validState(!targets.isEmpty(), "No data set to read from");
+        if (access == Access.MMAP) {
+            targets.forEach(target -> Arrays.stream(target.sizes).forEach(size ->
+                    Validate.validState(size <= Integer.MAX_VALUE, "Files of data set %s are larger than 2GB, " +
+                            "use channel access", target.name)));
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        long startTime = System.nanoTime();
+        AtomicLong schedule = new AtomicLong();
+        try {
+            List<Callable<Void>> workers = new ArrayList<>();
+            for (int worker = 0; worker < concurrency; worker++) {
+                SplittableRandom random = new SplittableRandom(seed * 31 + worker);
+                workers.add(() -> {
+                    issueReads(random, startTime, schedule);
+                    return null;
+                });
+            }
+            for (Future<Void> future : executor.invokeAll(workers)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for reads to complete", e);
+        } catch (ExecutionException e) {
+            Throwables.propagateIfPossible(e.getCause());
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+            elapsedNanos = System.nanoTime() - startTime;
+            close();
+        }
+        List<Result> results = new ArrayList<>();
+        targets.forEach(target -> results.add(new Result(target, elapsedNanos)));
+        return results;
+    }
+
+    private void issueReads(SplittableRandom random, long startTime, AtomicLong schedule) {
+        long endTime = startTime + durationNanos;
+        long intervalNanos = qps > 0 ? Math.max(1, 1_000_000_000L / qps) : 0;
+        ByteBuffer buffer = ByteBuffer.allocateDirect(Math.max(readBytes, LINE_WINDOW_BYTES));
+        while (true) {
+            long scheduledTime;
+            if (intervalNanos > 0) {
+                scheduledTime = startTime + schedule.getAndIncrement() * intervalNanos;
+                if (scheduledTime >= endTime) {
+                    return;
+                }
+                long waitNanos = scheduledTime - System.nanoTime();
+                if (waitNanos > 0) {
+                    LockSupport.parkNanos(waitNanos);
+                }
+            } else {
+                scheduledTime = System.nanoTime();
+                if (scheduledTime >= endTime) {
+                    return;
+                }
+            }
+            Target target = targets.get(random.nextInt(targets.size()));
+            long offset = random.nextLong(target.totalBytes);
+            int file = target.fileAt(offset);
+            long position = offset - target.starts[file];
+            // the wait for tokens is a choice of the throttle, not a latency of the storage
+            long throttleStartTime = System.nanoTime();
+            throttle.acquireBytes(read == Read.LINE ?
+                    Math.min(LINE_WINDOW_BYTES, target.sizes[file] - lineWindowStart(position)) :
+                    Math.min(readBytes, target.sizes[file] - position));
+            scheduledTime += System.nanoTime() - throttleStartTime;
+            int bytesRead;
+            try {
+                bytesRead = read == Read.LINE ?
+                        readLine(target.files.get(file), target.sizes[file], position, buffer) :
+                        readRange(target.files.get(file), target.sizes[file], position, buffer);
+            } catch (IOException e) {
+                target.error(e);
+                continue;
+            }
+            long latencyNanos = System.nanoTime() - scheduledTime;
+            target.record(bytesRead, latencyNanos);
+            metrics.record(target.name, bytesRead, latencyNanos);
+        }
+    }
+
+    private int readRange(Path file, long fileSize, long position, ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        buffer.limit((int) Math.min(readBytes, fileSize - position));
+        readFully(file, position, buffer);
+        return buffer.position();
+    }
+
+    /**
+     * Reads the bytes around the offset and finds the line holding it, a line cut across two files included as far
+     * as it goes in this one.
+     *
+     * @return length of the line, new line included
+     */
+    private int readLine(Path file, long fileSize, long position, ByteBuffer buffer) throws IOException {
+        long windowStart = lineWindowStart(position);
+        buffer.clear();
+        buffer.limit((int) Math.min(LINE_WINDOW_BYTES, fileSize - windowStart));
+        readFully(file, windowStart, buffer);
+        // the file may have shrunk since it was listed
+        int offset = (int) Math.min(position - windowStart, Math.max(0, buffer.position() - 1));
+        int start = offset;
+        while (start > 0 && buffer.get(start - 1) != LineGenerator.NEW_LINE) {
+            start--;
+        }
+        int end = offset;
+        while (end < buffer.position() && buffer.get(end) != LineGenerator.NEW_LINE) {
+            end++;
+        }
+        return Math.min(end + 1, buffer.position()) - start;
+    }
+
+    private static long lineWindowStart(long position) {
+        return Math.max(0, position - LineGenerator.MAX_LINE_BYTES);
+    }
+
+    /**
+     * Fills the buffer with the bytes of the file from the given position, unless the file ends first.
+     */
+    private void readFully(Path file, long position, ByteBuffer buffer) throws IOException {
+        if (access == Access.MMAP) {
+            MappedByteBuffer mapping = mappings.get(file);
+            boolean cached = mapping != null || mappings.size() < MAX_OPEN_FILES;
+            if (mapping == null) {
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                    mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                }
+                if (cached) {
+                    MappedByteBuffer previous = mappings.putIfAbsent(file, mapping);
+                    if (previous != null) {
+                        FileUtils.unmap(mapping);
+                        mapping = previous;
+                    }
+                }
+            }
+            try {
+                ByteBuffer view = mapping.duplicate();
+                view.position((int) Math.min(position, view.limit()));
+                view.limit((int) Math.min(view.limit(), position + buffer.remaining()));
+                buffer.put(view);
+            } finally {
+                if (!cached) {
+                    FileUtils.unmap(mapping);
+                }
+            }
+            return;
+        }
+        FileChannel channel = channels.get(file);
+        boolean cached = channel != null || channels.size() < MAX_OPEN_FILES;
+        if (channel == null) {
+            channel = FileChannel.open(file, StandardOpenOption.READ);
+            if (cached) {
+                FileChannel previous = channels.putIfAbsent(file, channel);
+                if (previous != null) {
+                    channel.close();
+                    channel = previous;
+                }
+            }
+        }
+        try {
+            while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position()) > 0) {
+                // the file may end before the buffer is full
+            }
+        } finally {
+            if (!cached) {
+                channel.close();
+            }
+        }
+    }
+
+    private void close() {
+        channels.values().forEach(channel -> {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.err.format("Cannot close %s: %s%n", channel, e);
+            }
+        });
+        channels.clear();
+        mappings.values().forEach(FileUtils::unmap);
+        mappings.clear();
+    }
+
+    /**
+     * Files of a data set read by the test, and the figures of their reads.
+     */
+    private static final class Target {
+        private final String name;
+        private final List<Path> files;
+        private final long[] sizes;
+        /**
+         * Offset of each file in the data set
+         */
+        private final long[] starts;
+        private final long totalBytes;
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LongAdder bytes = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+
+        Target(String name, List<Path> files, List<Long> sizes) {
+            this.name = name;
+            this.files = Collections.unmodifiableList(files);
+            this.sizes = sizes.stream().mapToLong(Long::longValue).toArray();
+            this.starts = new long[this.sizes.length];
+            long total = 0;
+            for (int i = 0; i < this.sizes.length; i++) {
+                starts[i] = total;
+                total += this.sizes[i];
+            }
+            this.totalBytes = total;
+        }
+
+        /**
+         * @return index in {@link #files} of the file holding the given offset of the data set
+         */
+        int fileAt(long offset) {
+            int found = Arrays.binarySearch(starts, offset);
+            return found >= 0 ? found : -found - 2;
+        }
+
+        void record(int bytesRead, long latencyNanos) {
+            bytes.add(bytesRead);
+            latency.record(latencyNanos);
+        }
+
+        void error(IOException e) {
+            errors.increment();
+            if (errors.sum() == 1) {
+                System.err.format("Unable to read data set %s: %s%n", name, e);
+            }
+        }
+    }
+
+    /**
+     * Figures of the reads of a data set.
+     */
+    static final class Result {
+        private final String dataSetName;
+        private final long reads;
+        private final long bytes;
+        private final long errors;
+        private final long elapsedNanos;
+        private final LatencyHistogram latency;
+
+        private Result(Target target, long elapsedNanos) {
+            this.dataSetName = target.name;
+            this.reads = target.latency.count();
+            this.bytes = target.bytes.sum();
+            this.errors = target.errors.sum();
+            this.elapsedNanos = elapsedNanos;
+            this.latency = target.latency;
+        }
+
+        String dataSetName() {
+            return dataSetName;
+        }
+
+        long reads() {
+            return reads;
+        }
+
+        long bytes() {
+            return bytes;
+        }
+
+        long errors() {
+            return errors;
+        }
+
+        double readsPerSecond() {
+            return elapsedNanos == 0 ? 0 : reads / (elapsedNanos / 1e9);
+        }
+
+        double megaBytesPerSecond() {
+            return elapsedNanos == 0 ? 0 : bytes / (double) MasterDataSetSpec.ONE_MB / (elapsedNanos / 1e9);
+        }
+
+        /**
+         * @param percentile percentile between 0 and 100
+         * @return latency of the given percentile in nanoseconds
+         */
+        long latencyNanos(double percentile) {
+            return latency.percentile(percentile);
+        }
+
+        long maxLatencyNanos() {
+            return latency.max();
+        }
+
+        @Override
+        public String toString() {
+            return format("Data set %s: %d reads (%d errors), %.0f reads/s, %.2f MB/s, latency p50=%dus p99=%dus " +
+                            "p999=%dus max=%dus", dataSetName, reads, errors, readsPerSecond(), megaBytesPerSecond(),
+                    latencyNanos(50) / 1000, latencyNanos(99) / 1000, latencyNanos(99.9) / 1000,
+                    maxLatencyNanos() / 1000);
+        }
+    }
+}
@@ -0,0 +1,449 @@
+package org.trinakria.masterdataset;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+import static java.lang.String.format;
+
+/**
+ * Keeps track of the files of a data set so that the data set can be planned without listing its folder and
+ * reading the size of each file.
+ *
+ * The manifest records the size of each file by index, from which the file count, the next free index and the index
+ * of the partial (smallest) file are derived, together with the modification time of the data set folder when the
+ * manifest was saved. It is stored next to the data set folder as {@code .<data set name>.manifest} and replaced
+ * atomically on each save.
+ *
+ * A manifest is stale when the data set folder has been modified since it was saved (files added or removed) or when
+ * the partial file does not have the recorded size any longer, which only costs two file system calls to check. A
+ * stale or missing manifest is rebuilt by a single pass over the attributes of the data set files.
+ *
+ * Folder modification times only change once per tick of the file system clock, up to 2 seconds on some file systems,
+ * so a folder modified in the same tick as the manifest was saved would look unchanged. As with racily clean files in
+ * git, the manifest records when it was saved, and a folder whose modification time is within a tick of that is
+ * checked by listing the names of its files, which must be those of the manifest. The tick is taken to be
+ * {@value #COARSE_TICK_MILLIS}ms when the folder time is a whole second, {@value #FINE_TICK_MILLIS}ms otherwise.
+ *
+ * When the data set is striped across several roots (see {@link StripeLayout}) the manifest is the index of where each
+ * file lives: it records the stripe of each file and the modification time of the data set folder in each stripe.
+ *
+ * All the files of a data set have the same {@link WriteSettings.Compression}, which the manifest records as well.
+ * Sizes are always the number of bytes on disk.
+ *
+ * Files are found in the data set folders as given by the {@link ShardLayout} recorded in the input folder. With a
+ * sharded layout, files added to an existing subfolder do not change the modification time of the data set folder, so
+ * the manifest is also stale when a file exists with its next free index.
+ *
+ * @author Mario Giurlanda
+ */
+final class DataSetManifest {
+
+    private static final String PREFIX = ".";
+    private static final String SUFFIX = ".manifest";
+    private static final String SAVED = "saved=";
+    private static final String FOLDER_MODIFIED = "folderModified=";
+    private static final String STRIPES_MODIFIED = "stripesModified=";
+    private static final String COMPRESSION = "compression=";
+    private static final String SEPARATOR = "\t";
+    private static final String LIST_SEPARATOR = ",";
+    static final long COARSE_TICK_MILLIS = 2000;
+    static final long FINE_TICK_MILLIS = 100;
+
+    private final Path dataSetFolder;
+    /**
+     * Folders of the data set in each stripe, {@link #dataSetFolder} first
+     */
+    private final List<Path> stripeFolders;
+    private final TreeMap<Long, Long> fileSizes = new TreeMap<>();
+    private final Map<Long, Integer> fileStripes = new HashMap<>();
+    private final ShardLayout shards;
+    private long[] folderModifiedMillis;
+    /**
+     * When the manifest was saved, -1 if unknown
+     */
+    private long savedMillis = -1;
+    private WriteSettings.Compression compression = WriteSettings.Compression.NONE;
+
+    private DataSetManifest(List<Path> stripeFolders) {
+        this.dataSetFolder = stripeFolders.get(0);
+        this.stripeFolders = stripeFolders;
+        this.shards = ShardLayout.load(dataSetFolder.toAbsolutePath().getParent());
+        this.folderModifiedMillis = new long[stripeFolders.size()];
+        Arrays.fill(folderModifiedMillis, -1);
+    }
+
+    /**
+     * @return an empty manifest for the given data set folder
+     */
+    static DataSetManifest empty(Path dataSetFolder) {
+        return empty(Collections.singletonList(dataSetFolder));
+    }
+
+    /**
+     * @return an empty manifest for a data set striped across the given folders
+     */
+    static DataSetManifest empty(List<Path> stripeFolders) {
+        return new DataSetManifest(stripeFolders);
+    }
+
+    /**
+     * Loads the manifest of a data set, rebuilding it from the data set folder if it is missing or stale.
+     */
+    static DataSetManifest loadOrScan(Path dataSetFolder) {
+        return loadOrScan(Collections.singletonList(dataSetFolder));
+    }
+
+    /**
+     * Loads the manifest of a data set striped across the given folders, rebuilding it from the folders if it is
+     * missing or stale.
+     */
+    static DataSetManifest loadOrScan(List<Path> stripeFolders) {
+        Optional<DataSetManifest> manifest = load(stripeFolders).filter(m -> !m.isStale());
+        if (manifest.isPresent()) {
+            return manifest.get();
+        }
+        System.out.format("Scanning data set folder %s%n", stripeFolders.size() == 1 ?
+                stripeFolders.get(0) : stripeFolders);
+        return scan(stripeFolders);
+    }
+
+    /**
+     * @return name of the manifest file of a data set
+     */
+    static String fileName(String dataSetName) {
+        return PREFIX + dataSetName + SUFFIX;
+    }
+
+    static Optional<DataSetManifest> load(Path dataSetFolder) {
+        return load(Collections.singletonList(dataSetFolder));
+    }
+
+    static Optional<DataSetManifest> load(List<Path> stripeFolders) {
+        Path manifestFile = manifestFile(stripeFolders.get(0));
+        if (Files.notExists(manifestFile)) {
+            return Optional.empty();
+        }
+        DataSetManifest manifest = new DataSetManifest(stripeFolders);
+        try {
+            List<String> lines = Files.readAllLines(manifestFile, StandardCharsets.UTF_8);
+            for (String line : lines) {
+                if (line.startsWith(SAVED)) {
+                    manifest.savedMillis = Long.parseLong(line.substring(SAVED.length()));
+                } else if (line.startsWith(FOLDER_MODIFIED)) {
+                    manifest.folderModifiedMillis[0] = Long.parseLong(line.substring(FOLDER_MODIFIED.length()));
+                } else if (line.startsWith(STRIPES_MODIFIED)) {
+                    String[] stripes = line.substring(STRIPES_MODIFIED.length()).split(LIST_SEPARATOR);
+                    for (int i = 0; i < stripes.length && i + 1 < stripeFolders.size(); i++) {
+                        manifest.folderModifiedMillis[i + 1] = Long.parseLong(stripes[i]);
+                    }
+                } else if (line.startsWith(COMPRESSION)) {
+                    manifest.compression = WriteSettings.Compression.valueOf(
+                            line.substring(COMPRESSION.length()).toUpperCase());
+                } else if (!line.isEmpty() && !line.startsWith("#")) {
+                    String[] fields = line.split(SEPARATOR);
+                    long fileIndex = Long.parseLong(fields[0]);
+                    manifest.fileSizes.put(fileIndex, Long.parseLong(fields[1]));
+                    if (fields.length > 2) {
+                        int stripe = Integer.parseInt(fields[2]);
+                        if (stripe >= stripeFolders.size()) {
+                            throw new IllegalStateException(format("unknown stripe %d of file %d", stripe, fileIndex));
+                        }
+                        manifest.fileStripes.put(fileIndex, stripe);
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.format("Ignoring unreadable manifest %s: %s%n", manifestFile, e);
+            return Optional.empty();
+        }
+        return Optional.of(manifest);
+    }
+
+    /**
+     * Builds the manifest of a data set from a single pass over the attributes of its files.
+     */
+    static DataSetManifest scan(Path dataSetFolder) {
+        return scan(Collections.singletonList(dataSetFolder));
+    }
+
+    /**
+     * Builds the manifest of a data set striped across the given folders from a single pass over the attributes of
+     * its files. Folders that do not exist are skipped.
+     */
+    static DataSetManifest scan(List<Path> stripeFolders) {
+        DataSetManifest manifest = new DataSetManifest(stripeFolders);
+        for (int i = 0; i < stripeFolders.size(); i++) {
+            int stripe = i;
+            Path folder = stripeFolders.get(stripe);
+            if (stripe > 0 && Files.notExists(folder)) {
+                continue;
+            }
+            try {
+                Files.walkFileTree(folder, Collections.emptySet(), manifest.shards.depth() + 1,
+                        new SimpleFileVisitor<Path>() {
+                            @Override
+                            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                                if (attrs.isRegularFile() && MasterDataSetSpec.isDataSetFile(file)) {
+                                    manifest.put(MasterDataSetSpec.fileIndex(file), attrs.size(), stripe);
+                                    if (MasterDataSetSpec.isCompressed(file)) {
+                                        manifest.compression = WriteSettings.Compression.GZIP;
+                                    }
+                                }
+                                return FileVisitResult.CONTINUE;
+                            }
+                        });
+            } catch (IOException e) {
+                throw new RuntimeException(format("Cannot scan data set %s", folder), e);
+            }
+        }
+        return manifest;
+    }
+
+    /**
+     * Saves the manifest, recording the current modification time of the data set folders.
+     *
+     * @return manifest file
+     */
+    Path save() {
+        Path manifestFile = manifestFile(dataSetFolder);
+        Path tempFile = manifestFile.resolveSibling(manifestFile.getFileName() + ".tmp");
+        try {
+            for (int i = 0; i < stripeFolders.size(); i++) {
+                folderModifiedMillis[i] = modifiedMillis(stripeFolders.get(i));
+            }
+            savedMillis = System.currentTimeMillis();
+            try (BufferedWriter writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+                writer.write(stripeFolders.size() == 1 ? "# index\tsize" : "# index\tsize\tstripe");
+                writer.newLine();
+                writer.write(SAVED + savedMillis);
+                writer.newLine();
+                writer.write(FOLDER_MODIFIED + folderModifiedMillis[0]);
+                writer.newLine();
+                if (stripeFolders.size() > 1) {
+                    writer.write(STRIPES_MODIFIED + Arrays.stream(folderModifiedMillis, 1, folderModifiedMillis.length)
+                            .mapToObj(Long::toString)
+                            .collect(Collectors.joining(LIST_SEPARATOR)));
+                    writer.newLine();
+                }
+                if (compression != WriteSettings.Compression.NONE) {
+                    writer.write(COMPRESSION + compression.name().toLowerCase());
+                    writer.newLine();
+                }
+                for (Map.Entry<Long, Long> entry : fileSizes.entrySet()) {
+                    int stripe = stripe(entry.getKey());
+                    writer.write(entry.getKey() + SEPARATOR + entry.getValue() + (stripe == 0 ? "" : SEPARATOR + stripe));
+                    writer.newLine();
+                }
+            }
+            Files.move(tempFile, manifestFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new RuntimeException(format("Cannot write manifest %s", manifestFile), e);
+        }
+        return manifestFile;
+    }
+
+    /**
+     * Records the size of a file, which stays in its stripe.
+     */
+    synchronized void put(long fileIndex, long size) {
+        fileSizes.put(fileIndex, size);
+    }
+
+    /**
+     * Records the size and the stripe of a file.
+     */
+    synchronized void put(long fileIndex, long size, int stripe) {
+        fileSizes.put(fileIndex, size);
+        if (stripe == 0) {
+            fileStripes.remove(fileIndex);
+        } else {
+            fileStripes.put(fileIndex, stripe);
+        }
+    }
+
+    WriteSettings.Compression compression() {
+        return compression;
+    }
+
+    /**
+     * Records the compression of the files of the data set.
+     */
+    synchronized void compression(WriteSettings.Compression compression) {
+        this.compression = compression;
+    }
+
+    boolean contains(long fileIndex) {
+        return fileSizes.containsKey(fileIndex);
+    }
+
+    /**
+     * @return stripe a file lives in, 0 for the data set folder itself
+     */
+    int stripe(long fileIndex) {
+        return fileStripes.getOrDefault(fileIndex, 0);
+    }
+
+    long fileCount() {
+        return fileSizes.size();
+    }
+
+    /**
+     * @return the first index that is not used by any file
+     */
+    long nextIndex() {
+        return fileSizes.isEmpty() ? 0 : fileSizes.lastKey() + 1;
+    }
+
+    /**
+     * @return index of the smallest file, which is the one that can still grow
+     */
+    Optional<Long> partialIndex() {
+        return fileSizes.entrySet().stream()
+                .min(Map.Entry.comparingByValue())
+                .map(Map.Entry::getKey);
+    }
+
+    /**
+     * @return size of the largest file, which is the size all files are meant to have
+     */
+    long referenceSize() {
+        return referenceIndex().map(fileSizes::get).orElse(0L);
+    }
+
+    /**
+     * @return index of the largest file
+     */
+    Optional<Long> referenceIndex() {
+        return fileSizes.entrySet().stream()
+                .max(Map.Entry.comparingByValue())
+                .map(Map.Entry::getKey);
+    }
+
+    long size(long fileIndex) {
+        return fileSizes.get(fileIndex);
+    }
+
+    long totalSize() {
+        return fileSizes.values().stream().mapToLong(Long::longValue).sum();
+    }
+
+    /**
+     * @return sizes of the files by index
+     */
+    Map<Long, Long> fileSizes() {
+        return Collections.unmodifiableMap(fileSizes);
+    }
+
+    Path file(long fileIndex) {
+        return shards.file(stripeFolders.get(stripe(fileIndex)), fileIndex, compression);
+    }
+
+    /**
+     * @return layout of the files in the data set folders
+     */
+    ShardLayout shards() {
+        return shards;
+    }
+
+    private boolean isStale() {
+        try {
+            for (int i = 0; i < stripeFolders.size(); i++) {
+                if (modifiedMillis(stripeFolders.get(i)) != folderModifiedMillis[i]) {
+                    return true;
+                }
+            }
+            if (shards.scheme() != ShardLayout.Scheme.FLAT) {
+                for (Path folder : stripeFolders) {
+                    for (WriteSettings.Compression fileCompression : WriteSettings.Compression.values()) {
+                        if (Files.exists(shards.file(folder, nextIndex(), fileCompression))) {
+                            return true;
+                        }
+                    }
+                }
+            }
+            Optional<Long> partial = partialIndex();
+            if (partial.isPresent() && FileUtils.sizeOf(file(partial.get())) != fileSizes.get(partial.get())) {
+                return true;
+            }
+            return isRacy() && !listFiles().equals(fileStripes());
+        } catch (IOException | RuntimeException e) {
+            return true;
+        }
+    }
+
+    /**
+     * @return true if a data set folder may have been modified after the manifest was saved within the same tick of
+     * the file system clock, so that its modification time does not tell
+     */
+    private boolean isRacy() {
+        for (long modifiedMillis : folderModifiedMillis) {
+            long tick = modifiedMillis % 1000 == 0 ? COARSE_TICK_MILLIS : FINE_TICK_MILLIS;
+            if (modifiedMillis >= 0 && (savedMillis < 0 || savedMillis - modifiedMillis < tick)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return stripe of each file of the manifest by index
+     */
+    private Map<Long, Integer> fileStripes() {
+        Map<Long, Integer> stripes = new HashMap<>();
+        fileSizes.keySet().forEach(fileIndex -> stripes.put(fileIndex, stripe(fileIndex)));
+        return stripes;
+    }
+
+    /**
+     * Lists the data set files of the folders by name, only reading the attributes of the shard folders.
+     *
+     * @return stripe of each file found by index
+     */
+    private Map<Long, Integer> listFiles() throws IOException {
+        Map<Long, Integer> stripes = new HashMap<>();
+        for (int stripe = 0; stripe < stripeFolders.size(); stripe++) {
+            if (Files.exists(stripeFolders.get(stripe))) {
+                listFiles(stripeFolders.get(stripe), stripe, shards.depth(), stripes);
+            }
+        }
+        return stripes;
+    }
+
+    private static void listFiles(Path folder, int stripe, int depth, Map<Long, Integer> stripes) throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(folder)) {
+            for (Path path : stream) {
+                if (MasterDataSetSpec.isDataSetFile(path)) {
+                    stripes.put(MasterDataSetSpec.fileIndex(path), stripe);
+                } else if (depth > 0 && Files.isDirectory(path)) {
+                    listFiles(path, stripe, depth - 1, stripes);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return modification time of a folder, -1 if it does not exist
+     */
+    private static long modifiedMillis(Path folder) throws IOException {
+        try {
+            return Files.getLastModifiedTime(folder).toMillis();
+        } catch (NoSuchFileException e) {
+            return -1;
+        }
+    }
+
+    private static Path manifestFile(Path dataSetFolder) {
+        return dataSetFolder.resolveSibling(fileName(dataSetFolder.getFileName().toString()));
+    }
+}
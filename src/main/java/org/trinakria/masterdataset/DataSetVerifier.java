@@ -0,0 +1,516 @@
+package org.trinakria.masterdataset;
+
+import com.google.common.base.Throwables;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+
+import static java.lang.String.format;
+
+/**
+ * Checks that the files of a data set are what {@link FileUtils#writeFile} produces and, optionally, what the
+ * specification asked for.
+ *
+ * Files are read concurrently through memory-mapped windows. For each file the CRC32 of its bytes is computed and its
+ * lines are checked: every line must end with a new line, hold only alphanumeric characters and be at most
+ * {@value LineGenerator#MAX_LINE_LENGTH} characters long. Lines shorter than {@value LineGenerator#MIN_LINE_LENGTH}
+ * characters are counted rather than reported, as every write ends with one or two of them to land on its exact size.
+ * A line cut across two consecutive files by {@link DataSetCompactor} is checked as a whole. The lines of a compressed
+ * file are read by inflating it, its CRC32 is the one of its compressed bytes.
+ *
+ * When expectations are given (see {@link #expect}) the file count, the indices, the size of each file and the total
+ * size of the data set are audited, and when the folders of a backup are given (see {@link #backup}) each file is
+ * compared with its backup copy, through the CRC32 recorded by the {@link BackupManifest} if any.
+ *
+ * @author Mario Giurlanda
+ */
+final class DataSetVerifier {
+
+    private static final long WINDOW_BYTES = WriteSettings.DEFAULT_MAP_WINDOW_BYTES;
+    private static final int SLICE_BYTES = 1024 * 1024;
+    /**
+     * Relative tolerance on sizes measured in compressed bytes, which are approximate
+     */
+    private static final double COMPRESSED_TOLERANCE = 0.01;
+
+    private final String dataSetName;
+    private final List<Path> stripeFolders;
+    private final int parallelism;
+    private RunMetrics.Phase metrics = RunMetrics.Phase.detached("verify");
+    private Throttle throttle = Throttle.unlimited();
+    private ForkJoinPool pool;
+    private long expectedFiles = -1;
+    private long expectedSizeByte;
+    private long expectedFileSizeByte;
+    private WriteSettings.SizeBasis sizeBasis = WriteSettings.SizeBasis.UNCOMPRESSED;
+    private List<Path> backupFolders;
+    private final Map<Integer, Optional<BackupManifest>> backupManifests = new HashMap<>();
+    private final Map<Integer, Optional<BlockArchive.Index>> backupArchives = new HashMap<>();
+
+    /**
+     * @param stripeFolders folders of the data set in each stripe, the one in the input folder first
+     */
+    DataSetVerifier(List<Path> stripeFolders, int parallelism) {
+        this.dataSetName = stripeFolders.get(0).getFileName().toString();
+        this.stripeFolders = stripeFolders;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Records each read file, with its size and latency, in the given phase.
+     *
+     * @return this verifier
+     */
+    DataSetVerifier metrics(RunMetrics.Phase metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    /**
+     * Runs the file tasks on a pool shared with other runs instead of a pool of its own, unless null.
+     *
+     * @return this verifier
+     */
+    DataSetVerifier pool(ForkJoinPool pool) {
+        this.pool = pool;
+        return this;
+    }
+
+    /**
+     * Limits the rate at which files and bytes are read.
+     *
+     * @return this verifier
+     */
+    DataSetVerifier throttle(Throttle throttle) {
+        this.throttle = throttle;
+        return this;
+    }
+
+    /**
+     * Audits the data set against the size it was generated with.
+     *
+     * @param files expected number of files
+     * @param sizeByte expected size of the data set
+     * @param fileSizeByte expected size of every file but the last one
+     * @param sizeBasis bytes the sizes of compressed files are measured in
+     * @return this verifier
+     */
+    DataSetVerifier expect(long files, long sizeByte, long fileSizeByte, WriteSettings.SizeBasis sizeBasis) {
+        this.expectedFiles = files;
+        this.expectedSizeByte = sizeByte;
+        this.expectedFileSizeByte = fileSizeByte;
+        this.sizeBasis = sizeBasis;
+        return this;
+    }
+
+    /**
+     * Compares each file with its copy in a backup.
+     *
+     * @param backupFolders folders of the data set in the backup of each stripe, as {@link #stripeFolders}
+     * @return this verifier
+     */
+    DataSetVerifier backup(List<Path> backupFolders) {
+        this.backupFolders = backupFolders;
+        return this;
+    }
+
+    /**
+     * Reads every file of the data set.
+     */
+    Result verify() {
+        DataSetManifest manifest = DataSetManifest.scan(stripeFolders);
+        List<Callable<FileReport>> tasks = new ArrayList<>();
+        for (long fileIndex : manifest.fileSizes().keySet()) {
+            Path file = manifest.file(fileIndex);
+            int stripe = manifest.stripe(fileIndex);
+            tasks.add(() -> verifyFile(fileIndex, file, stripe));
+        }
+        Result result = new Result(dataSetName);
+        TreeMap<Long, FileReport> reports = new TreeMap<>();
+        for (FileReport report : runAll(tasks)) {
+            reports.put(report.fileIndex, report);
+        }
+        CRC32 checksum = new CRC32();
+        ByteBuffer crcBytes = ByteBuffer.allocate(Long.BYTES);
+        LineStats dataSetLines = new LineStats();
+        long carriedBytes = 0;
+        for (FileReport report : reports.values()) {
+            result.files++;
+            result.diskBytes += report.diskSize;
+            result.contentBytes += report.lines.bytes;
+            result.lines += report.lines.lines;
+            result.problems.addAll(report.problems);
+            crcBytes.clear();
+            crcBytes.putLong(report.crc).flip();
+            checksum.update(crcBytes);
+            if (report.lines.lines == 0) {
+                carriedBytes += report.lines.bytes;
+                continue;
+            }
+            // the first line of a file is the end of the last line of the previous file if compacted
+            dataSetLines.line(carriedBytes + report.lines.firstLineBytes);
+            dataSetLines.add(report.lines);
+            carriedBytes = report.lines.lineBytes;
+        }
+        if (carriedBytes > 0) {
+            result.problems.add(format("last file of %s does not end with a new line", dataSetName));
+        }
+        result.shortLines = dataSetLines.shortLines;
+        result.checksum = checksum.getValue();
+        if (dataSetLines.longLines > 0) {
+            result.problems.add(format("%d lines longer than %d characters", dataSetLines.longLines,
+                    LineGenerator.MAX_LINE_LENGTH));
+        }
+        if (dataSetLines.emptyLines > 0) {
+            result.problems.add(format("%d empty lines", dataSetLines.emptyLines));
+        }
+        if (dataSetLines.invalidBytes > 0) {
+            result.problems.add(format("%d characters that are neither alphanumeric nor new lines",
+                    dataSetLines.invalidBytes));
+        }
+        if (expectedFiles >= 0) {
+            audit(reports, result);
+        }
+        return result;
+    }
+
+    private void audit(TreeMap<Long, FileReport> reports, Result result) {
+        if (reports.size() != expectedFiles) {
+            result.problems.add(format("%d files instead of %d", reports.size(), expectedFiles));
+        }
+        long expectedIndex = 0;
+        long totalSize = 0;
+        for (FileReport report : reports.values()) {
+            if (report.fileIndex != expectedIndex) {
+                result.problems.add(format("file %d found where file %d was expected", report.fileIndex,
+                        expectedIndex));
+                expectedIndex = report.fileIndex;
+            }
+            expectedIndex++;
+            long size = sizeInBasis(report);
+            totalSize += size;
+            boolean last = report.fileIndex == reports.lastKey();
+            if (last ? size > expectedFileSizeByte + tolerance(report, expectedFileSizeByte) :
+                    Math.abs(size - expectedFileSizeByte) > tolerance(report, expectedFileSizeByte)) {
+                result.problems.add(format("file %s has %d bytes, %s%d were expected", report.file, size,
+                        last ? "at most " : "", expectedFileSizeByte));
+            }
+        }
+        boolean compressed = sizeBasis == WriteSettings.SizeBasis.COMPRESSED &&
+                reports.values().stream().anyMatch(report -> report.compressed);
+        if (Math.abs(totalSize - expectedSizeByte) > (compressed ? expectedSizeByte * COMPRESSED_TOLERANCE : 0)) {
+            result.problems.add(format("data set has %d bytes instead of %d", totalSize, expectedSizeByte));
+        }
+    }
+
+    private long sizeInBasis(FileReport report) {
+        return report.compressed && sizeBasis == WriteSettings.SizeBasis.COMPRESSED ?
+                report.diskSize : report.lines.bytes;
+    }
+
+    private long tolerance(FileReport report, long size) {
+        return report.compressed && sizeBasis == WriteSettings.SizeBasis.COMPRESSED ?
+                (long) (size * COMPRESSED_TOLERANCE) : 0;
+    }
+
+    private FileReport verifyFile(long fileIndex, Path file, int stripe) throws IOException {
+        long startTime = System.nanoTime();
+        FileReport report = new FileReport(fileIndex, file, MasterDataSetSpec.isCompressed(file));
+        throttle.acquireFile();
+        CRC32 crc = new CRC32();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            report.diskSize = channel.size();
+            for (long position = 0; position < report.diskSize; position += WINDOW_BYTES) {
+                MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(WINDOW_BYTES, report.diskSize - position));
+                try {
+                    while (window.hasRemaining()) {
+                        int sliceSize = Math.min(SLICE_BYTES, window.remaining());
+                        throttle.acquireBytes(sliceSize);
+                        window.limit(window.position() + sliceSize);
+                        if (!report.compressed) {
+                            report.lines.scan(window);
+                        }
+                        crc.update(window);
+                        window.limit(window.capacity());
+                    }
+                } finally {
+                    FileUtils.unmap(window);
+                }
+            }
+        }
+        report.crc = crc.getValue();
+        if (report.compressed) {
+            inflate(file, report.lines);
+        }
+        if (backupFolders != null) {
+            compareWithBackup(report, stripe);
+        }
+        metrics.record(dataSetName, report.diskSize, System.nanoTime() - startTime);
+        return report;
+    }
+
+    private static void inflate(Path file, LineStats lines) throws IOException {
+        byte[] buffer = new byte[SLICE_BYTES];
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(file), SLICE_BYTES)) {
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                lines.scan(ByteBuffer.wrap(buffer, 0, read));
+            }
+        }
+    }
+
+    private void compareWithBackup(FileReport report, int stripe) {
+        Path backupFolder = backupFolders.get(stripe);
+        // the path of a file below its data set folder, which depends on the shard layout
+        String fileName = stripeFolders.get(stripe).relativize(report.file).toString();
+        Optional<BlockArchive.Index> archive = backupArchive(stripe);
+        if (archive.isPresent()) {
+            Optional<BlockArchive.FileEntry> entry = archive.get().files().stream()
+                    .filter(file -> file.path().equals(fileName))
+                    .findFirst();
+            if (!entry.isPresent()) {
+                report.problems.add(format("%s is not in backup archive of %s", report.file, backupFolder));
+            } else if (entry.get().size() != report.diskSize) {
+                report.problems.add(format("%s has %d bytes, %d in its backup", report.file, report.diskSize,
+                        entry.get().size()));
+            }
+            return;
+        }
+        Path backupFile = backupFolder.resolve(fileName);
+        Optional<BackupManifest.Entry> entry = backupManifest(stripe)
+                .flatMap(manifest -> manifest.get(dataSetName + "/" + fileName));
+        if (!Files.exists(backupFile)) {
+            report.problems.add(format("%s is not in backup %s", report.file, backupFolder));
+            return;
+        }
+        long backupSize = entry.map(BackupManifest.Entry::size).orElseGet(() -> FileUtils.sizeOf(backupFile));
+        if (backupSize != report.diskSize) {
+            report.problems.add(format("%s has %d bytes, %d in its backup", report.file, report.diskSize,
+                    backupSize));
+            return;
+        }
+        long backupCrc = entry.flatMap(BackupManifest.Entry::hash).orElseGet(() -> BackupManifest.hash(backupFile));
+        if (backupCrc != report.crc) {
+            report.problems.add(format("%s has CRC32 %x, %x in its backup", report.file, report.crc, backupCrc));
+        }
+    }
+
+    private synchronized Optional<BackupManifest> backupManifest(int stripe) {
+        return backupManifests.computeIfAbsent(stripe,
+                k -> BackupManifest.load(backupFolders.get(k).getParent()));
+    }
+
+    private synchronized Optional<BlockArchive.Index> backupArchive(int stripe) {
+        return backupArchives.computeIfAbsent(stripe, k -> {
+            Path folder = backupFolders.get(k);
+            Path archive = folder.resolveSibling(folder.getFileName() + BlockArchive.EXTENSION);
+            return Files.exists(archive) ? Optional.of(BlockArchive.readIndex(archive)) : Optional.empty();
+        });
+    }
+
+    private List<FileReport> runAll(List<Callable<FileReport>> tasks) {
+        ExecutorService executor = pool != null ? pool : Executors.newFixedThreadPool(parallelism);
+        try {
+            List<FileReport> reports = new ArrayList<>();
+            for (Future<FileReport> future : executor.invokeAll(tasks)) {
+                reports.add(future.get());
+            }
+            return reports;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(format("Interrupted while verifying %s", stripeFolders.get(0)), e);
+        } catch (ExecutionException e) {
+            Throwables.propagateIfPossible(e.getCause());
+            throw new RuntimeException(format("Cannot verify %s", stripeFolders.get(0)), e.getCause());
+        } finally {
+            if (executor != pool) {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Outcome of the verification of a data set.
+     */
+    static final class Result {
+        private final String dataSetName;
+        private final List<String> problems = new ArrayList<>();
+        private long files;
+        private long diskBytes;
+        private long contentBytes;
+        private long lines;
+        private long shortLines;
+        private long checksum;
+
+        private Result(String dataSetName) {
+            this.dataSetName = dataSetName;
+        }
+
+        String dataSetName() {
+            return dataSetName;
+        }
+
+        /**
+         * @return what does not match, empty if the data set is fine
+         */
+        List<String> problems() {
+            return problems;
+        }
+
+        long files() {
+            return files;
+        }
+
+        /**
+         * @return bytes read from disk
+         */
+        long diskBytes() {
+            return diskBytes;
+        }
+
+        /**
+         * @return bytes of lines, which differ from the bytes on disk for compressed files
+         */
+        long contentBytes() {
+            return contentBytes;
+        }
+
+        long lines() {
+            return lines;
+        }
+
+        long shortLines() {
+            return shortLines;
+        }
+
+        /**
+         * @return CRC32 of the CRC32 of each file in index order, which only depends on the content of the data set
+         */
+        long checksum() {
+            return checksum;
+        }
+    }
+
+    private static final class FileReport {
+        private final long fileIndex;
+        private final Path file;
+        private final boolean compressed;
+        private final LineStats lines = new LineStats();
+        private final List<String> problems = new ArrayList<>();
+        private long diskSize;
+        private long crc;
+
+        FileReport(long fileIndex, Path file, boolean compressed) {
+            this.fileIndex = fileIndex;
+            this.file = file;
+            this.compressed = compressed;
+        }
+    }
+
+    /**
+     * Line statistics of the content of a file, fed buffer by buffer. The first line of the file and the bytes after
+     * its last new line are kept aside, as they can belong to lines spanning two files.
+     */
+    private static final class LineStats {
+        private static final ThreadLocal<byte[]> SCAN_CHUNK = ThreadLocal.withInitial(() -> new byte[64 * 1024]);
+        private static final boolean[] ALPHANUMERIC = new boolean[256];
+
+        static {
+            for (int b = 0; b < ALPHANUMERIC.length; b++) {
+                ALPHANUMERIC[b] = (b >= '0' && b <= '9') || (b >= 'A' && b <= 'Z') || (b >= 'a' && b <= 'z');
+            }
+        }
+
+        private long bytes;
+        private long lines;
+        private long firstLineBytes;
+        /**
+         * Bytes of the line in progress
+         */
+        private long lineBytes;
+        private long shortLines;
+        private long longLines;
+        private long emptyLines;
+        private long invalidBytes;
+
+        /**
+         * Scans the remaining bytes of the buffer, without moving its position.
+         */
+        void scan(ByteBuffer buffer) {
+            ByteBuffer source = buffer.duplicate();
+            byte[] chunk = SCAN_CHUNK.get();
+            while (source.hasRemaining()) {
+                int length = Math.min(chunk.length, source.remaining());
+                source.get(chunk, 0, length);
+                scan(chunk, length);
+            }
+        }
+
+        private void scan(byte[] chunk, int length) {
+            long lineBytes = this.lineBytes;
+            long invalidBytes = this.invalidBytes;
+            for (int i = 0; i < length; i++) {
+                byte b = chunk[i];
+                lineBytes++;
+                if (b == LineGenerator.NEW_LINE) {
+                    if (lines == 0) {
+                        firstLineBytes = lineBytes;
+                    } else {
+                        line(lineBytes);
+                    }
+                    lines++;
+                    lineBytes = 0;
+                } else if (!ALPHANUMERIC[b & 0xff]) {
+                    invalidBytes++;
+                }
+            }
+            this.lineBytes = lineBytes;
+            this.invalidBytes = invalidBytes;
+            bytes += length;
+        }
+
+        /**
+         * Accounts a complete line, new line included.
+         */
+        void line(long length) {
+            if (length == 1) {
+                emptyLines++;
+            } else if (length > LineGenerator.MAX_LINE_BYTES) {
+                longLines++;
+            } else if (length <= LineGenerator.MIN_LINE_LENGTH) {
+                shortLines++;
+            }
+        }
+
+        /**
+         * Adds the statistics of the complete lines of a file but its first one.
+         */
+        void add(LineStats other) {
+            shortLines += other.shortLines;
+            longLines += other.longLines;
+            emptyLines += other.emptyLines;
+            invalidBytes += other.invalidBytes;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package org.trinakria.masterdataset;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Opens files for direct I/O, which moves data between the disk and aligned user buffers without going through the
+ * page cache, so that writing or copying data sets larger than memory does not evict the pages other processes of the
+ * host rely on.
+ *
+ * Direct I/O goes through {@code com.sun.nio.file.ExtendedOpenOption.DIRECT}, looked up reflectively as it only
+ * exists from JDK 10, like {@link ByteBuffer} alignment and {@link FileStore} block sizes. Every transfer must start
+ * at an offset and have a length that are multiples of the block size of the file store, from a buffer aligned
+ * alike: writers pad the last block of a file and truncate the file to its size afterwards.
+ *
+ * When the JDK or the file system does not support it, for instance tmpfs, {@link #open} gives nothing and callers
+ * write through the page cache, then {@link #release} the file: the JDK has no way to drop cached pages, so they are
+ * forced to disk, which leaves them clean and the first to be reclaimed under memory pressure.
+ *
+ * @author Mario Giurlanda
+ */
+final class DirectIo {
+
+    static final int BUFFER_SIZE = 1024 * 1024;
+    /**
+     * Alignment of the buffers, block sizes must divide it
+     */
+    private static final int MAX_ALIGNMENT = 64 * 1024;
+    private static final OpenOption DIRECT = directOption();
+    private static final Method ALIGNED_SLICE = method(ByteBuffer.class, "alignedSlice", int.class);
+    private static final Method BLOCK_SIZE = method(FileStore.class, "getBlockSize");
+    private static final ThreadLocal<ByteBuffer> BUFFER = ThreadLocal.withInitial(DirectIo::allocate);
+    private static final AtomicBoolean FALLBACK_REPORTED = new AtomicBoolean();
+
+    private DirectIo() {
+    }
+
+    /**
+     * @return true if the JDK supports direct I/O, file systems may not
+     */
+    static boolean isSupported() {
+        return DIRECT != null && ALIGNED_SLICE != null && BLOCK_SIZE != null;
+    }
+
+    /**
+     * Opens a file for direct I/O with the given options.
+     *
+     * @return the channel and the block size transfers must be aligned to, empty if direct I/O is not supported
+     */
+    static Optional<Channel> open(Path file, Set<? extends OpenOption> options) {
+        if (!isSupported()) {
+            reportFallback(file, "the JDK does not support it");
+            return Optional.empty();
+        }
+        int blockSize;
+        try {
+            Path existing = Files.exists(file) ? file : file.toAbsolutePath().getParent();
+            blockSize = (int) (long) BLOCK_SIZE.invoke(Files.getFileStore(existing));
+        } catch (IOException | ReflectiveOperationException | RuntimeException e) {
+            reportFallback(file, e.toString());
+            return Optional.empty();
+        }
+        if (blockSize <= 0 || MAX_ALIGNMENT % blockSize != 0) {
+            reportFallback(file, "block size " + blockSize + " is not supported");
+            return Optional.empty();
+        }
+        Set<OpenOption> directOptions = new HashSet<>(options);
+        directOptions.add(DIRECT);
+        try {
+            return Optional.of(new Channel(FileChannel.open(file, directOptions), blockSize));
+        } catch (IOException | UnsupportedOperationException e) {
+            reportFallback(file, e.toString());
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Forces a file written through the page cache, so that its pages are clean and reclaimed first.
+     */
+    static void release(FileChannel channel) throws IOException {
+        channel.force(false);
+    }
+
+    /**
+     * @return buffer of {@link #BUFFER_SIZE} bytes of the calling thread, aligned for direct I/O
+     */
+    static ByteBuffer buffer() {
+        return BUFFER.get();
+    }
+
+    private static ByteBuffer allocate() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE + MAX_ALIGNMENT);
+        try {
+            ByteBuffer aligned = (ByteBuffer) ALIGNED_SLICE.invoke(buffer, MAX_ALIGNMENT);
+            aligned.limit(BUFFER_SIZE);
+            return aligned.slice();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot align buffer for direct I/O", e);
+        }
+    }
+
+    private static void reportFallback(Path file, String reason) {
+        if (FALLBACK_REPORTED.compareAndSet(false, true)) {
+            System.err.format("Direct I/O is not available for %s (%s), writing through the page cache%n", file,
+                    reason);
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static OpenOption directOption() {
+        try {
+            return (OpenOption) Enum.valueOf((Class<Enum>) Class.forName("com.sun.nio.file.ExtendedOpenOption"),
+                    "DIRECT");
+        } catch (ClassNotFoundException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static Method method(Class<?> type, String name, Class<?>... parameterTypes) {
+        try {
+            return type.getMethod(name, parameterTypes);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * A file opened for direct I/O.
+     */
+    static final class Channel implements AutoCloseable {
+        private final FileChannel channel;
+        private final int blockSize;
+
+        private Channel(FileChannel channel, int blockSize) {
+            this.channel = channel;
+            this.blockSize = blockSize;
+        }
+
+        FileChannel channel() {
+            return channel;
+        }
+
+        int blockSize() {
+            return blockSize;
+        }
+
+        /**
+         * @return true if transfers can start at the given position
+         */
+        boolean isAligned(long position) {
+            return position % blockSize == 0;
+        }
+
+        /**
+         * Writes the remaining bytes of an aligned buffer at an aligned position. The bytes are padded to a whole
+         * number of blocks, so the write of the last bytes of a file must be followed by a {@link FileChannel#truncate}
+         * to its size.
+         *
+         * @return number of bytes of the buffer written, without padding
+         */
+        int write(ByteBuffer buffer, long position) throws IOException {
+            int length = buffer.remaining();
+            int end = buffer.position() + (length + blockSize - 1) / blockSize * blockSize;
+            buffer.limit(end);
+            for (int i = buffer.position() + length; i < end; i++) {
+                buffer.put(i, (byte) 0);
+            }
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            return length;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package org.trinakria.masterdataset;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import static java.lang.String.format;
+
+/**
+ * Makes finished files durable, so that a run declared complete does not leave empty or truncated files behind after
+ * a crash of the host.
+ *
+ * A writer commits each file once it is complete and renamed to its final name. Committing a file forces its content
+ * to disk, then the folders from its parent up to a given root, so that the names of new files and folders survive
+ * too. How it is done depends on the {@link Durability}:
+ * <ul>
+ *     <li>{@link Durability#NONE} leaves it to the operating system, as before</li>
+ *     <li>{@link Durability#PER_FILE} forces each file and its folders before the writer goes on</li>
+ *     <li>{@link Durability#BATCHED} queues the file to a background thread, which forces the files queued meanwhile,
+ *     up to {@link #MAX_BATCH_FILES} at once, then each of their folders once, as a group commit: writers do not
+ *     stall and a folder holding many new files is forced once per batch rather than once per file</li>
+ * </ul>
+ *
+ * An optional action runs once the file is durable, for instance to journal it as done. A run must {@link #await}
+ * its syncer before it records the files as complete.
+ *
+ * @author Mario Giurlanda
+ */
+final class FileSyncer implements AutoCloseable {
+
+    /**
+     * When files are forced to disk.
+     */
+    enum Durability {
+        /**
+         * Never, the operating system writes files back at its own pace
+         */
+        NONE,
+        /**
+         * Each file, by the thread that wrote it
+         */
+        PER_FILE,
+        /**
+         * Groups of files, by a background thread
+         */
+        BATCHED
+    }
+
+    static final int MAX_BATCH_FILES = 1024;
+    private static final Runnable NOTHING = () -> { };
+
+    private final Durability durability;
+    private final BlockingQueue<Commit> queue = new LinkedBlockingQueue<>();
+    private Thread syncer;
+    private long filesCommitted;
+    private long filesSynced;
+    private long batches;
+    private Exception failure;
+
+    private FileSyncer(Durability durability) {
+        this.durability = durability;
+    }
+
+    static FileSyncer of(Durability durability) {
+        return new FileSyncer(durability);
+    }
+
+    Durability durability() {
+        return durability;
+    }
+
+    /**
+     * Commits a complete file, forcing it and the folders from its parent up to {@code root}.
+     */
+    void commit(Path file, Path root) {
+        commit(file, root, NOTHING);
+    }
+
+    /**
+     * Commits a complete file, forcing it and the folders from its parent up to {@code root}, then runs
+     * {@code onDurable}.
+     */
+    void commit(Path file, Path root, Runnable onDurable) {
+        Commit commit = new Commit(file, root, onDurable);
+        switch (durability) {
+            case NONE: {
+                onDurable.run();
+                break;
+            }
+            case PER_FILE: {
+                try {
+                    sync(Collections.singletonList(commit));
+                } catch (IOException e) {
+                    throw new RuntimeException(format("Cannot sync %s to disk", file), e);
+                }
+                synchronized (this) {
+                    filesCommitted++;
+                    filesSynced++;
+                    batches++;
+                }
+                break;
+            }
+            case BATCHED: {
+                synchronized (this) {
+                    checkFailure();
+                    if (syncer == null) {
+                        syncer = new Thread(this::run, "file-syncer");
+                        syncer.setDaemon(true);
+                        syncer.start();
+                    }
+                    filesCommitted++;
+                }
+                queue.add(commit);
+                break;
+            }
+            default: {
+                throw new IllegalArgumentException(format("Unknown durability %s", durability));
+            }
+        }
+    }
+
+    /**
+     * Blocks until every file committed so far is durable.
+     *
+     * @throws RuntimeException if a file or folder could not be forced, or its action failed
+     */
+    synchronized void await() {
+        while (filesSynced < filesCommitted && failure == null) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while waiting for files to be synced", e);
+            }
+        }
+        checkFailure();
+    }
+
+    synchronized long filesSynced() {
+        return filesSynced;
+    }
+
+    synchronized long batches() {
+        return batches;
+    }
+
+    /**
+     * Stops the background thread, files still queued are not synced.
+     */
+    @Override
+    public synchronized void close() {
+        if (syncer != null) {
+            syncer.interrupt();
+            syncer = null;
+        }
+    }
+
+    private void checkFailure() {
+        if (failure != null) {
+            throw new RuntimeException("Cannot sync files to disk", failure);
+        }
+    }
+
+    private void run() {
+        List<Commit> batch = new ArrayList<>();
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch, MAX_BATCH_FILES - 1);
+            Exception error = null;
+            try {
+                sync(batch);
+            } catch (IOException | RuntimeException e) {
+                error = e;
+            }
+            synchronized (this) {
+                filesSynced += batch.size();
+                batches++;
+                if (error != null && failure == null) {
+                    failure = error;
+                }
+                notifyAll();
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Forces the files of a batch, then each of their folders once, then runs their actions.
+     */
+    private static void sync(List<Commit> batch) throws IOException {
+        Set<Path> folders = new LinkedHashSet<>();
+        for (Commit commit : batch) {
+            try (FileChannel channel = FileChannel.open(commit.file, StandardOpenOption.READ)) {
+                channel.force(true);
+            }
+            for (Path folder = commit.file.getParent(); folder != null; folder = folder.getParent()) {
+                folders.add(folder);
+                if (folder.equals(commit.root) || !folder.startsWith(commit.root)) {
+                    break;
+                }
+            }
+        }
+        for (Path folder : folders) {
+            try (FileChannel channel = FileChannel.open(folder, StandardOpenOption.READ)) {
+                channel.force(true);
+            } catch (AccessDeniedException e) {
+                // folders cannot be opened on some platforms, where their entries are durable with their files
+            }
+        }
+        batch.forEach(commit -> commit.onDurable.run());
+    }
+
+    @Override
+    public String toString() {
+        return durability.name().toLowerCase().replace('_', '-');
+    }
+
+    private static final class Commit {
+        private final Path file;
+        private final Path root;
+        private final Runnable onDurable;
+
+        Commit(Path file, Path root, Runnable onDurable) {
+            this.file = file;
+            this.root = root;
+            this.onDurable = onDurable;
+        }
+    }
+}
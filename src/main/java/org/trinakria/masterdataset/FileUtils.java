@@ -1,21 +1,31 @@
 package org.trinakria.masterdataset;
 
-import org.apache.commons.lang3.RandomStringUtils;
-
-import java.io.BufferedWriter;
-import java.io.File;
 import java.io.IOException;
-import java.nio.charset.Charset;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.*;
-import java.nio.file.attribute.BasicFileAttributes;
-import java.nio.file.attribute.FileTime;
-import java.util.Comparator;
-import java.util.EnumSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import static java.lang.String.format;
-import static java.nio.file.FileVisitResult.CONTINUE;
-import static java.nio.file.FileVisitResult.SKIP_SUBTREE;
 import static java.nio.file.StandardCopyOption.COPY_ATTRIBUTES;
 import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
 
@@ -26,23 +36,206 @@ import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
  */
 public class FileUtils {
 
+    private static final int WRITE_BUFFER_SIZE = 256 * 1024;
+    /**
+     * Max number of bytes of a mapped window filled at once, so that throttling stays smooth with large windows
+     */
+    private static final int MAP_FILL_SIZE = 1024 * 1024;
+    private static final ThreadLocal<ByteBuffer> WRITE_BUFFER =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE));
+    private static final Consumer<ByteBuffer> UNMAPPER = unmapper();
+
+    /**
+     * Writes exactly {@code fileSizeByteLimit} bytes of random lines (see {@link LineGenerator}) to the given file
+     * with the default {@link WriteSettings} and a random seed.
+     */
     static Path writeFile(Path filePath, long fileSizeByteLimit, OpenOption... openOptions) {
-        long bytesOutput = 0;
+        return writeFile(filePath, fileSizeByteLimit, ThreadLocalRandom.current().nextLong(), WriteSettings.defaults(),
+                openOptions);
+    }
+
+    /**
+     * Writes exactly {@code fileSizeByteLimit} bytes of random lines (see {@link LineGenerator}) to the given file.
+     * Without open options the file is created or truncated, otherwise the given options are used, for instance
+     * {@link StandardOpenOption#APPEND} to grow an existing file. The content is fully determined by {@code seed}.
+     * Writes are paced by the {@link Throttle} of the settings.
+     *
+     * With {@link WriteSettings.Compression#GZIP} the lines are compressed by {@link BlockGzip}, and
+     * {@code fileSizeByteLimit} is either the exact number of bytes of lines or the approximate number of bytes
+     * written, depending on the {@link WriteSettings.SizeBasis} of the settings.
+     *
+     * With {@link WriteSettings#directIo()} a streamed file is written around the page cache through
+     * {@link DirectIo}, and any other file is released from it once written.
+     */
+    static Path writeFile(Path filePath, long fileSizeByteLimit, long seed, WriteSettings settings,
+                          OpenOption... openOptions) {
+        Set<OpenOption> options = new HashSet<>(Arrays.asList(openOptions));
+        if (options.isEmpty()) {
+            options.add(StandardOpenOption.CREATE);
+            options.add(StandardOpenOption.TRUNCATE_EXISTING);
+        }
+        options.add(StandardOpenOption.WRITE);
+        Throttle throttle = settings.throttle();
+        throttle.acquireFile();
         try {
-            try (BufferedWriter writer = Files.newBufferedWriter(filePath, Charset.defaultCharset(), openOptions)) {
-                while(bytesOutput <= fileSizeByteLimit)  {
-                    String line = RandomStringUtils.randomAlphanumeric(100, 150);
-                    writer.write(line);
-                    writer.newLine();
-                    bytesOutput += line.length();
+            if (settings.compression() == WriteSettings.Compression.GZIP) {
+                long linesByte = settings.sizeBasis() == WriteSettings.SizeBasis.COMPRESSED ?
+                        BlockGzip.uncompressedSizeFor(fileSizeByteLimit) : fileSizeByteLimit;
+                try (FileChannel channel = FileChannel.open(filePath, options)) {
+                    BlockGzip.write(channel, new LineGenerator(linesByte, seed), settings.compressors(), throttle,
+                            options.contains(StandardOpenOption.APPEND));
+                    if (settings.directIo()) {
+                        DirectIo.release(channel);
+                    }
                 }
                 return filePath;
             }
+            LineGenerator generator = new LineGenerator(fileSizeByteLimit, seed);
+            switch (settings.strategy()) {
+                case STREAM: {
+                    if (settings.directIo() && !options.contains(StandardOpenOption.APPEND)) {
+                        streamFileDirect(filePath, generator, throttle, options);
+                    } else {
+                        streamFile(filePath, generator, throttle, options, settings.directIo());
+                    }
+                    break;
+                }
+                case MAPPED: {
+                    mapFile(filePath, fileSizeByteLimit, generator, settings.mapWindowBytes(), throttle, options,
+                            settings.directIo());
+                    break;
+                }
+                default: {
+                    throw new IllegalArgumentException(format("Unknown write strategy %s", settings.strategy()));
+                }
+            }
+            return filePath;
         } catch (IOException e) {
             throw new RuntimeException("Cannot create file " + filePath, e);
         }
     }
 
+    private static void streamFile(Path filePath, LineGenerator generator, Throttle throttle,
+                                   Set<OpenOption> options, boolean release) throws IOException {
+        ByteBuffer buffer = WRITE_BUFFER.get();
+        try (FileChannel channel = FileChannel.open(filePath, options)) {
+            while (generator.hasRemaining()) {
+                buffer.clear();
+                generator.fill(buffer);
+                buffer.flip();
+                throttle.acquireBytes(buffer.remaining());
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            if (release) {
+                DirectIo.release(channel);
+            }
+        }
+    }
+
+    /**
+     * Streams the file through an aligned buffer around the page cache, padding its last block and truncating it to
+     * its size afterwards. Falls back to {@link #streamFile} if the file system does not support direct I/O.
+     */
+    private static void streamFileDirect(Path filePath, LineGenerator generator, Throttle throttle,
+                                         Set<OpenOption> options) throws IOException {
+        Optional<DirectIo.Channel> direct = DirectIo.open(filePath, options);
+        if (!direct.isPresent()) {
+            streamFile(filePath, generator, throttle, options, true);
+            return;
+        }
+        ByteBuffer buffer = DirectIo.buffer();
+        try (DirectIo.Channel channel = direct.get()) {
+            long position = 0;
+            while (generator.hasRemaining()) {
+                buffer.clear();
+                generator.fill(buffer);
+                buffer.flip();
+                throttle.acquireBytes(buffer.remaining());
+                position += channel.write(buffer, position);
+            }
+            if (!channel.isAligned(position)) {
+                channel.channel().truncate(position);
+            }
+        }
+    }
+
+    /**
+     * Extends the file to its final size with a single write and then fills it through memory-mapped windows of at
+     * most {@code windowBytes} bytes, each one unmapped as soon as it is filled.
+     */
+    private static void mapFile(Path filePath, long sizeByte, LineGenerator generator, long windowBytes,
+                                Throttle throttle, Set<OpenOption> options, boolean release) throws IOException {
+        // a mapped channel must be readable and cannot be opened in append mode
+        boolean append = options.remove(StandardOpenOption.APPEND);
+        options.add(StandardOpenOption.READ);
+        try (FileChannel channel = FileChannel.open(filePath, options)) {
+            long position = append ? channel.size() : 0;
+            long end = position + sizeByte;
+            if (sizeByte > 0 && channel.size() < end) {
+                channel.write(ByteBuffer.wrap(new byte[1]), end - 1);
+            }
+            while (position < end) {
+                long windowSize = Math.min(windowBytes, end - position);
+                MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_WRITE, position, windowSize);
+                try {
+                    while (window.hasRemaining()) {
+                        int fillSize = Math.min(MAP_FILL_SIZE, window.remaining());
+                        throttle.acquireBytes(fillSize);
+                        window.limit(window.position() + fillSize);
+                        generator.fill(window);
+                        window.limit(window.capacity());
+                    }
+                } finally {
+                    unmap(window);
+                }
+                position += windowSize;
+            }
+            if (release) {
+                DirectIo.release(channel);
+            }
+        }
+    }
+
+    /**
+     * Releases a mapped buffer without waiting for it to be garbage collected, so that the mapped memory stays
+     * bounded by the window size. It is left to the garbage collector if the JDK does not allow it.
+     */
+    static void unmap(MappedByteBuffer buffer) {
+        UNMAPPER.accept(buffer);
+    }
+
+    private static Consumer<ByteBuffer> unmapper() {
+        try {
+            // Java 9+
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            Object unsafe = theUnsafe.get(null);
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            return buffer -> {
+                try {
+                    invokeCleaner.invoke(unsafe, buffer);
+                } catch (ReflectiveOperationException ignored) {
+                    // left to the garbage collector
+                }
+            };
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Java 8
+            return buffer -> {
+                try {
+                    Method cleaner = buffer.getClass().getMethod("cleaner");
+                    cleaner.setAccessible(true);
+                    Object bufferCleaner = cleaner.invoke(buffer);
+                    bufferCleaner.getClass().getMethod("clean").invoke(bufferCleaner);
+                } catch (ReflectiveOperationException | RuntimeException ignored) {
+                    // left to the garbage collector
+                }
+            };
+        }
+    }
+
     static void createDirIfNotExist(Path path) {
         if (Files.notExists(path)) {
             try {
@@ -96,85 +289,168 @@ public class FileUtils {
      * parameter determines if file attributes should be copied/preserved.
      */
     static void copyFileTree(Path source, Path target, boolean preserve) {
-        EnumSet<FileVisitOption> opts = EnumSet.of(FileVisitOption.FOLLOW_LINKS);
-        TreeCopier tc = new TreeCopier(source, target, preserve);
-        try {
-            Files.walkFileTree(source, opts, Integer.MAX_VALUE, tc);
-        } catch (IOException e) {
-            throw new RuntimeException(format("Unable to copy: %s to %s", source, target), e);
-        }
+        copyFileTree(source, target, preserve, 1);
     }
 
-    private static class TreeCopier implements FileVisitor<Path> {
-        private final Path source;
-        private final Path target;
-        private final boolean preserve;
-
-        TreeCopier(Path source, Path target, boolean preserve) {
-            this.source = source;
-            this.target = target;
-            this.preserve = preserve;
-        }
-
-        @Override
-        public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
-            // before visiting entries in a directory we copy the directory
-            // (okay if directory already exists).
-            CopyOption[] options = (preserve) ?
-                    new CopyOption[] { COPY_ATTRIBUTES } : new CopyOption[0];
+    /**
+     * Copy source file tree to target location with {@code parallelism} threads, see {@link ParallelTreeCopier}.
+     * The {@code preserve} parameter determines if file attributes should be copied/preserved.
+     *
+     * @return number of bytes copied
+     */
+    static long copyFileTree(Path source, Path target, boolean preserve, int parallelism) {
+        return new ParallelTreeCopier(source, target, preserve, parallelism).copy();
+    }
 
-            Path newdir = target.resolve(source.relativize(dir));
-            try {
-                Files.copy(dir, newdir, options);
-            } catch (FileAlreadyExistsException x) {
-                // ignore
-            } catch (IOException x) {
-                System.err.format("Unable to create: %s: %s%n", newdir, x);
-                return SKIP_SUBTREE;
+    /**
+     * Archives source file tree to target location: each folder directly under {@code source} is stored as a
+     * {@link BlockArchive} named after it, files directly under {@code source} are copied as they are.
+     *
+     * Blocks are compressed on the given pool. Each folder is recorded in the given metrics phase. Files are read at
+     * the pace allowed by the throttle.
+     *
+     * @return number of bytes archived or copied, before compression
+     */
+    static long archiveFileTree(Path source, Path target, ForkJoinPool compressors, RunMetrics.Phase metrics,
+                                Throttle throttle) {
+        createDirIfNotExist(target);
+        long bytesArchived = 0;
+        try (Stream<Path> stream = Files.list(source)) {
+            for (Path path : (Iterable<Path>) stream.sorted()::iterator) {
+                if (Files.isDirectory(path)) {
+                    Path archive = target.resolve(path.getFileName() + BlockArchive.EXTENSION);
+                    long startTime = System.nanoTime();
+                    BlockArchive.Index index = BlockArchive.write(path, archive, compressors, throttle);
+                    metrics.record(path.getFileName().toString(), index.uncompressedSize(),
+                            System.nanoTime() - startTime);
+                    System.out.format("Archived %s: %d files, %dMB compressed to %dMB%n", path, index.files().size(),
+                            index.uncompressedSize() / MasterDataSetSpec.ONE_MB,
+                            index.compressedSize() / MasterDataSetSpec.ONE_MB);
+                    bytesArchived += index.uncompressedSize();
+                } else {
+                    copyFile(path, target.resolve(path.getFileName()), false);
+                    bytesArchived += sizeOf(path);
+                }
             }
-            return CONTINUE;
-        }
-
-        @Override
-        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
-            copyFile(file, target.resolve(source.relativize(file)), preserve);
-            return CONTINUE;
+        } catch (IOException e) {
+            throw new RuntimeException(format("Unable to archive: %s to %s", source, target), e);
         }
+        return bytesArchived;
+    }
 
-        @Override
-        public FileVisitResult postVisitDirectory(Path dir, IOException exc) {
-            // fix up modification time of directory when done
-            if (exc == null && preserve) {
-                Path newdir = target.resolve(source.relativize(dir));
-                try {
-                    FileTime time = Files.getLastModifiedTime(dir);
-                    Files.setLastModifiedTime(newdir, time);
-                } catch (IOException x) {
-                    System.err.format("Unable to copy all attributes to: %s: %s%n", newdir, x);
+    /**
+     * Restores a file tree archived by {@link #archiveFileTree} to target location, on the given pool shared with other
+     * runs or, if null, on {@code parallelism} threads of its own.
+     * Only the entries whose name, relative to {@code source}, is accepted by the filter are restored. Files that
+     * already have the size and modification time recorded in the archive are skipped, files of a restored folder
+     * that are not in its archive are removed. Each extracted file is recorded in the given metrics phase. Files are
+     * written at the pace allowed by the throttle.
+     *
+     * @return number of bytes extracted or copied
+     */
+    static long extractArchiveTree(Path source, Path target, Predicate<Path> filter, int parallelism,
+                                   ForkJoinPool pool, RunMetrics.Phase metrics, Throttle throttle) {
+        createDirIfNotExist(target);
+        List<Callable<Long>> tasks = new ArrayList<>();
+        try (Stream<Path> stream = Files.list(source)) {
+            for (Path path : (Iterable<Path>) stream.sorted()::iterator) {
+                String fileName = path.getFileName().toString();
+                if (fileName.endsWith(BlockArchive.EXTENSION)) {
+                    Path folderName = Paths.get(fileName.substring(0, fileName.length() - BlockArchive.EXTENSION.length()));
+                    if (!filter.test(folderName)) {
+                        continue;
+                    }
+                    Path folder = target.resolve(folderName);
+                    BlockArchive.Index index = BlockArchive.readIndex(path);
+                    Set<Path> archived = new HashSet<>();
+                    for (BlockArchive.FileEntry entry : index.files()) {
+                        Path file = folder.resolve(entry.path());
+                        archived.add(file);
+                        tasks.add(() -> {
+                            if (ParallelTreeCopier.upToDate(file,
+                                    new BackupManifest.Entry(entry.size(), entry.modifiedMillis(), null))) {
+                                return 0L;
+                            }
+                            long startTime = System.nanoTime();
+                            Files.createDirectories(file.getParent());
+                            BlockArchive.extract(path, index, entry, file, throttle);
+                            metrics.record(folderName.toString(), entry.size(), System.nanoTime() - startTime);
+                            return entry.size();
+                        });
+                    }
+                    if (Files.exists(folder)) {
+                        try (Stream<Path> existing = Files.walk(folder)) {
+                            existing.filter(Files::isRegularFile)
+                                    .filter(file -> !archived.contains(file))
+                                    .forEach(file -> tasks.add(() -> {
+                                        Files.delete(file);
+                                        return 0L;
+                                    }));
+                        }
+                    }
+                } else if (Files.isRegularFile(path) && filter.test(path.getFileName())) {
+                    Path file = target.resolve(path.getFileName());
+                    tasks.add(() -> {
+                        long size = sizeOf(path);
+                        throttle.acquireFile();
+                        throttle.acquireBytes(size);
+                        Files.copy(path, file, REPLACE_EXISTING, COPY_ATTRIBUTES);
+                        return size;
+                    });
                 }
             }
-            return CONTINUE;
+        } catch (IOException e) {
+            throw new RuntimeException(format("Unable to restore: %s to %s", source, target), e);
         }
+        ExecutorService executor = pool != null ? pool : Executors.newFixedThreadPool(parallelism);
+        try {
+            long bytesRestored = 0;
+            for (Future<Long> future : executor.invokeAll(tasks)) {
+                bytesRestored += future.get();
+            }
+            return bytesRestored;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(format("Interrupted while restoring: %s to %s", source, target), e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(format("Unable to restore: %s to %s", source, target), e.getCause());
+        } finally {
+            if (executor != pool) {
+                executor.shutdownNow();
+            }
+        }
+    }
 
-        @Override
-        public FileVisitResult visitFileFailed(Path file, IOException exc) {
-            if (exc instanceof FileSystemLoopException) {
-                System.err.println("cycle detected: " + file);
-            } else {
-                System.err.format("Unable to copy: %s: %s%n", file, exc);
+    /**
+     * Deletes the empty folders below the given one, deepest first, such as the shard folders left empty once their
+     * files have been moved or deleted (see {@link ShardLayout}). The given folder itself is kept.
+     */
+    static void deleteEmptyFolders(Path folder) throws IOException {
+        List<Path> folders;
+        try (Stream<Path> stream = Files.walk(folder)) {
+            folders = stream.filter(path -> !path.equals(folder) && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS))
+                    .collect(Collectors.toList());
+        }
+        for (int i = folders.size() - 1; i >= 0; i--) {
+            try {
+                Files.delete(folders.get(i));
+            } catch (DirectoryNotEmptyException e) {
+                // still holds other files
             }
-            return CONTINUE;
         }
     }
 
+    /**
+     * Deletes a file tree, see {@link ParallelTreeDeleter}.
+     *
+     * @throws IOException if any file or directory of the tree cannot be deleted
+     */
     static void deepDelete(Path path) throws IOException {
-        if (Files.notExists(path)) {
-            return;
+        ParallelTreeDeleter deleter = new ParallelTreeDeleter(path, 1);
+        if (!deleter.delete()) {
+            List<String> failures = deleter.failures();
+            throw new IOException(format("Cannot delete %d paths of %s, first one %s", failures.size(), path,
+                    failures.get(0)));
         }
-        Files.walk(path, FileVisitOption.FOLLOW_LINKS)
-                .sorted(Comparator.reverseOrder())
-                .map(Path::toFile)
-                .peek(System.out::println)
-                .forEach(File::delete);
     }
 }
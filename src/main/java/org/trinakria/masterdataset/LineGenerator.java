@@ -0,0 +1,143 @@
+package org.trinakria.masterdataset;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.SplittableRandom;
+
+/**
+ * Generates the content of a data set file: random alphanumeric lines of {@value #MIN_LINE_LENGTH} to
+ * {@value #MAX_LINE_LENGTH} characters, each one terminated by a new line.
+ *
+ * Lines are written as bytes straight into a caller provided buffer, so no {@link String} is created and no charset
+ * encoding takes place. The generator keeps track of the bytes still to be produced, new lines included, so the
+ * output is exactly as large as requested. To land on the exact size the last line, or the last two lines when the
+ * remaining bytes cannot be split into full lines, can be shorter than {@value #MIN_LINE_LENGTH} characters.
+ *
+ * Each generator draws from its own {@link SplittableRandom} stream. Streams are derived from a master seed, the data
+ * set name and the file index (see {@link #fileSeed}), so a file has the same content whatever thread, machine or
+ * write strategy produces it, and writers never contend on a shared random generator.
+ *
+ * @author Mario Giurlanda
+ */
+class LineGenerator {
+
+    static final int MIN_LINE_LENGTH = 100;
+    static final int MAX_LINE_LENGTH = 149;
+    static final int MAX_LINE_BYTES = MAX_LINE_LENGTH + 1;
+    static final byte NEW_LINE = '\n';
+
+    private static final int MIN_LINE_BYTES = MIN_LINE_LENGTH + 1;
+    private static final byte[] ALPHANUMERIC =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789".getBytes(StandardCharsets.US_ASCII);
+    private static final int BITS_PER_CHAR = 6;
+    private static final int CHAR_MASK = (1 << BITS_PER_CHAR) - 1;
+    private static final int CHARS_PER_LONG = Long.SIZE / BITS_PER_CHAR;
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final byte[] line = new byte[MAX_LINE_BYTES];
+    private int lineLength;
+    private int linePosition;
+    private long remainingBytes;
+    private long lines;
+    private final SplittableRandom random;
+
+    LineGenerator(long sizeByte, long seed) {
+        this.remainingBytes = sizeByte;
+        this.random = new SplittableRandom(seed);
+    }
+
+    /**
+     * Derives the seed of the random stream used to write a file of a data set.
+     *
+     * @param masterSeed seed of the whole master data set
+     * @param dataSetName name of the data set the file belongs to
+     * @param fileIndex index of the file in the data set
+     * @param offset position in the file where the generated content starts, 0 unless appending
+     * @return seed of the stream
+     */
+    static long fileSeed(long masterSeed, String dataSetName, long fileIndex, long offset) {
+        long nameHash = FNV_OFFSET_BASIS;
+        for (byte b : dataSetName.getBytes(StandardCharsets.UTF_8)) {
+            nameHash = (nameHash ^ (b & 0xff)) * FNV_PRIME;
+        }
+        long seed = mix64(masterSeed);
+        seed = mix64(seed + GOLDEN_GAMMA * nameHash);
+        seed = mix64(seed + GOLDEN_GAMMA * (fileIndex + 1));
+        return mix64(seed + GOLDEN_GAMMA * offset);
+    }
+
+    /**
+     * SplitMix64 finalizer, as used by {@link SplittableRandom} to derive split streams.
+     */
+    private static long mix64(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * @return true if there are still bytes to be generated
+     */
+    boolean hasRemaining() {
+        return remainingBytes > 0 || linePosition < lineLength;
+    }
+
+    /**
+     * @return number of lines started so far
+     */
+    long lines() {
+        return lines;
+    }
+
+    /**
+     * Fills the buffer until either the buffer is full or all bytes have been generated. A line that does not fit
+     * in the buffer is continued by the next call.
+     *
+     * @param buffer buffer to be filled from its current position
+     * @return number of bytes put in the buffer
+     */
+    int fill(ByteBuffer buffer) {
+        int written = 0;
+        while (buffer.hasRemaining() && hasRemaining()) {
+            if (linePosition == lineLength) {
+                lineLength = nextLine();
+                linePosition = 0;
+                lines++;
+                remainingBytes -= lineLength;
+            }
+            int length = Math.min(buffer.remaining(), lineLength - linePosition);
+            buffer.put(line, linePosition, length);
+            linePosition += length;
+            written += length;
+        }
+        return written;
+    }
+
+    private int nextLine() {
+        int lineBytes;
+        if (remainingBytes <= MAX_LINE_BYTES) {
+            lineBytes = (int) remainingBytes;
+        } else {
+            lineBytes = random.nextInt(MIN_LINE_BYTES, MAX_LINE_BYTES + 1);
+            if (remainingBytes - lineBytes < MIN_LINE_BYTES) {
+                // leave room for a full last line
+                lineBytes = (int) (remainingBytes - MIN_LINE_BYTES);
+            }
+        }
+        int chars = lineBytes - 1;
+        int i = 0;
+        while (i < chars) {
+            long bits = random.nextLong();
+            for (int j = 0; j < CHARS_PER_LONG && i < chars; j++, bits >>>= BITS_PER_CHAR) {
+                int idx = (int) (bits & CHAR_MASK);
+                if (idx < ALPHANUMERIC.length) {
+                    line[i++] = ALPHANUMERIC[idx];
+                }
+            }
+        }
+        line[chars] = NEW_LINE;
+        return lineBytes;
+    }
+}
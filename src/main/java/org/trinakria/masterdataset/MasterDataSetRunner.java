@@ -1,29 +1,133 @@
 package org.trinakria.masterdataset;
 
+import com.google.common.base.Throwables;
 import org.apache.commons.lang3.Validate;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
-import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
 import java.util.stream.LongStream;
 import java.util.stream.Stream;
 
 import static java.lang.String.format;
-import static java.util.Comparator.comparingLong;
 import static org.trinakria.masterdataset.FileUtils.*;
-import static org.trinakria.masterdataset.MasterDataSetSpec.FILENAME_TEMPLATE;
+import static org.trinakria.masterdataset.MasterDataSetSpec.Mode.BATCH;
 import static org.trinakria.masterdataset.MasterDataSetSpec.Mode.GENERATE;
 import static org.trinakria.masterdataset.MasterDataSetSpec.ONE_MB;
 
 /**
- * Main class of master data set example. It supports generation, updates and backup of a master data set described
- * by {@link MasterDataSetSpec}
+ * Main class of master data set example. It supports generation, updates, backup, restore, compaction,
+ * verification of a master data set, pruning of its backups, changes of its {@link ShardLayout}, generation
+ * by several processes from a {@link PartitionPlan} and read load tests described by {@link MasterDataSetSpec}
+ *
+ * Runs are started from the command line by {@link #main}, or inside another JVM through a
+ * {@link MasterDataSetService}, which is also what the {@code BATCH} mode uses to run the jobs of a job file.
  *
  * @author Mario Giurlanda
  */
 public class MasterDataSetRunner {
 
+    private final RunMetrics metrics;
+    private final Throttle throttle;
+    /**
+     * Pool shared with other runs, null if the run creates pools of its own
+     */
+    private final ForkJoinPool ioPool;
+    /**
+     * Pool compressing blocks when the run has no shared pool, created on first use and released at the end of the run
+     */
+    private ForkJoinPool compressionPool;
+
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int MAX_REPORTED_PROBLEMS = 20;
+
+    MasterDataSetRunner() {
+        this(null, ProgressListener.NONE, Throttle.unlimited());
+    }
+
+    /**
+     * @param ioPool pool the files are written, copied and read on, shared with other runs
+     * @param listener receives the progress of the run
+     * @param sharedThrottle throttle shared with other runs, whose limits apply on top of the ones of the run
+     */
+    MasterDataSetRunner(ForkJoinPool ioPool, ProgressListener listener, Throttle sharedThrottle) {
+        this.ioPool = ioPool;
+        this.metrics = new RunMetrics(listener);
+        this.throttle = Throttle.within(sharedThrottle);
+    }
+
+    /**
+     * Runs the specification with the throttle limits it gives, then prints its metrics and writes them to the
+     * metrics file if any.
+     *
+     * @return result of the run
+     */
+    RunResult execute(MasterDataSetSpec specification) {
+        long startTime = System.nanoTime();
+        throttle.setMaxBytesPerSecond(specification.maxMegaBytesPerSecond() * ONE_MB);
+        throttle.setMaxFilesPerSecond(specification.maxFilesPerSecond());
+        specification.throttleFile().ifPresent(throttle::watch);
+        try {
+            run(specification);
+        } finally {
+            throttle.close();
+            releaseCompressionPool();
+            metrics.print();
+            specification.metricsFile().ifPresent(metrics::writeSummary);
+        }
+        return new RunResult(specification, (System.nanoTime() - startTime) / 1_000_000, metrics.getSummary());
+    }
+
+    /**
+     * @return pool the blocks of compressed files and archives are compressed on: the shared pool or, as compression
+     * is bound by CPU, one with a thread per processor that lasts as long as the run
+     */
+    private synchronized ForkJoinPool compressionPool() {
+        if (ioPool != null) {
+            return ioPool;
+        }
+        if (compressionPool == null) {
+            compressionPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        }
+        return compressionPool;
+    }
+
+    private synchronized void releaseCompressionPool() {
+        if (compressionPool != null) {
+            compressionPool.shutdownNow();
+            compressionPool = null;
+        }
+    }
+
+    /**
+     * Stops the run at the next file or chunk, see {@link Throttle#cancel}.
+     */
+    void cancel() {
+        throttle.cancel();
+    }
+
     private void run(MasterDataSetSpec specification) {
 
         switch (specification.mode()) {
@@ -39,6 +143,46 @@ public class MasterDataSetRunner {
                 backup(specification);
                 break;
             }
+            case RESTORE: {
+                restore(specification);
+                break;
+            }
+            case COMPACT: {
+                compact(specification);
+                break;
+            }
+            case VERIFY: {
+                verify(specification);
+                break;
+            }
+            case BATCH: {
+                batch(specification);
+                break;
+            }
+            case PRUNE: {
+                prune(specification);
+                break;
+            }
+            case RESHARD: {
+                reshard(specification);
+                break;
+            }
+            case PLAN: {
+                plan(specification);
+                break;
+            }
+            case WORKER: {
+                worker(specification);
+                break;
+            }
+            case MERGE: {
+                merge(specification);
+                break;
+            }
+            case LOADTEST: {
+                loadTest(specification);
+                break;
+            }
             default: {
                 throw new IllegalArgumentException(format("Unknown mode %s", specification.mode()));
             }
@@ -51,11 +195,49 @@ public class MasterDataSetRunner {
      * All files in each data set will have roughly the same size expect the last one that can be smaller to meet
      * the data set max size constraint.
      *
+     * Every (data set, file index) pair is written by an independent task on a pool of
+     * {@link MasterDataSetSpec#parallelism()} threads. The content of each file only depends on
+     * {@link MasterDataSetSpec#masterSeed()}, the data set name and the file index, so a subset of the files can be
+     * regenerated alone through {@link MasterDataSetSpec#onlyFiles()}.
+     *
+     * The {@link DataSetManifest} of each data set is saved once all its files are written.
+     *
+     * Files are spread across the input folder and the {@link MasterDataSetSpec#roots()} as decided by the
+     * {@link StripeLayout}, and the manifest of each data set records where each file lives.
+     *
+     * Each file is written under a temporary name and renamed once complete, then recorded in the
+     * {@link DataSetJournal} of its data set. With {@link MasterDataSetSpec#resume()} the files completed by an
+     * interrupted run are skipped.
+     *
+     * With {@link WriteSettings.Compression#GZIP} files are written as {@code file<index>.txt.gz}, see
+     * {@link BlockGzip}, and the file size is measured as given by {@link WriteSettings#sizeBasis()}.
+     *
+     * Within each data set folder files are laid out as given by the {@link ShardLayout} of the master data set,
+     * which {@link MasterDataSetSpec#shardLayout()} can only choose while the input folder has no data sets.
+     *
+     * Files are made durable as given by {@link MasterDataSetSpec#durability()} before they are journaled, and all of
+     * them before the manifests are saved, see {@link FileSyncer}.
+     *
      * @param specification master data set specification
      */
     private void generate(MasterDataSetSpec specification) {
+        generate(specification, specification.resume());
+    }
+
+    private void generate(MasterDataSetSpec specification, boolean resume) {
         FileUtils.createDirIfNotExist(specification.inputFolder());
+        StripeLayout layout = StripeLayout.of(specification);
+        layout.save();
         long fileSizeMB = specification.fileSizeMB();
+        WriteSettings writeSettings = specification.writeSettings().withThrottle(throttle)
+                .withCompressors(compressionPool());
+        long masterSeed = specification.masterSeed();
+        Optional<Set<Long>> onlyFiles = specification.onlyFiles();
+        List<Callable<Long>> tasks = new ArrayList<>();
+        List<DataSetManifest> manifests = new ArrayList<>();
+        List<DataSetJournal> journals = new ArrayList<>();
+        RunMetrics.Phase phase = metrics.phase("generate");
+        FileSyncer syncer = FileSyncer.of(specification.durability());
         specification.dataSets().forEach(dataSet -> {
             String dataSetName = dataSet.dataSetName();
             long dataSetSizeMB = dataSet.dataSetSizeMB();
@@ -64,21 +246,102 @@ public class MasterDataSetRunner {
             long fileSizeByte = specification.fileSizeByte();
             long lastFileSizeByte = (dataSetSizeMB - (noOfFiles-1) * fileSizeMB) * ONE_MB;
             Path dataSetFolder = specification.dataSetFolder(dataSetName);
-            FileUtils.createDirIfNotExist(dataSetFolder);
+            layout.createDataSetFolders(dataSetName);
             long seed = dataSet.seed();
-            LongStream.range(seed, noOfFiles + seed).forEach(idx -> {
-                        Path filePath = Paths.get(dataSetFolder.toString(), format(FILENAME_TEMPLATE, idx));
+            if (!resume && DataSetJournal.exists(dataSetFolder)) {
+                System.out.format("Discarding the journal of an interrupted run of data set %s, " +
+                        "use --resume to complete it%n", dataSetName);
+            }
+            DataSetJournal journal = DataSetJournal.open(dataSetFolder);
+            if (!resume) {
+                journal.reset();
+            }
+            journals.add(journal);
+            List<Path> stripeFolders = layout.dataSetFolders(dataSetName);
+            DataSetManifest manifest = seed == 0 && !onlyFiles.isPresent() && !resume ?
+                    DataSetManifest.empty(stripeFolders) : DataSetManifest.loadOrScan(stripeFolders);
+            manifest.compression(writeSettings.compression());
+            manifests.add(manifest);
+            LongStream.range(seed, noOfFiles + seed)
+                    .filter(idx -> onlyFiles.map(files -> files.contains(idx)).orElse(true))
+                    .forEach(idx -> {
+                        if (resume && journal.isDone(idx, layout.locate(dataSetName, idx))) {
+                            return;
+                        }
                         long currentFileSizeByteLimit;
                         if ((noOfFiles + seed) - 1 == idx) {
                             currentFileSizeByteLimit = lastFileSizeByte;
                         } else {
                             currentFileSizeByteLimit = fileSizeByte;
                         }
-                        FileUtils.writeFile(filePath, currentFileSizeByteLimit);
+                        // a file that is written again stays in its stripe
+                        int stripe = manifest.contains(idx) ?
+                                manifest.stripe(idx) : layout.place(idx, currentFileSizeByteLimit);
+                        Path filePath = layout.file(stripe, dataSetName, idx, writeSettings.compression());
+                        long fileSeed = LineGenerator.fileSeed(masterSeed, dataSetName, idx, 0);
+                        tasks.add(() -> {
+                            long fileStartTime = System.nanoTime();
+                            long size = writeDataSetFile(filePath, idx, currentFileSizeByteLimit, fileSeed,
+                                    writeSettings);
+                            syncer.commit(filePath, layout.root(stripe), () -> journal.done(idx, size));
+                            manifest.put(idx, size, stripe);
+                            phase.record(dataSetName, size, System.nanoTime() - fileStartTime);
+                            return size;
+                        });
             });
         });
 
+        long startTime = System.nanoTime();
+        phase.begin();
+        long bytesWritten;
+        try {
+            bytesWritten = runAll(tasks, specification.parallelism());
+            // the manifests only record durable files
+            syncer.await();
+            manifests.forEach(manifest -> syncer.commit(manifest.save(), specification.inputFolder()));
+            syncer.await();
+            journals.forEach(DataSetJournal::delete);
+        } finally {
+            syncer.close();
+            phase.end();
+        }
+        long elapsedTime = System.nanoTime() - startTime;
+        System.out.format("Generated %d files (%dMB) with parallelism %d at %.2f MB/s%n", tasks.size(),
+                bytesWritten / ONE_MB, specification.parallelism(), megaBytesPerSecond(bytesWritten, elapsedTime));
+        printSynced(syncer);
+    }
 
+    private static void printSynced(FileSyncer syncer) {
+        if (syncer.durability() != FileSyncer.Durability.NONE) {
+            System.out.format("Synced %d files to disk in %d batches (durability %s)%n", syncer.filesSynced(),
+                    syncer.batches(), syncer);
+        }
+    }
+
+    private static long writeDataSetFile(Path filePath, long fileIndex, long sizeByte, long fileSeed,
+                                         WriteSettings writeSettings) throws IOException {
+        return writeDataSetFile(filePath, fileIndex, sizeByte, fileSeed, writeSettings, TEMP_SUFFIX);
+    }
+
+    /**
+     * Writes a data set file under a temporary name, the file name followed by the given suffix, and renames it once
+     * complete, replacing the file of the same index with another compression if any.
+     *
+     * @return size of the file
+     */
+    private static long writeDataSetFile(Path filePath, long fileIndex, long sizeByte, long fileSeed,
+                                         WriteSettings writeSettings, String tempSuffix) throws IOException {
+        Files.createDirectories(filePath.getParent());
+        Path tempPath = filePath.resolveSibling(filePath.getFileName() + tempSuffix);
+        long size = sizeOf(FileUtils.writeFile(tempPath, sizeByte, fileSeed, writeSettings));
+        Files.move(tempPath, filePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        // a file written again with another compression replaces the previous one
+        for (WriteSettings.Compression other : WriteSettings.Compression.values()) {
+            if (other != writeSettings.compression()) {
+                Files.deleteIfExists(filePath.resolveSibling(MasterDataSetSpec.fileName(fileIndex, other)));
+            }
+        }
+        return size;
     }
 
     /**
@@ -87,13 +350,23 @@ public class MasterDataSetRunner {
      * Each data set will be enlarged with the following strategy:
      * <ul>
      *     <li>Find smallest file in the data set</li>
-     *     <li>Find the max size of a file in the data set, which is the size of the any file that is not the smallest
-     *         (assuming they all have same size) </li>
+     *     <li>Find the max size of a file in the data set, which is the size all files are meant to have</li>
      *     <li>Grow smallest file to smallest between the max file size or the data set enlarging size
      *         (defined by {@link MasterDataSetSpec.DataSet#dataSetSizeMB})</li>
      *     <li>Enlarge the data set of the remaining size by delegating to {@link #generate(MasterDataSetSpec)}</li>
      * </ul>
      *
+     * Sizes are taken from the {@link DataSetManifest} of the data set, so planning does not list the data set folder
+     * unless the manifest is missing or stale.
+     *
+     * The plan and the original size of the grown file are recorded in the {@link DataSetJournal} of the data set
+     * first: an append interrupted by a crash is rolled back by the next update, and with
+     * {@link MasterDataSetSpec#resume()} an update interrupted after its append only generates its remaining files.
+     *
+     * A compressed data set keeps its compression: the partial file grows by new gzip members and the new files are
+     * compressed too. Sizes are compared in the bytes given by {@link WriteSettings#sizeBasis()}, so with
+     * {@link WriteSettings.SizeBasis#UNCOMPRESSED} they are read from the members of the partial and largest files.
+     *
      * @param specification master data set specification
      */
     private void update(MasterDataSetSpec specification) {
@@ -103,11 +376,43 @@ public class MasterDataSetRunner {
             String dataSetName = dataSet.dataSetName();
             Path dataSetFolder = specification.dataSetFolder(dataSetName);
             if (Files.exists(dataSetFolder)) {
-                System.out.format("Expanding data set %s of size %dMB", dataSetName, dataSet.dataSetSizeMB());
-                long count = countFiles(dataSetFolder);
-                Path smallest = findSmallestFileInDateSet(dataSetFolder);
-                Path reference = findReferenceFileSize(dataSetFolder, smallest);
-                long smallestGrowSizeByte = sizeOf(reference) - sizeOf(smallest); //don't grow if diff less than 200KB?
+                System.out.format("Expanding data set %s of size %dMB%n", dataSetName, dataSet.dataSetSizeMB());
+                StripeLayout layout = StripeLayout.of(specification);
+                DataSetJournal journal = DataSetJournal.open(dataSetFolder);
+                journal.rollBack(idx -> layout.locate(dataSetName, idx));
+                Optional<DataSetJournal.Plan> resumedPlan = specification.resume() ?
+                        journal.plan() : Optional.empty();
+                if (!resumedPlan.isPresent()) {
+                    journal.reset();
+                }
+                if (resumedPlan.isPresent() && journal.appended()) {
+                    DataSetJournal.Plan pending = resumedPlan.get();
+                    System.out.format("Resuming update of data set %s with %dMB to generate%n", dataSetName,
+                            pending.sizeMB());
+                    WriteSettings.Compression compression = DataSetManifest.loadOrScan(
+                            layout.dataSetFolders(dataSetName)).compression();
+                    generate(new MasterDataSetSpec(GENERATE, specification.inputFolder(), pending.fileSizeMB(),
+                            Arrays.asList(MasterDataSetSpec.DataSet.of(dataSetName, pending.sizeMB(),
+                                    pending.firstIndex())), Optional.empty(),
+                            withCompression(specification.options(), compression)), true);
+                    return;
+                }
+                RunMetrics.Phase plan = metrics.phase("update-plan").begin();
+                long planStartTime = System.nanoTime();
+                DataSetManifest manifest = DataSetManifest.loadOrScan(layout.dataSetFolders(dataSetName));
+                plan.record(dataSetName, 0, System.nanoTime() - planStartTime);
+                plan.end();
+                Validate.isTrue(manifest.fileCount() > 0, "Data set %s has no files", dataSetName);
+                WriteSettings writeSettings = specification.writeSettings().withCompression(manifest.compression())
+                        .withThrottle(throttle)
+                        .withCompressors(compressionPool());
+                long smallestIndex = manifest.partialIndex().get();
+                Path smallest = manifest.file(smallestIndex);
+                long smallestDiskSizeByte = manifest.size(smallestIndex);
+                long smallestSizeByte = sizeInBasis(manifest, smallestIndex, writeSettings);
+                long referenceSizeByte = sizeInBasis(manifest, manifest.referenceIndex().get(), writeSettings);
+                // compressed sizes are approximate, a partial file can end up a bit larger than the reference one
+                long smallestGrowSizeByte = Math.max(0, referenceSizeByte - smallestSizeByte); //don't grow if diff less than 200KB?
                 long remainingGrowSizeByte = 0L;
                 long dataSetGrowSizeByte = dataSet.dataSetSizeMB() * ONE_MB;
                 if (smallestGrowSizeByte >= dataSetGrowSizeByte) {
@@ -119,14 +424,36 @@ public class MasterDataSetRunner {
                 Validate.isTrue(smallestGrowSizeByte + remainingGrowSizeByte == dataSetGrowSizeByte,
                         "Something went wrong in growing the dataset");
 
-                writeFile(smallest, smallestGrowSizeByte, StandardOpenOption.APPEND);
+                long referenceSizeMB = manifest.compression() != WriteSettings.Compression.NONE &&
+                        writeSettings.sizeBasis() == WriteSettings.SizeBasis.COMPRESSED ?
+                        Math.round(referenceSizeByte / (double) ONE_MB) : referenceSizeByte / ONE_MB;
+                long appendSeed = LineGenerator.fileSeed(specification.masterSeed(), dataSetName, smallestIndex,
+                        smallestDiskSizeByte);
+                journal.plan(manifest.nextIndex(), remainingGrowSizeByte / ONE_MB, referenceSizeMB);
+                RunMetrics.Phase append = metrics.phase("update-append").begin();
+                long appendStartTime = System.nanoTime();
+                journal.appendStarted(smallestIndex, smallestDiskSizeByte);
+                writeFile(smallest, smallestGrowSizeByte, appendSeed, writeSettings, StandardOpenOption.APPEND);
+                // the append is only journaled as done once durable, otherwise the next update rolls it back
+                try (FileSyncer syncer = FileSyncer.of(specification.durability())) {
+                    syncer.commit(smallest, layout.root(manifest.stripe(smallestIndex)), journal::appendDone);
+                    syncer.await();
+                }
+                manifest.put(smallestIndex, sizeOf(smallest));
+                manifest.save();
+                append.record(dataSetName, smallestGrowSizeByte, System.nanoTime() - appendStartTime);
+                append.end();
 
-                MasterDataSetSpec.DataSet newDataSet = MasterDataSetSpec.DataSet.of(dataSetName, remainingGrowSizeByte/ONE_MB, count);
+                MasterDataSetSpec.DataSet newDataSet = MasterDataSetSpec.DataSet.of(dataSetName,
+                        remainingGrowSizeByte/ONE_MB, manifest.nextIndex());
                 MasterDataSetSpec newSpecification = new MasterDataSetSpec(GENERATE,
                                                                            specification.inputFolder(),
-                                                                           sizeOf(reference)/ONE_MB,
-                                                                           Arrays.asList(newDataSet));
-                generate(newSpecification);
+                                                                           referenceSizeMB,
+                                                                           Arrays.asList(newDataSet),
+                                                                           Optional.empty(),
+                                                                           withCompression(specification.options(),
+                                                                                   manifest.compression()));
+                generate(newSpecification, true);
             } else {
                 System.out.format("Unknown data set folder %s%n", dataSetFolder);
             }
@@ -134,12 +461,49 @@ public class MasterDataSetRunner {
 
     }
 
+    /**
+     * @return size of a file in the bytes given by the size basis of the settings
+     */
+    private static long sizeInBasis(DataSetManifest manifest, long fileIndex, WriteSettings writeSettings) {
+        if (manifest.compression() == WriteSettings.Compression.GZIP &&
+                writeSettings.sizeBasis() == WriteSettings.SizeBasis.UNCOMPRESSED) {
+            return BlockGzip.uncompressedSize(manifest.file(fileIndex));
+        }
+        return manifest.size(fileIndex);
+    }
+
+    /**
+     * @return the options with the compression of an existing data set, whose new files must be written alike
+     */
+    private static Map<String, String> withCompression(Map<String, String> options,
+                                                       WriteSettings.Compression compression) {
+        Map<String, String> newOptions = new HashMap<>(options);
+        newOptions.put("compression", compression.name().toLowerCase());
+        return newOptions;
+    }
+
     /**
      * Backups a master data set from the input specification by deep copying the content of
      * {@link MasterDataSetSpec#inputFolder} to {@link MasterDataSetSpec#backupFolder}
      *
      * If {@link MasterDataSetSpec#backupFolder} already exists, it is renamed by appending current timestamp.
      *
+     * Files are copied by {@link MasterDataSetSpec#parallelism()} threads. Each backup generation gets a
+     * {@link BackupManifest}. With the {@code incremental} option, files unchanged since the previous generation are
+     * hard-linked from it and files that were only appended to copy their new tail from the input folder.
+     *
+     * With {@link MasterDataSetSpec.BackupFormat#ARCHIVE} each data set is stored as a single {@link BlockArchive}
+     * instead.
+     *
+     * The further roots of a striped master data set (see {@link StripeLayout}) are backed up in the
+     * {@code .stripe<n>} folders of the backup generation.
+     *
+     * Copies, archives and backup manifests are made durable as given by {@link MasterDataSetSpec#durability()} before
+     * the backup is complete, see {@link FileSyncer}.
+     *
+     * With a {@link MasterDataSetSpec#retention()} the older generations it does not keep are deleted once the backup
+     * is complete, see {@link #prune(MasterDataSetSpec)}.
+     *
      * @param specification master data set specification
      */
     private void backup(MasterDataSetSpec specification) {
@@ -155,55 +519,886 @@ public class MasterDataSetRunner {
         createDirIfNotExist(backupFolder);
 
         Path backupPath = Paths.get(backupFolder.toString(), inputFolder.toString());
+        Optional<Path> oldBackupPath = Optional.empty();
 
         if (Files.exists(backupPath)) {
-            Path oldBackupPath = Paths.get(backupFolder.toString(), format("%s%d", inputFolder.toString(), System.currentTimeMillis()));
-            System.out.format("Moving existing backup path to %s%n", oldBackupPath);
+            oldBackupPath = Optional.of(Paths.get(backupFolder.toString(),
+                    format("%s%d", inputFolder.toString(), System.currentTimeMillis())));
+            System.out.format("Moving existing backup path to %s%n", oldBackupPath.get());
             try {
-                Files.move(backupPath, oldBackupPath);
+                Files.move(backupPath, oldBackupPath.get());
             } catch (IOException e) {
                 throw new RuntimeException(format("Cannot backup %s to %s", inputFolder, backupFolder), e);
             }
         }
 
-        FileUtils.copyFileTree(inputFolder, backupPath, false);
+        StripeLayout layout = StripeLayout.of(specification);
+        try (FileSyncer syncer = FileSyncer.of(specification.durability())) {
+            if (specification.backupFormat() == MasterDataSetSpec.BackupFormat.ARCHIVE) {
+                archive(specification, layout, backupPath, syncer);
+            } else {
+                copy(specification, layout, backupPath, oldBackupPath, syncer);
+            }
+            syncer.await();
+            printSynced(syncer);
+        }
+        specification.retention().ifPresent(retention -> prune(specification, retention));
+    }
+
+    private void archive(MasterDataSetSpec specification, StripeLayout layout, Path backupPath, FileSyncer syncer) {
+        long startTime = System.nanoTime();
+        RunMetrics.Phase phase = metrics.phase("backup").begin();
+        long bytesArchived = 0;
+        for (int stripe = 0; stripe < layout.stripes(); stripe++) {
+            Path stripeBackupPath = stripeBackup(backupPath, stripe);
+            bytesArchived += FileUtils.archiveFileTree(layout.root(stripe), stripeBackupPath, compressionPool(),
+                    phase, throttle);
+            try (Stream<Path> stream = Files.list(stripeBackupPath)) {
+                stream.filter(Files::isRegularFile)
+                        .forEach(file -> syncer.commit(file, specification.backupFolder().get()));
+            } catch (IOException e) {
+                throw new RuntimeException(format("Cannot list archives of %s", stripeBackupPath), e);
+            }
+        }
+        phase.end();
+        long elapsedTime = System.nanoTime() - startTime;
+        System.out.format("Archived %dMB with parallelism %d at %.2f MB/s%n", bytesArchived / ONE_MB,
+                specification.parallelism(), megaBytesPerSecond(bytesArchived, elapsedTime));
+    }
+
+    private void copy(MasterDataSetSpec specification, StripeLayout layout, Path backupPath,
+                      Optional<Path> oldBackupPath, FileSyncer syncer) {
+        long startTime = System.nanoTime();
+        RunMetrics.Phase phase = metrics.phase("backup");
+        long files = 0;
+        long filesCopied = 0;
+        long filesLinked = 0;
+        long bytesCopied = 0;
+        for (int stripe = 0; stripe < layout.stripes(); stripe++) {
+            Path stripeBackupPath = stripeBackup(backupPath, stripe);
+            ParallelTreeCopier copier = new ParallelTreeCopier(layout.root(stripe), stripeBackupPath, false,
+                    specification.parallelism())
+                    .pool(ioPool)
+                    .metrics(phase)
+                    .throttle(throttle)
+                    .syncer(syncer)
+                    .directIo(specification.booleanOption("direct-io"));
+            if (specification.booleanOption("incremental") && oldBackupPath.isPresent()) {
+                Path previousGeneration = stripeBackup(oldBackupPath.get(), stripe);
+                Optional<BackupManifest> previousManifest = BackupManifest.load(previousGeneration);
+                if (previousManifest.isPresent()) {
+                    System.out.format("Incremental backup from %s%n", previousGeneration);
+                    copier.incremental(previousGeneration, previousManifest.get(), specification.booleanOption("hash"));
+                } else {
+                    System.out.format("No manifest in %s, falling back to a full backup%n", previousGeneration);
+                }
+            }
+            phase.begin();
+            bytesCopied += copier.copy();
+            // the manifest only records durable copies
+            syncer.await();
+            copier.manifest().save(stripeBackupPath);
+            syncer.commit(stripeBackupPath.resolve(BackupManifest.FILE_NAME), specification.backupFolder().get());
+            phase.end();
+            files += copier.manifest().size();
+            filesCopied += copier.filesCopied();
+            filesLinked += copier.filesLinked();
+        }
+        long elapsedTime = System.nanoTime() - startTime;
+        System.out.format("Backed up %d files (%d copied, %d linked), %dMB copied with parallelism %d at %.2f MB/s%n",
+                files, filesCopied, filesLinked, bytesCopied / ONE_MB,
+                specification.parallelism(), megaBytesPerSecond(bytesCopied, elapsedTime));
+    }
+
+    /**
+     * Deletes the older generations of the backup of {@link MasterDataSetSpec#inputFolder} in
+     * {@link MasterDataSetSpec#backupFolder} that the {@link MasterDataSetSpec#retention()} does not keep, see
+     * {@link BackupRetention}. The latest generation is never deleted.
+     *
+     * Generations are deleted oldest first by a {@link ParallelTreeDeleter} with
+     * {@link MasterDataSetSpec#parallelism()} threads. Files hard-linked by incremental backups stay in the
+     * generations that still link them.
+     *
+     * The run fails if any file cannot be deleted.
+     *
+     * @param specification master data set specification
+     */
+    private void prune(MasterDataSetSpec specification) {
+        Validate.isTrue(specification.retention().isPresent(),
+                "At least one of keep-last and max-age-hours is mandatory in prune mode");
+        prune(specification, specification.retention().get());
+    }
+
+    private void prune(MasterDataSetSpec specification, BackupRetention retention) {
+        Path backupPath = Paths.get(specification.backupFolder().get().toString(),
+                specification.inputFolder().toString());
+        List<Path> expired = retention.expired(backupPath, System.currentTimeMillis());
+        System.out.format("Pruning %d backup generations of %s (%s)%n", expired.size(), backupPath, retention);
+        long startTime = System.nanoTime();
+        long filesDeleted = 0;
+        List<String> failures = new ArrayList<>();
+        RunMetrics.Phase phase = metrics.phase("prune").begin();
+        try {
+            for (Path generation : expired) {
+                ParallelTreeDeleter deleter = new ParallelTreeDeleter(generation, specification.parallelism())
+                        .pool(ioPool)
+                        .metrics(phase)
+                        .throttle(throttle);
+                boolean deleted = deleter.delete();
+                filesDeleted += deleter.filesDeleted();
+                failures.addAll(deleter.failures());
+                System.out.format("Deleted %s: %d files%s%n", generation, deleter.filesDeleted(),
+                        deleted ? "" : format(", %d failures", deleter.failures().size()));
+            }
+        } finally {
+            phase.end();
+        }
+        long elapsedTime = System.nanoTime() - startTime;
+        System.out.format("Pruned %d generations, %d files with parallelism %d at %.0f files/s%n", expired.size(),
+                filesDeleted, specification.parallelism(), filesDeleted / (elapsedTime / 1e9));
+        if (!failures.isEmpty()) {
+            failures.stream()
+                    .limit(MAX_REPORTED_PROBLEMS)
+                    .forEach(failure -> System.err.format("Unable to delete: %s%n", failure));
+            if (failures.size() > MAX_REPORTED_PROBLEMS) {
+                System.err.format("... and %d more%n", failures.size() - MAX_REPORTED_PROBLEMS);
+            }
+            throw new IllegalStateException(format("Pruning of %s failed, %d paths could not be deleted", backupPath,
+                    failures.size()));
+        }
+    }
+
+    /**
+     * @return folder of a backup generation holding the copy of a stripe, the generation itself for stripe 0
+     */
+    private static Path stripeBackup(Path generation, int stripe) {
+        return stripe == 0 ? generation : generation.resolve(StripeLayout.backupFolderName(stripe));
+    }
+
+    /**
+     * Restores a master data set from a backup made by {@link #backup(MasterDataSetSpec)}.
+     *
+     * The latest backup generation, {@code <backup folder>/<input folder>}, is restored unless a timestamp is given
+     * by {@link MasterDataSetSpec#backupGeneration()}, in which case {@code <backup folder>/<input folder><timestamp>}
+     * is restored. Restoring can be limited to {@link MasterDataSetSpec#selectedDataSets()}.
+     *
+     * Each restored data set ends up identical to its backup: files are copied by
+     * {@link MasterDataSetSpec#parallelism()} threads, files that already have the size and modification time of the
+     * backed up file are skipped and files that are not in the backup are removed.
+     *
+     * The further roots of a striped master data set are restored to the roots recorded in the backup generation.
+     *
+     * Restored data sets keep the {@link ShardLayout} of the backup generation, which becomes the layout of the master
+     * data set, so the restore fails if that would leave other data sets of the input folder in another layout.
+     *
+     * @param specification master data set specification
+     */
+    private void restore(MasterDataSetSpec specification) {
+        Path inputFolder = specification.inputFolder();
+        Path backupFolder = specification.backupFolder().get();
+        Path generation = Paths.get(backupFolder.toString(),
+                inputFolder.toString() + specification.backupGeneration().orElse(""));
+
+        Validate.isTrue(Files.isDirectory(generation), "Backup generation %s does not exist", generation);
+
+        Optional<Set<String>> dataSets = specification.selectedDataSets();
+        Predicate<Path> filter = path -> {
+            String name = path.getName(0).toString();
+            return !name.equals(BackupManifest.FILE_NAME) && !StripeLayout.isBackupFolder(path) &&
+                    dataSets.map(names -> name.equals(ShardLayout.FILE_NAME) ||
+                            names.stream().anyMatch(dataSetName -> name.equals(dataSetName) ||
+                                    name.equals(DataSetManifest.fileName(dataSetName)))).orElse(true);
+        };
+        System.out.format("Restoring %s from %s%n", dataSets.map(Object::toString).orElse("all data sets"), generation);
+        ShardLayout shards = ShardLayout.load(generation);
+        if (Files.isDirectory(inputFolder) && !shards.equals(ShardLayout.load(inputFolder))) {
+            List<String> restored = dataSets.<List<String>>map(ArrayList::new)
+                    .orElseGet(() -> existingDataSets(generation));
+            List<String> others = existingDataSets(inputFolder);
+            others.removeAll(restored);
+            Validate.isTrue(others.isEmpty(), "Backup generation %s is laid out as %s and %s as %s, restore data " +
+                    "sets %s as well or reshard first", generation, shards, inputFolder, ShardLayout.load(inputFolder),
+                    others);
+        }
+
+        long startTime = System.nanoTime();
+        RunMetrics.Phase phase = metrics.phase("restore").begin();
+        boolean archive = isArchive(generation);
+        List<Path> roots = new ArrayList<>();
+        roots.add(inputFolder);
+        roots.addAll(StripeLayout.load(generation, inputFolder));
+        long bytesRestored = 0;
+        for (int stripe = 0; stripe < roots.size(); stripe++) {
+            Path stripeGeneration = stripeBackup(generation, stripe);
+            Path root = roots.get(stripe);
+            if (Files.notExists(stripeGeneration)) {
+                continue;
+            }
+            if (archive) {
+                bytesRestored += FileUtils.extractArchiveTree(stripeGeneration, root, filter,
+                        specification.parallelism(), ioPool, phase, throttle);
+            } else {
+                createDirIfNotExist(root);
+                ParallelTreeCopier copier = new ParallelTreeCopier(stripeGeneration, root, false,
+                        specification.parallelism())
+                        .pool(ioPool)
+                        .filter(filter)
+                        .mirror(BackupManifest.load(stripeGeneration).orElse(new BackupManifest()))
+                        .metrics(phase)
+                        .throttle(throttle);
+                bytesRestored += copier.copy();
+                System.out.format("Restored %d files to %s, skipped %d up to date files, removed %d files%n",
+                        copier.filesCopied(), root, copier.filesSkipped(), copier.filesRemoved());
+            }
+        }
+        phase.end();
+        long elapsedTime = System.nanoTime() - startTime;
+        System.out.format("Restored %dMB with parallelism %d at %.2f MB/s%n", bytesRestored / ONE_MB,
+                specification.parallelism(), megaBytesPerSecond(bytesRestored, elapsedTime));
     }
 
+    /**
+     * Compacts the data sets of a master data set into files of {@link MasterDataSetSpec#fileSizeByte()} bytes, see
+     * {@link DataSetCompactor}.
+     *
+     * All data sets are compacted unless some are selected by {@link MasterDataSetSpec#selectedDataSets()}. A data set
+     * with an interrupted generation or update is left alone until that run is completed. Compressed data sets are
+     * left alone as well, as gzip members cannot be cut at arbitrary offsets.
+     *
+     * @param specification master data set specification
+     */
+    private void compact(MasterDataSetSpec specification) {
+        Validate.isTrue(Files.isDirectory(specification.inputFolder()),
+                "An existing input folder is mandatory in compact mode");
+        List<String> dataSetNames = existingDataSets(specification);
+        StripeLayout layout = StripeLayout.of(specification);
 
+        long startTime = System.nanoTime();
+        long bytesWritten = 0;
+        RunMetrics.Phase phase = metrics.phase("compact").begin();
+        try {
+            for (String dataSetName : dataSetNames) {
+                Path dataSetFolder = specification.dataSetFolder(dataSetName);
+                if (DataSetJournal.exists(dataSetFolder)) {
+                    System.out.format("Skipping data set %s with an interrupted run, use --resume to complete it%n",
+                            dataSetName);
+                    continue;
+                }
+                List<Path> stripeFolders = layout.dataSetFolders(dataSetName);
+                if (DataSetManifest.loadOrScan(stripeFolders).compression() != WriteSettings.Compression.NONE) {
+                    System.out.format("Skipping compressed data set %s%n", dataSetName);
+                    continue;
+                }
+                System.out.format("Compacting data set %s into %dMB files%n", dataSetName, specification.fileSizeMB());
+                bytesWritten += new DataSetCompactor(stripeFolders, specification.fileSizeByte(),
+                        specification.parallelism())
+                        .pool(ioPool)
+                        .metrics(phase)
+                        .throttle(throttle)
+                        .compact();
+            }
+        } finally {
+            phase.end();
+        }
+        long elapsedTime = System.nanoTime() - startTime;
+        System.out.format("Compacted %dMB with parallelism %d at %.2f MB/s%n", bytesWritten / ONE_MB,
+                specification.parallelism(), megaBytesPerSecond(bytesWritten, elapsedTime));
+    }
 
-    private Path findReferenceFileSize(Path dataSetFolder, Path smallest) {
+    /**
+     * Verifies the data sets of a master data set, see {@link DataSetVerifier}.
+     *
+     * When the specification lists data sets, their file count and sizes are audited against the file size and data
+     * set sizes, which for a data set grown by updates are the total sizes. Otherwise all data sets, or the
+     * {@link MasterDataSetSpec#selectedDataSets()}, are read without audit. With a backup folder each file is compared
+     * with its copy in the latest backup generation, or the one given by {@link MasterDataSetSpec#backupGeneration()}.
+     *
+     * The run fails if any data set does not match.
+     *
+     * @param specification master data set specification
+     */
+    private void verify(MasterDataSetSpec specification) {
+        Path inputFolder = specification.inputFolder();
+        Validate.isTrue(Files.isDirectory(inputFolder), "An existing input folder is mandatory in verify mode");
+        StripeLayout layout = StripeLayout.of(specification);
+        Optional<Path> generation = specification.backupFolder().map(backupFolder -> Paths.get(backupFolder.toString(),
+                inputFolder.toString() + specification.backupGeneration().orElse("")));
+        generation.ifPresent(path -> Validate.isTrue(Files.isDirectory(path),
+                "Backup generation %s does not exist", path));
+        List<String> dataSetNames = new ArrayList<>();
+        specification.dataSets().forEach(dataSet -> dataSetNames.add(dataSet.dataSetName()));
+        if (dataSetNames.isEmpty()) {
+            dataSetNames.addAll(existingDataSets(specification));
+        }
+
+        long startTime = System.nanoTime();
+        long bytesRead = 0;
+        long problems = 0;
+        RunMetrics.Phase phase = metrics.phase("verify").begin();
         try {
-            try (Stream<Path> stream = Files.walk(dataSetFolder, 1)) {
-                Path reference = stream
-                        .filter(path -> sizeOf(path) > sizeOf(smallest))
+            for (String dataSetName : dataSetNames) {
+                Validate.isTrue(Files.isDirectory(specification.dataSetFolder(dataSetName)),
+                        "Unknown data set folder %s", specification.dataSetFolder(dataSetName));
+                DataSetVerifier verifier = new DataSetVerifier(layout.dataSetFolders(dataSetName),
+                        specification.parallelism())
+                        .pool(ioPool)
+                        .metrics(phase)
+                        .throttle(throttle);
+                specification.dataSets().stream()
+                        .filter(dataSet -> dataSet.dataSetName().equals(dataSetName))
                         .findFirst()
-                        .get();
-                return reference;
+                        .ifPresent(dataSet -> verifier.expect(specification.noOfFilesInDataSet(dataSet.dataSetSizeMB()),
+                                dataSet.dataSetSizeMB() * ONE_MB, specification.fileSizeByte(),
+                                specification.writeSettings().sizeBasis()));
+                generation.ifPresent(path -> {
+                    List<Path> backupFolders = new ArrayList<>();
+                    for (int stripe = 0; stripe < layout.stripes(); stripe++) {
+                        backupFolders.add(stripeBackup(path, stripe).resolve(dataSetName));
+                    }
+                    verifier.backup(backupFolders);
+                });
+                DataSetVerifier.Result result = verifier.verify();
+                bytesRead += result.diskBytes();
+                problems += result.problems().size();
+                System.out.format("Data set %s: %d files, %dMB (%dMB of lines), %d lines of which %d short, " +
+                                "checksum %08x: %s%n", dataSetName, result.files(), result.diskBytes() / ONE_MB,
+                        result.contentBytes() / ONE_MB, result.lines(), result.shortLines(), result.checksum(),
+                        result.problems().isEmpty() ? "OK" : result.problems().size() + " problems");
+                result.problems().stream()
+                        .limit(MAX_REPORTED_PROBLEMS)
+                        .forEach(problem -> System.out.format("  %s%n", problem));
+                if (result.problems().size() > MAX_REPORTED_PROBLEMS) {
+                    System.out.format("  ... and %d more%n", result.problems().size() - MAX_REPORTED_PROBLEMS);
+                }
             }
+        } finally {
+            phase.end();
+        }
+        long elapsedTime = System.nanoTime() - startTime;
+        System.out.format("Verified %d data sets, read %dMB with parallelism %d at %.2f MB/s%n", dataSetNames.size(),
+                bytesRead / ONE_MB, specification.parallelism(), megaBytesPerSecond(bytesRead, elapsedTime));
+        if (problems > 0) {
+            throw new IllegalStateException(format("Verification of %s failed with %d problems", inputFolder,
+                    problems));
+        }
+    }
+
+    /**
+     * Benchmarks the storage of a master data set with random reads, see {@link DataSetLoadTest}.
+     *
+     * The data sets, or the {@link MasterDataSetSpec#selectedDataSets()}, are located through their manifests in all
+     * stripes, then read by {@link MasterDataSetSpec#concurrency()} threads of their own, so that the concurrency
+     * does not depend on a shared pool, for {@link MasterDataSetSpec#loadTestSeconds()} seconds at
+     * {@link MasterDataSetSpec#targetQps()} reads per second. Throughput and latency percentiles are reported per data
+     * set, and the run fails if any read failed.
+     *
+     * @param specification master data set specification
+     */
+    private void loadTest(MasterDataSetSpec specification) {
+        Path inputFolder = specification.inputFolder();
+        Validate.isTrue(Files.isDirectory(inputFolder), "An existing input folder is mandatory in loadtest mode");
+        StripeLayout layout = StripeLayout.of(specification);
+        RunMetrics.Phase phase = metrics.phase("loadtest");
+        DataSetLoadTest loadTest = new DataSetLoadTest(specification.concurrency(),
+                specification.loadTestSeconds() * 1000)
+                .read(specification.loadTestRead())
+                .readBytes(specification.readBytes())
+                .access(specification.loadTestAccess())
+                .qps(specification.targetQps())
+                .seed(specification.masterSeed())
+                .metrics(phase)
+                .throttle(throttle);
+        List<String> dataSetNames = new ArrayList<>();
+        for (String dataSetName : existingDataSets(specification)) {
+            Validate.isTrue(Files.isDirectory(specification.dataSetFolder(dataSetName)),
+                    "Unknown data set folder %s", specification.dataSetFolder(dataSetName));
+            if (loadTest.dataSet(dataSetName, DataSetManifest.loadOrScan(layout.dataSetFolders(dataSetName)))) {
+                dataSetNames.add(dataSetName);
+            }
+        }
+        Validate.validState(!dataSetNames.isEmpty(), "No uncompressed data set to read from in %s", inputFolder);
+        System.out.format("Reading data sets %s of %s for %ds with concurrency %d at %s (%s reads, %s access)%n",
+                dataSetNames, inputFolder, specification.loadTestSeconds(), specification.concurrency(),
+                specification.targetQps() > 0 ? specification.targetQps() + " reads/s" : "full speed",
+                specification.loadTestRead().name().toLowerCase(), specification.loadTestAccess().name().toLowerCase());
+        List<DataSetLoadTest.Result> results;
+        phase.begin();
+        try {
+            results = loadTest.run();
+        } finally {
+            phase.end();
+        }
+        long reads = 0;
+        long errors = 0;
+        for (DataSetLoadTest.Result result : results) {
+            System.out.println(result);
+            reads += result.reads();
+            errors += result.errors();
+        }
+        System.out.format("Issued %d reads at %.0f reads/s, %.2f MB/s%n", reads, phase.filesPerSecond(),
+                phase.megaBytesPerSecond());
+        if (errors > 0) {
+            throw new IllegalStateException(format("Load test of %s failed with %d read errors", inputFolder, errors));
+        }
+    }
+
+    /**
+     * Moves the files of all the data sets of a master data set to the {@link ShardLayout} given by
+     * {@link MasterDataSetSpec#shardLayout()}, for instance to spread a flat data set folder with millions of files
+     * across subfolders, and records it as the layout of the master data set.
+     *
+     * Files are renamed within their folder in each stripe, by {@link MasterDataSetSpec#parallelism()} threads, so
+     * nothing is copied. The target layout is recorded first as pending: until the move completes, other modes refuse
+     * to run, and running reshard again, with any target, completes it. Folders left empty are removed and the
+     * manifests of the data sets rebuilt.
+     *
+     * @param specification master data set specification
+     */
+    private void reshard(MasterDataSetSpec specification) {
+        Path inputFolder = specification.inputFolder();
+        Validate.isTrue(Files.isDirectory(inputFolder), "An existing input folder is mandatory in reshard mode");
+        Validate.isTrue(!specification.selectedDataSets().isPresent(),
+                "All data sets of a master data set share their layout, datasets cannot be selected in reshard mode");
+        ShardLayout target = specification.shardLayout().get();
+        if (!ShardLayout.isPending(inputFolder) && ShardLayout.load(inputFolder).equals(target)) {
+            System.out.format("Data sets of %s are already laid out as %s%n", inputFolder, target);
+            return;
+        }
+        List<String> dataSetNames = existingDataSets(specification);
+        StripeLayout layout = StripeLayout.of(specification, target);
+        target.savePending(inputFolder);
+        System.out.format("Laying out data sets %s of %s as %s%n", dataSetNames, inputFolder, target);
+
+        long startTime = System.nanoTime();
+        List<Callable<Long>> tasks = new ArrayList<>();
+        RunMetrics.Phase phase = metrics.phase("reshard");
+        for (String dataSetName : dataSetNames) {
+            for (Path stripeFolder : layout.dataSetFolders(dataSetName)) {
+                if (Files.notExists(stripeFolder)) {
+                    continue;
+                }
+                try (Stream<Path> stream = Files.walk(stripeFolder)) {
+                    stream.filter(file -> Files.isRegularFile(file) && MasterDataSetSpec.isDataSetFile(file))
+                            .forEach(file -> {
+                                Path targetFile = target.file(stripeFolder, MasterDataSetSpec.fileIndex(file),
+                                        MasterDataSetSpec.isCompressed(file) ?
+                                                WriteSettings.Compression.GZIP : WriteSettings.Compression.NONE);
+                                if (!targetFile.equals(file)) {
+                                    tasks.add(() -> {
+                                        long fileStartTime = System.nanoTime();
+                                        throttle.acquireFile();
+                                        Files.createDirectories(targetFile.getParent());
+                                        Files.move(file, targetFile, StandardCopyOption.ATOMIC_MOVE);
+                                        phase.record(dataSetName, 0, System.nanoTime() - fileStartTime);
+                                        return 1L;
+                                    });
+                                }
+                            });
+                } catch (IOException e) {
+                    throw new RuntimeException(format("Cannot list data set folder %s", stripeFolder), e);
+                }
+            }
+        }
+        phase.begin();
+        long filesMoved;
+        try {
+            filesMoved = runAll(tasks, specification.parallelism());
+            for (String dataSetName : dataSetNames) {
+                for (Path stripeFolder : layout.dataSetFolders(dataSetName)) {
+                    if (Files.exists(stripeFolder)) {
+                        FileUtils.deleteEmptyFolders(stripeFolder);
+                    }
+                }
+            }
+            ShardLayout.commitPending(inputFolder);
+            dataSetNames.forEach(dataSetName -> DataSetManifest.scan(layout.dataSetFolders(dataSetName)).save());
         } catch (IOException e) {
-            throw new RuntimeException(format("Cannot find reference file in data set %s", dataSetFolder), e);
+            throw new RuntimeException(format("Cannot reshard %s", inputFolder), e);
+        } finally {
+            phase.end();
+        }
+        long elapsedTime = System.nanoTime() - startTime;
+        System.out.format("Moved %d files of %d data sets with parallelism %d in %dms%n", filesMoved,
+                dataSetNames.size(), specification.parallelism(), elapsedTime / 1_000_000);
+    }
+
+    /**
+     * Plans the generation of a master data set by {@link #worker} processes, see {@link PartitionPlan}.
+     *
+     * The plan records the generation options, such as the master seed and the compression, and the shard layout of
+     * the input folder, which is chosen as {@link #generate} would. Workers write their files as given by the plan,
+     * so the master data set is the same as the one {@link #generate} would write with the same arguments.
+     *
+     * @param specification plan specification
+     */
+    private void plan(MasterDataSetSpec specification) {
+        Path inputFolder = specification.inputFolder();
+        Validate.isTrue(specification.roots().isEmpty(), "Workers spread files across roots with --output, " +
+                "roots cannot be given in plan mode");
+        FileUtils.createDirIfNotExist(inputFolder);
+        ShardLayout shards = ShardLayout.of(specification);
+        shards.save(inputFolder);
+        Map<String, String> options = new HashMap<>(specification.options());
+        options.remove("plan-file");
+        options.remove("partition-files");
+        options.remove("shards");
+        options.remove("shard-depth");
+        options.remove("shard-width");
+        if (shards.scheme() != ShardLayout.Scheme.FLAT) {
+            options.put("shards", shards.scheme().name().toLowerCase());
+            options.put("shard-depth", Integer.toString(shards.depth()));
+            options.put("shard-width", Integer.toString(shards.width()));
         }
+        MasterDataSetSpec generation = new MasterDataSetSpec(GENERATE, inputFolder, specification.fileSizeMB(),
+                specification.dataSets(), Optional.empty(), options);
+        Path planFile = specification.planFile();
+        PartitionPlan plan = PartitionPlan.create(generation, specification.partitionFiles(), planFile);
+        plan.save(planFile);
+        System.out.format("Planned %d partitions of up to %d files for data sets %s of %s in %s%n",
+                plan.partitions().size(), specification.partitionFiles(),
+                specification.dataSets().stream().map(MasterDataSetSpec.DataSet::dataSetName).collect(Collectors.toList()),
+                inputFolder, planFile);
     }
 
-    private Path findSmallestFileInDateSet(Path dataSetDir) {
+    /**
+     * Generates the partitions of a {@link PartitionPlan} that no other worker has claimed, until none is left.
+     *
+     * The files of each partition are written by {@link MasterDataSetSpec#parallelism()} threads to the data set
+     * folders in {@link MasterDataSetSpec#outputRoot()}, the input folder of the plan by default, with the settings
+     * recorded in the plan. Workers sharing a root may run on the same host or on hosts sharing its file system; a
+     * root of its own must be given to each host otherwise, as a path the host running {@link #merge} sees too.
+     *
+     * A worker touches the claim of its partition after each file, and takes over the claims left untouched for
+     * {@link MasterDataSetSpec#claimTimeoutSeconds()} by workers that died. A worker restarted with the same
+     * {@link MasterDataSetSpec#workerId()} gets its own claims back at once. A worker that stalled for longer than the
+     * timeout finds its claim taken over when it touches it, and abandons the partition to the worker that took it
+     * over without completing it. Until then both may write the same files, each under a temporary name of its own,
+     * so a file is only ever renamed into place once complete.
+     *
+     * @param specification worker specification
+     */
+    private void worker(MasterDataSetSpec specification) {
+        PartitionPlan plan = PartitionPlan.load(specification.planFile());
+        MasterDataSetSpec generation = plan.specification();
+        Path root = specification.outputRoot().orElse(generation.inputFolder());
+        String worker = specification.workerId();
+        long timeoutMillis = specification.claimTimeoutSeconds() * 1000;
+        ShardLayout shards = generation.shardLayout().orElse(ShardLayout.FLAT);
+        // direct I/O depends on the host rather than on the plan
+        WriteSettings writeSettings = generation.writeSettings().withThrottle(throttle)
+                .withCompressors(compressionPool())
+                .withDirectIo(generation.writeSettings().directIo() || specification.booleanOption("direct-io"));
+        long masterSeed = generation.masterSeed();
+        FileSyncer syncer = FileSyncer.of(specification.durability());
+        System.out.format("Worker %s generating partitions of %s in %s%n", worker, specification.planFile(), root);
+
+        long startTime = System.nanoTime();
+        RunMetrics.Phase phase = metrics.phase("generate");
+        phase.begin();
+        long bytesWritten = 0;
+        int partitionsGenerated = 0;
+        long filesWritten = 0;
+        try {
+            boolean claimed = true;
+            // claims of dead workers time out while the others are being generated
+            while (claimed) {
+                claimed = false;
+                for (PartitionPlan.Partition partition : plan.partitions()) {
+                    if (!plan.claim(partition, worker, timeoutMillis)) {
+                        continue;
+                    }
+                    claimed = true;
+                    System.out.format("Worker %s generating %s%n", worker, partition);
+                    String dataSetName = partition.dataSetName();
+                    Path dataSetFolder = root.resolve(dataSetName);
+                    Map<Long, Long> fileSizes = new ConcurrentHashMap<>();
+                    AtomicBoolean lost = new AtomicBoolean();
+                    List<Callable<Long>> tasks = new ArrayList<>();
+                    // a worker whose claim was taken over may still be writing the same files
+                    String tempSuffix = "." + PartitionPlan.fileNameOf(worker) + TEMP_SUFFIX;
+                    LongStream.range(partition.firstIndex(), partition.firstIndex() + partition.files()).forEach(idx -> {
+                        Path filePath = shards.file(dataSetFolder, idx, writeSettings.compression());
+                        long fileSeed = LineGenerator.fileSeed(masterSeed, dataSetName, idx, 0);
+                        tasks.add(() -> {
+                            if (lost.get()) {
+                                return 0L;
+                            }
+                            long fileStartTime = System.nanoTime();
+                            long size;
+                            try {
+                                size = writeDataSetFile(filePath, idx, partition.fileSizeByte(idx), fileSeed,
+                                        writeSettings, tempSuffix);
+                            } catch (NoSuchFileException e) {
+                                // the folder or the temporary file went away, as when another worker took over the
+                                // partition and merge cleaned up after it
+                                System.err.format("Worker %s cannot write %s: %s%n", worker, filePath, e);
+                                lost.set(true);
+                                return 0L;
+                            }
+                            syncer.commit(filePath, root);
+                            fileSizes.put(idx, size);
+                            if (!plan.heartbeat(partition, worker)) {
+                                lost.set(true);
+                            }
+                            phase.record(dataSetName, size, System.nanoTime() - fileStartTime);
+                            return size;
+                        });
+                    });
+                    bytesWritten += runAll(tasks, specification.parallelism());
+                    syncer.await();
+                    if (lost.get() || !plan.heartbeat(partition, worker)) {
+                        System.out.format("Worker %s lost the claim of %s to another worker, abandoning it%n", worker,
+                                partition);
+                        continue;
+                    }
+                    if (!plan.complete(partition, worker, root, fileSizes)) {
+                        System.out.format("Worker %s found %s completed by another worker, abandoning it%n", worker,
+                                partition);
+                        continue;
+                    }
+                    partitionsGenerated++;
+                    filesWritten += tasks.size();
+                }
+            }
+        } finally {
+            syncer.close();
+            phase.end();
+        }
+        long elapsedTime = System.nanoTime() - startTime;
+        printSynced(syncer);
+        System.out.format("Worker %s generated %d partitions, %d files (%dMB) with parallelism %d at %.2f MB/s%n",
+                worker, partitionsGenerated, filesWritten, bytesWritten / ONE_MB, specification.parallelism(),
+                megaBytesPerSecond(bytesWritten, elapsedTime));
+    }
+
+    /**
+     * Merges the partitions of a {@link PartitionPlan} generated by {@link #worker} processes into the master data
+     * set of the input folder of the plan.
+     *
+     * Every root the workers wrote to, other than the input folder, becomes a further root of the {@link StripeLayout},
+     * after the roots already recorded. The manifest of each data set is built from the sizes the workers recorded,
+     * without reading the files, and files of the data set that are not part of the plan, such as the leftovers of a
+     * previous generation, are deleted.
+     *
+     * @param specification merge specification
+     */
+    private void merge(MasterDataSetSpec specification) {
+        PartitionPlan plan = PartitionPlan.load(specification.planFile());
+        MasterDataSetSpec generation = plan.specification();
+        Path inputFolder = generation.inputFolder();
+        Map<PartitionPlan.Partition, PartitionPlan.Completion> completions = new LinkedHashMap<>();
+        List<Integer> incomplete = new ArrayList<>();
+        for (PartitionPlan.Partition partition : plan.partitions()) {
+            Optional<PartitionPlan.Completion> completion = plan.completion(partition);
+            if (completion.isPresent()) {
+                completions.put(partition, completion.get());
+            } else {
+                incomplete.add(partition.id());
+            }
+        }
+        Validate.validState(incomplete.isEmpty(), "Partitions %s of %s are not generated yet, run further workers",
+                incomplete, specification.planFile());
+
+        List<Path> roots = new ArrayList<>(StripeLayout.load(inputFolder));
+        completions.values().stream().map(PartitionPlan.Completion::root)
+                .filter(root -> !isSameFolder(root, inputFolder) && roots.stream().noneMatch(r -> isSameFolder(r, root)))
+                .distinct()
+                .forEach(roots::add);
+        Map<String, String> options = new HashMap<>(generation.options());
+        options.put("roots", roots.stream().map(Path::toString).collect(Collectors.joining(",")));
+        ShardLayout shards = generation.shardLayout().orElse(ShardLayout.FLAT);
+        StripeLayout layout = StripeLayout.of(new MasterDataSetSpec(GENERATE, inputFolder, generation.fileSizeMB(),
+                generation.dataSets(), Optional.empty(), options), shards);
+        layout.save();
+        WriteSettings.Compression compression = generation.writeSettings().compression();
+
+        long fileCount = 0;
+        long filesDeleted = 0;
+        for (MasterDataSetSpec.DataSet dataSet : generation.dataSets()) {
+            String dataSetName = dataSet.dataSetName();
+            layout.createDataSetFolders(dataSetName);
+            DataSetManifest manifest = DataSetManifest.empty(layout.dataSetFolders(dataSetName));
+            manifest.compression(compression);
+            Set<Path> planned = new HashSet<>();
+            completions.forEach((partition, completion) -> {
+                if (!partition.dataSetName().equals(dataSetName)) {
+                    return;
+                }
+                int stripe = stripeOf(layout, completion.root());
+                completion.fileSizes().forEach((idx, size) -> {
+                    manifest.put(idx, size, stripe);
+                    planned.add(layout.file(stripe, dataSetName, idx, compression));
+                });
+            });
+            for (Path stripeFolder : layout.dataSetFolders(dataSetName)) {
+                try (Stream<Path> stream = Files.walk(stripeFolder)) {
+                    List<Path> leftovers = stream.filter(Files::isRegularFile)
+                            .filter(file -> MasterDataSetSpec.isDataSetFile(file) ||
+                                    file.getFileName().toString().endsWith(TEMP_SUFFIX))
+                            .filter(file -> !planned.contains(file))
+                            .collect(Collectors.toList());
+                    for (Path leftover : leftovers) {
+                        Files.delete(leftover);
+                    }
+                    filesDeleted += leftovers.size();
+                } catch (IOException e) {
+                    throw new RuntimeException(format("Cannot clean data set folder %s", stripeFolder), e);
+                }
+            }
+            manifest.save();
+            fileCount += manifest.fileCount();
+        }
+        System.out.format("Merged %d partitions, %d files of data sets %s into %s across %d roots, deleted %d " +
+                "leftover files%n", completions.size(), fileCount,
+                generation.dataSets().stream().map(MasterDataSetSpec.DataSet::dataSetName).collect(Collectors.toList()),
+                inputFolder, layout.stripes(), filesDeleted);
+    }
+
+    private static int stripeOf(StripeLayout layout, Path root) {
+        for (int stripe = 0; stripe < layout.stripes(); stripe++) {
+            if (isSameFolder(layout.root(stripe), root)) {
+                return stripe;
+            }
+        }
+        throw new IllegalStateException(format("Root %s is not part of %s", root, layout));
+    }
+
+    private static boolean isSameFolder(Path folder, Path other) {
+        return folder.toAbsolutePath().normalize().equals(other.toAbsolutePath().normalize());
+    }
+
+    /**
+     * @return names of the data sets of the master data set, or the selected ones, sorted
+     */
+    private static List<String> existingDataSets(MasterDataSetSpec specification) {
+        if (!specification.selectedDataSets().isPresent()) {
+            return existingDataSets(specification.inputFolder());
+        }
+        List<String> dataSetNames = new ArrayList<>(specification.selectedDataSets().get());
+        Collections.sort(dataSetNames);
+        return dataSetNames;
+    }
+
+    /**
+     * @return names of the data sets in a folder, sorted
+     */
+    private static List<String> existingDataSets(Path folder) {
+        List<String> dataSetNames = new ArrayList<>();
+        try (Stream<Path> stream = Files.list(folder)) {
+            stream.filter(Files::isDirectory)
+                    .map(path -> path.getFileName().toString())
+                    .filter(name -> !name.startsWith("."))
+                    .forEach(dataSetNames::add);
+        } catch (IOException e) {
+            throw new RuntimeException(format("Cannot list data sets of %s", folder), e);
+        }
+        Collections.sort(dataSetNames);
+        return dataSetNames;
+    }
+
+    /**
+     * Runs the jobs of a job file in this JVM, see {@link MasterDataSetService}.
+     *
+     * Each non empty line of the job file, other than {@code #} comments, holds the arguments of a run as they would
+     * be given on the command line, separated by white space. Up to {@link MasterDataSetSpec#concurrentJobs()} jobs
+     * run at once, in the order of the file, and all of them share a pool of {@link MasterDataSetSpec#ioThreads()}
+     * threads. A failed job does not stop the others, but fails the batch once all jobs are done.
+     *
+     * @param specification master data set specification
+     */
+    private void batch(MasterDataSetSpec specification) {
+        Path jobFile = specification.jobFile();
+        List<MasterDataSetSpec> jobs = new ArrayList<>();
         try {
-            try (Stream<Path> stream = Files.list(dataSetDir)) {
-                Path smallest = stream
-                        .min(comparingLong(FileUtils::sizeOf))
-                        .get();
-                return smallest;
+            for (String line : Files.readAllLines(jobFile, StandardCharsets.UTF_8)) {
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("#")) {
+                    MasterDataSetSpec job = MasterDataSetSpec.fromArgs(line.split("\\s+"));
+                    Validate.isTrue(job.mode() != BATCH, "A job file cannot hold batch jobs: %s", line);
+                    jobs.add(job);
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(format("Cannot read job file %s", jobFile), e);
+        }
+        System.out.format("Running %d jobs of %s, %d at once on %d I/O threads%n", jobs.size(), jobFile,
+                specification.concurrentJobs(), specification.ioThreads());
+        long startTime = System.nanoTime();
+        int failed = 0;
+        try (MasterDataSetService service = new MasterDataSetService(specification.ioThreads(),
+                specification.concurrentJobs(), throttle)) {
+            List<CompletableFuture<RunResult>> results = new ArrayList<>();
+            jobs.forEach(job -> results.add(service.submit(job)));
+            for (int i = 0; i < jobs.size(); i++) {
+                MasterDataSetSpec job = jobs.get(i);
+                try {
+                    RunResult result = results.get(i).join();
+                    System.out.format("Job %d (%s %s) completed in %dms%n", i + 1, job.mode(), job.inputFolder(),
+                            result.elapsedMillis());
+                } catch (CompletionException e) {
+                    failed++;
+                    System.err.format("Job %d (%s %s) failed: %s%n", i + 1, job.mode(), job.inputFolder(),
+                            e.getCause());
+                }
             }
+        }
+        long elapsedTime = System.nanoTime() - startTime;
+        System.out.format("Ran %d jobs in %dms%n", jobs.size(), elapsedTime / 1_000_000);
+        if (failed > 0) {
+            throw new IllegalStateException(format("%d of %d jobs of %s failed", failed, jobs.size(), jobFile));
+        }
+    }
+
+    private static boolean isArchive(Path generation) {
+        try (Stream<Path> stream = Files.list(generation)) {
+            return stream.anyMatch(path -> path.getFileName().toString().endsWith(BlockArchive.EXTENSION));
         } catch (IOException e) {
-            throw new RuntimeException(format("Cannot find smallest file in data set %s", dataSetDir), e);
+            throw new RuntimeException(format("Cannot read backup generation %s", generation), e);
         }
     }
 
+    /**
+     * Runs all tasks on a bounded pool of worker threads, the shared one if any, and waits for their completion.
+     *
+     * @return the sum of the values returned by the tasks
+     */
+    private long runAll(List<Callable<Long>> tasks, int parallelism) {
+        ExecutorService executor = ioPool != null ? ioPool : Executors.newFixedThreadPool(parallelism);
+        try {
+            long total = 0;
+            for (Future<Long> future : executor.invokeAll(tasks)) {
+                total += future.get();
+            }
+            return total;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for tasks to complete", e);
+        } catch (ExecutionException e) {
+            Throwables.propagateIfPossible(e.getCause());
+            throw new RuntimeException(e.getCause());
+        } finally {
+            if (executor != ioPool) {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    private static double megaBytesPerSecond(long bytes, long elapsedNanos) {
+        return elapsedNanos == 0 ? 0 : (bytes / (double) ONE_MB) / (elapsedNanos / 1e9);
+    }
 
     public static void main(String[] args) throws IOException {
         long startTime = System.nanoTime();
         MasterDataSetSpec specification = MasterDataSetSpec.fromArgs(args);
         System.out.format("Running master data set with specification: %s%n", specification);
-        new MasterDataSetRunner().run(specification);
+        MasterDataSetRunner runner = new MasterDataSetRunner();
+        runner.metrics.register();
+        runner.throttle.register();
+        try {
+            runner.execute(specification);
+        } finally {
+            runner.metrics.unregister();
+        }
         long elapsedTime = System.nanoTime() - startTime;
         System.out.format("Total execution time in millis: %d%n", elapsedTime/1000000);
     }
@@ -0,0 +1,136 @@
+package org.trinakria.masterdataset;
+
+import org.apache.commons.lang3.Validate;
+
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs master data set operations inside the calling JVM, so that many runs share a warm JVM instead of paying
+ * startup and JIT warm-up each.
+ *
+ * Each submitted {@link MasterDataSetSpec} is run by its own {@link MasterDataSetRunner} on one of
+ * {@code concurrentRuns} threads, and all runs write, copy and read files on a single shared pool of
+ * {@code ioThreads} threads, which replaces the pool of {@link MasterDataSetSpec#parallelism()} threads a run gets on
+ * its own. The returned future completes with the {@link RunResult} of the run, or exceptionally if it fails; cancelling
+ * it stops the run at the next file or chunk its workers ask the {@link Throttle} for. Files completed by a cancelled
+ * {@code generate} or {@code update} are kept, and the run can be completed later with {@code --resume}.
+ *
+ * Besides the limits of its own, each run is paced by a throttle shared by all runs, which is how the limits given to a
+ * {@code BATCH} run apply to all its jobs together.
+ *
+ * MBeans are not registered for submitted runs, as several of them can be in progress at once.
+ *
+ * Closing the service waits a bounded time for the runs in progress, see {@link #close(long, TimeUnit)}.
+ *
+ * @author Mario Giurlanda
+ */
+public final class MasterDataSetService implements AutoCloseable {
+
+    static final long CLOSE_TIMEOUT_MINUTES = 1;
+
+    private final ForkJoinPool ioPool;
+    private final ExecutorService runs;
+    private final Set<MasterDataSetRunner> runners = ConcurrentHashMap.newKeySet();
+    private final Throttle throttle;
+
+    public MasterDataSetService(int ioThreads, int concurrentRuns) {
+        this(ioThreads, concurrentRuns, Throttle.unlimited());
+    }
+
+    /**
+     * @param throttle throttle shared by all runs, on top of the limits each of them gives
+     */
+    MasterDataSetService(int ioThreads, int concurrentRuns, Throttle throttle) {
+        Validate.isTrue(ioThreads > 0, "ioThreads must be a positive number");
+        Validate.isTrue(concurrentRuns > 0, "concurrentRuns must be a positive number");
+        this.ioPool = new ForkJoinPool(ioThreads);
+        AtomicInteger runCount = new AtomicInteger();
+        this.runs = Executors.newFixedThreadPool(concurrentRuns,
+                runnable -> new Thread(runnable, "master-dataset-run-" + runCount.incrementAndGet()));
+        this.throttle = throttle;
+    }
+
+    /**
+     * Submits a run.
+     *
+     * @return the future result of the run
+     */
+    public CompletableFuture<RunResult> submit(MasterDataSetSpec specification) {
+        return submit(specification, ProgressListener.NONE);
+    }
+
+    /**
+     * Submits a run whose progress is reported to the given listener.
+     *
+     * @return the future result of the run
+     */
+    public CompletableFuture<RunResult> submit(MasterDataSetSpec specification, ProgressListener listener) {
+        MasterDataSetRunner runner = new MasterDataSetRunner(ioPool, listener, throttle);
+        CompletableFuture<RunResult> result = new CompletableFuture<>();
+        runners.add(runner);
+        Future<?> task;
+        try {
+            task = runs.submit(() -> {
+                try {
+                    result.complete(runner.execute(specification));
+                } catch (Throwable e) {
+                    result.completeExceptionally(e);
+                } finally {
+                    runners.remove(runner);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            runners.remove(runner);
+            throw e;
+        }
+        result.whenComplete((runResult, e) -> {
+            if (result.isCancelled()) {
+                runner.cancel();
+                task.cancel(true);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Waits up to {@value #CLOSE_TIMEOUT_MINUTES} minute for the submitted runs to complete and releases the threads,
+     * see {@link #close(long, TimeUnit)}.
+     */
+    @Override
+    public void close() {
+        close(CLOSE_TIMEOUT_MINUTES, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Stops accepting runs, waits up to the given timeout for the submitted ones to complete and releases the threads.
+     * Runs still in progress after the timeout, or when the calling thread is interrupted, are cancelled: they stop at
+     * the next file or chunk and their futures complete exceptionally.
+     *
+     * @return true if all the submitted runs completed in time
+     */
+    public boolean close(long timeout, TimeUnit unit) {
+        runs.shutdown();
+        boolean completed = false;
+        try {
+            completed = runs.awaitTermination(timeout, unit);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (!completed) {
+                runners.forEach(MasterDataSetRunner::cancel);
+                runs.shutdownNow();
+            }
+            ioPool.shutdown();
+        }
+        return completed;
+    }
+}
@@ -5,16 +5,25 @@ import com.google.common.collect.Iterables;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.Validate;
 
+import java.lang.management.ManagementFactory;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
 
 import static java.lang.String.format;
 import static org.trinakria.masterdataset.MasterDataSetSpec.Mode.BACKUP;
+import static org.trinakria.masterdataset.MasterDataSetSpec.Mode.COMPACT;
 import static org.trinakria.masterdataset.MasterDataSetSpec.Mode.GENERATE;
+import static org.trinakria.masterdataset.MasterDataSetSpec.Mode.RESTORE;
 import static org.trinakria.masterdataset.MasterDataSetSpec.Mode.UPDATE;
 
 /**
@@ -28,13 +37,73 @@ public class MasterDataSetSpec {
      * Mode of operation on the data set.
      */
     public enum Mode {
-        GENERATE, UPDATE, BACKUP
+        GENERATE("parallelism", "write-strategy", "map-window-mb", "master-seed", "files", "resume", "roots",
+                "placement", "compression", "size-basis", "shards", "shard-depth", "shard-width", "durability",
+                "direct-io"),
+        UPDATE("parallelism", "write-strategy", "map-window-mb", "master-seed", "resume", "roots", "placement",
+                "size-basis", "durability", "direct-io"),
+        BACKUP("parallelism", "incremental", "hash", "format", "keep-last", "max-age-hours", "durability",
+                "direct-io"),
+        RESTORE("parallelism", "generation", "datasets"),
+        COMPACT("parallelism", "datasets"),
+        VERIFY("parallelism", "datasets", "size-basis", "backup-folder", "generation"),
+        BATCH("io-threads", "jobs"),
+        PRUNE("parallelism", "keep-last", "max-age-hours"),
+        RESHARD("shard-depth", "shard-width", "parallelism"),
+        PLAN("partition-files", "parallelism", "write-strategy", "map-window-mb", "master-seed", "files", "resume",
+                "compression", "size-basis", "shards", "shard-depth", "shard-width", "durability", "direct-io"),
+        WORKER("output", "worker-id", "claim-timeout-seconds", "parallelism", "durability", "direct-io"),
+        MERGE,
+        LOADTEST("duration-seconds", "concurrency", "qps", "read", "read-bytes", "access", "datasets", "master-seed");
+
+        /**
+         * Options the mode takes, besides the ones all modes take
+         */
+        private final Set<String> options;
+
+        Mode(String... options) {
+            this.options = new HashSet<>(Arrays.asList(options));
+        }
+    }
+
+    /**
+     * Format of a backup.
+     */
+    public enum BackupFormat {
+        /**
+         * Plain copy of the input folder
+         */
+        TREE,
+        /**
+         * One block compressed {@link BlockArchive} per data set
+         */
+        ARCHIVE
     }
 
     public static final int ONE_MB = 1024 * 1024;
     private static final String DELIMITER = ",";
     private static final int PARTITION_SIZE = 2;
-    static final String FILENAME_TEMPLATE = "file%d.txt";
+    private static final String OPTION_PREFIX = "--";
+    private static final String OPTION_SEPARATOR = "=";
+    private static final Set<String> COMMON_OPTIONS = new HashSet<>(Arrays.asList("metrics-file", "max-mb-per-second",
+            "max-files-per-second", "throttle-file"));
+    private static final String USAGE = "Usage (all modes accept --metrics-file=path --max-mb-per-second=N --max-files-per-second=N --throttle-file=path): \n" +
+            "GENERATE input_folder file_size <name1,size1>,<name2,size2> [--parallelism=N] [--write-strategy=stream|mapped] [--map-window-mb=N] [--master-seed=N] [--files=idx1,idx2] [--resume] [--roots=dir1,dir2] [--placement=round-robin|free-space] [--compression=none|gzip] [--size-basis=uncompressed|compressed] [--shards=flat|range|hash] [--shard-depth=N] [--shard-width=N] [--durability=none|per-file|batched] [--direct-io]\n" +
+            "UPDATE input_folder <name1,size1>,<name2,size2> [--parallelism=N] [--write-strategy=stream|mapped] [--map-window-mb=N] [--master-seed=N] [--resume] [--roots=dir1,dir2] [--placement=round-robin|free-space] [--size-basis=uncompressed|compressed] [--durability=none|per-file|batched] [--direct-io]\n" +
+            "BACKUP input_folder backup_folder [--parallelism=N] [--incremental] [--hash] [--format=tree|archive] [--keep-last=N] [--max-age-hours=N] [--durability=none|per-file|batched] [--direct-io]\n" +
+            "RESTORE input_folder backup_folder [--parallelism=N] [--generation=timestamp] [--datasets=name1,name2]\n" +
+            "COMPACT input_folder file_size [--parallelism=N] [--datasets=name1,name2]\n" +
+            "VERIFY input_folder [file_size <name1,size1>,<name2,size2>] [--parallelism=N] [--datasets=name1,name2] [--size-basis=uncompressed|compressed] [--backup-folder=path] [--generation=timestamp]\n" +
+            "BATCH job_file [--io-threads=N] [--jobs=N]\n" +
+            "PRUNE input_folder backup_folder [--parallelism=N] [--keep-last=N] [--max-age-hours=N]\n" +
+            "RESHARD input_folder flat|range|hash [--shard-depth=N] [--shard-width=N] [--parallelism=N]\n" +
+            "PLAN input_folder file_size <name1,size1>,<name2,size2> plan_file [--partition-files=N] [GENERATE options but --roots and --placement]\n" +
+            "WORKER plan_file [--output=root] [--worker-id=id] [--claim-timeout-seconds=N] [--parallelism=N] [--durability=none|per-file|batched] [--direct-io]\n" +
+            "MERGE plan_file\n" +
+            "LOADTEST input_folder [--duration-seconds=N] [--concurrency=N] [--qps=N] [--read=random|line] [--read-bytes=N] [--access=channel|mmap] [--datasets=name1,name2] [--master-seed=N]";
+    private static final String FILENAME_PREFIX = "file";
+    private static final String FILENAME_SUFFIX = ".txt";
+    static final String FILENAME_TEMPLATE = FILENAME_PREFIX + "%d" + FILENAME_SUFFIX;
 
     /**
      * Master data set input folder/
@@ -56,17 +125,27 @@ public class MasterDataSetSpec {
      * Optional back up folder to be used in case of {@link Mode#BACKUP}
      */
     private final Optional<Path> backupFolder;
+    /**
+     * Optional settings given as {@code --name=value} arguments
+     */
+    private final Map<String, String> options;
 
     public MasterDataSetSpec(Mode mode, Path inputFolder, long fileSize, List<DataSet> dataSets) {
         this(mode, inputFolder, fileSize, dataSets, Optional.empty());
     }
 
     public MasterDataSetSpec(Mode mode, Path inputFolder, long fileSize, List<DataSet> dataSets, Optional<Path> backupFolder) {
+        this(mode, inputFolder, fileSize, dataSets, backupFolder, Collections.emptyMap());
+    }
+
+    public MasterDataSetSpec(Mode mode, Path inputFolder, long fileSize, List<DataSet> dataSets, Optional<Path> backupFolder,
+                             Map<String, String> options) {
         this.inputFolder = inputFolder;
         this.fileSize = fileSize;
         this.dataSets = dataSets;
         this.mode = mode;
         this.backupFolder = backupFolder;
+        this.options = Collections.unmodifiableMap(new HashMap<>(options));
     }
 
     /**
@@ -75,12 +154,18 @@ public class MasterDataSetSpec {
      * @return a {@MasterDataSetSpec}
      */
     public static MasterDataSetSpec fromArgs(String[] args) {
-        Validate.notEmpty(args, "Usage: \n" +
-                "GENERATE input_folder file_size <name1,size1>,<name2,size2> \n" +
-                "UPDATE input_folder <name1,size1>,<name2,size2> \n" +
-                "BACKUP input_folder backup_folder");
+        Validate.notEmpty(args, USAGE);
+
+        Map<String, String> options = parseOptions(args);
+        args = Arrays.stream(args)
+                .filter(arg -> !arg.startsWith(OPTION_PREFIX))
+                .toArray(String[]::new);
 
         Mode mode = Mode.valueOf(args[0].toUpperCase());
+        Set<String> unknown = new TreeSet<>(options.keySet());
+        unknown.removeAll(COMMON_OPTIONS);
+        unknown.removeAll(mode.options);
+        Validate.isTrue(unknown.isEmpty(), "Unknown options %s for %s. %s", unknown, mode, USAGE);
         Path inputFolderArg = Paths.get(args[1]);
         long fileSize = 0;
         List<DataSet> structure = Collections.EMPTY_LIST;
@@ -104,12 +189,85 @@ public class MasterDataSetSpec {
                 backupFolder = Optional.of(Paths.get(args[2]));
                 break;
             }
+            case RESTORE: {
+                Validate.isTrue(args.length == 3, "3 args are expected: RESTORE, input_folder, backup_folder");
+                backupFolder = Optional.of(Paths.get(args[2]));
+                break;
+            }
+            case COMPACT: {
+                Validate.isTrue(args.length == 3, "3 args are expected: COMPACT, input_folder, file_size");
+                fileSize = toLong(args[2]);
+                Validate.isTrue(fileSize > 0, "file_size must be a positive number");
+                break;
+            }
+            case VERIFY: {
+                Validate.isTrue(args.length == 2 || args.length == 4, "2 or 4 args are expected: VERIFY, input_folder " +
+                        "[file_size <name1,size1>,<name2,size2>]");
+                if (args.length == 4) {
+                    fileSize = toLong(args[2]);
+                    Validate.isTrue(fileSize > 0, "file_size must be a positive number");
+                    structure = parseDataSetStructure(args[3]);
+                }
+                backupFolder = Optional.ofNullable(options.get("backup-folder")).map(Paths::get);
+                break;
+            }
+            case BATCH: {
+                Validate.isTrue(args.length == 2, "2 args are expected: BATCH, job_file");
+                break;
+            }
+            case PRUNE: {
+                Validate.isTrue(args.length == 3, "3 args are expected: PRUNE, input_folder, backup_folder");
+                backupFolder = Optional.of(Paths.get(args[2]));
+                break;
+            }
+            case RESHARD: {
+                Validate.isTrue(args.length == 3, "3 args are expected: RESHARD, input_folder, flat|range|hash");
+                options.put("shards", args[2]);
+                break;
+            }
+            case PLAN: {
+                Validate.isTrue(args.length == 5, "5 args are expected: PLAN, input_folder, file_size " +
+                        "<name1,size1>,<name2,size2>, plan_file");
+                fileSize = toLong(args[2]);
+                Validate.isTrue(fileSize > 0, "file_size must be a positive number");
+                structure = parseDataSetStructure(args[3]);
+                options.put("plan-file", args[4]);
+                break;
+            }
+            case WORKER: {
+                Validate.isTrue(args.length == 2, "2 args are expected: WORKER, plan_file");
+                break;
+            }
+            case MERGE: {
+                Validate.isTrue(args.length == 2, "2 args are expected: MERGE, plan_file");
+                break;
+            }
+            case LOADTEST: {
+                Validate.isTrue(args.length == 2, "2 args are expected: LOADTEST, input_folder");
+                break;
+            }
             default: {
                 throw new IllegalArgumentException(format("Unknown mode %s", mode));
             }
         }
 
-        return new MasterDataSetSpec(mode, inputFolderArg, fileSize, structure, backupFolder);
+        return new MasterDataSetSpec(mode, inputFolderArg, fileSize, structure, backupFolder, options);
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (arg.startsWith(OPTION_PREFIX)) {
+                String option = arg.substring(OPTION_PREFIX.length());
+                int separator = option.indexOf(OPTION_SEPARATOR);
+                if (separator < 0) {
+                    options.put(option, Boolean.TRUE.toString());
+                } else {
+                    options.put(option.substring(0, separator), option.substring(separator + 1));
+                }
+            }
+        }
+        return options;
     }
 
     private static List<DataSet> parseDataSetStructure(String structureStr) {
@@ -154,6 +312,354 @@ public class MasterDataSetSpec {
         return backupFolder;
     }
 
+    public Map<String, String> options() {
+        return options;
+    }
+
+    /**
+     * @return number of worker threads used to write or copy files, 1 by default
+     */
+    public int parallelism() {
+        int parallelism = intOption("parallelism", 1);
+        Validate.isTrue(parallelism > 0, "parallelism must be a positive number");
+        return parallelism;
+    }
+
+    /**
+     * @return file holding the jobs of {@link Mode#BATCH}, one command line per line
+     */
+    public Path jobFile() {
+        Validate.isTrue(mode == Mode.BATCH, "Only batch runs have a job file");
+        return inputFolder;
+    }
+
+    /**
+     * @return file holding the {@link PartitionPlan} written by {@link Mode#PLAN} and executed by {@link Mode#WORKER}
+     * and {@link Mode#MERGE}
+     */
+    public Path planFile() {
+        Validate.isTrue(mode == Mode.PLAN || mode == Mode.WORKER || mode == Mode.MERGE,
+                "Only plan, worker and merge runs have a plan file");
+        return mode == Mode.PLAN ? Paths.get(options.get("plan-file")) : inputFolder;
+    }
+
+    /**
+     * @return max number of files of a partition of a {@link PartitionPlan}, {@link PartitionPlan#DEFAULT_PARTITION_FILES}
+     * by default
+     */
+    long partitionFiles() {
+        return longOption("partition-files", PartitionPlan.DEFAULT_PARTITION_FILES);
+    }
+
+    /**
+     * @return root folder a worker writes the files of its partitions to, if not the input folder of the plan
+     */
+    Optional<Path> outputRoot() {
+        return Optional.ofNullable(options.get("output")).map(Paths::get);
+    }
+
+    /**
+     * @return identity of a worker in the claims of a {@link PartitionPlan}, {@code pid@host} by default
+     */
+    String workerId() {
+        return options.getOrDefault("worker-id", ManagementFactory.getRuntimeMXBean().getName());
+    }
+
+    /**
+     * @return seconds after which a claim whose worker stopped touching it is taken over by another worker, 600 by
+     * default
+     */
+    long claimTimeoutSeconds() {
+        long timeout = longOption("claim-timeout-seconds", 600);
+        Validate.isTrue(timeout > 0, "claim-timeout-seconds must be a positive number");
+        return timeout;
+    }
+
+    /**
+     * @return number of threads issuing the reads of {@link Mode#LOADTEST}, 1 by default
+     */
+    int concurrency() {
+        int concurrency = intOption("concurrency", 1);
+        Validate.isTrue(concurrency > 0, "concurrency must be a positive number");
+        return concurrency;
+    }
+
+    /**
+     * @return reads per second issued by {@link Mode#LOADTEST} across its threads, 0 (as fast as they complete) by
+     * default
+     */
+    long targetQps() {
+        return longOption("qps", 0);
+    }
+
+    /**
+     * @return seconds {@link Mode#LOADTEST} issues reads for, 30 by default
+     */
+    long loadTestSeconds() {
+        return longOption("duration-seconds", 30);
+    }
+
+    /**
+     * @return what a read of {@link Mode#LOADTEST} returns, {@link DataSetLoadTest.Read#RANDOM} by default
+     */
+    DataSetLoadTest.Read loadTestRead() {
+        return DataSetLoadTest.Read.valueOf(options.getOrDefault("read", DataSetLoadTest.Read.RANDOM.name())
+                .toUpperCase());
+    }
+
+    /**
+     * @return bytes of a {@link DataSetLoadTest.Read#RANDOM} read, 4096 by default
+     */
+    int readBytes() {
+        return intOption("read-bytes", 4096);
+    }
+
+    /**
+     * @return how {@link Mode#LOADTEST} reads files, {@link DataSetLoadTest.Access#CHANNEL} by default
+     */
+    DataSetLoadTest.Access loadTestAccess() {
+        return DataSetLoadTest.Access.valueOf(options.getOrDefault("access", DataSetLoadTest.Access.CHANNEL.name())
+                .toUpperCase());
+    }
+
+    /**
+     * @return number of threads shared by the jobs of {@link Mode#BATCH} to write, copy and read files, one per core
+     * by default
+     */
+    public int ioThreads() {
+        int ioThreads = intOption("io-threads", Runtime.getRuntime().availableProcessors());
+        Validate.isTrue(ioThreads > 0, "io-threads must be a positive number");
+        return ioThreads;
+    }
+
+    /**
+     * @return number of jobs of {@link Mode#BATCH} run at once, 1 by default so that jobs run in the order of the job
+     * file
+     */
+    public int concurrentJobs() {
+        int jobs = intOption("jobs", 1);
+        Validate.isTrue(jobs > 0, "jobs must be a positive number");
+        return jobs;
+    }
+
+    /**
+     * @return settings used to write data set files, see {@link WriteSettings}
+     */
+    public WriteSettings writeSettings() {
+        WriteSettings.Strategy strategy = WriteSettings.Strategy.valueOf(
+                options.getOrDefault("write-strategy", WriteSettings.Strategy.STREAM.name()).toUpperCase());
+        long mapWindowBytes = longOption("map-window-mb", WriteSettings.DEFAULT_MAP_WINDOW_BYTES / ONE_MB) * ONE_MB;
+        WriteSettings.Compression compression = WriteSettings.Compression.valueOf(
+                options.getOrDefault("compression", WriteSettings.Compression.NONE.name()).toUpperCase());
+        WriteSettings.SizeBasis sizeBasis = WriteSettings.SizeBasis.valueOf(
+                options.getOrDefault("size-basis", WriteSettings.SizeBasis.UNCOMPRESSED.name()).toUpperCase());
+        return WriteSettings.of(strategy, mapWindowBytes, compression, sizeBasis)
+                .withDirectIo(booleanOption("direct-io"));
+    }
+
+    /**
+     * @return format of the backup, {@link BackupFormat#TREE} by default
+     */
+    public BackupFormat backupFormat() {
+        return BackupFormat.valueOf(options.getOrDefault("format", BackupFormat.TREE.name()).toUpperCase());
+    }
+
+    /**
+     * @return rules deciding which older backup generations are deleted, if any is given
+     */
+    Optional<BackupRetention> retention() {
+        if (!options.containsKey("keep-last") && !options.containsKey("max-age-hours")) {
+            return Optional.empty();
+        }
+        return Optional.of(BackupRetention.of(intOption("keep-last", 0), longOption("max-age-hours", 0)));
+    }
+
+    /**
+     * @return timestamp of the backup generation to be restored, the latest one if empty
+     */
+    public Optional<String> backupGeneration() {
+        return Optional.ofNullable(options.get("generation"));
+    }
+
+    /**
+     * @return names of the data sets an operation is restricted to, all data sets if empty
+     */
+    public Optional<Set<String>> selectedDataSets() {
+        String names = options.get("datasets");
+        if (names == null) {
+            return Optional.empty();
+        }
+        Set<String> dataSetNames = new HashSet<>();
+        Splitter.on(DELIMITER).trimResults().omitEmptyStrings().split(names).forEach(dataSetNames::add);
+        return Optional.of(dataSetNames);
+    }
+
+    /**
+     * @return file the JSON metrics summary of the run is written to, if any
+     */
+    public Optional<Path> metricsFile() {
+        return Optional.ofNullable(options.get("metrics-file")).map(Paths::get);
+    }
+
+    /**
+     * @return further root folders the files of the data sets are striped across, besides the input folder, see
+     * {@link StripeLayout}
+     */
+    public List<Path> roots() {
+        String roots = options.get("roots");
+        if (roots == null) {
+            return Collections.emptyList();
+        }
+        List<Path> paths = new ArrayList<>();
+        Splitter.on(DELIMITER).trimResults().omitEmptyStrings().split(roots).forEach(root -> paths.add(Paths.get(root)));
+        return paths;
+    }
+
+    /**
+     * @return how new files are assigned to the roots, {@link StripeLayout.Placement#ROUND_ROBIN} by default
+     */
+    StripeLayout.Placement placement() {
+        return StripeLayout.Placement.valueOf(options.getOrDefault("placement",
+                StripeLayout.Placement.ROUND_ROBIN.name()).toUpperCase().replace('-', '_'));
+    }
+
+    /**
+     * @return when written files are forced to disk, {@link FileSyncer.Durability#NONE} by default
+     */
+    FileSyncer.Durability durability() {
+        return FileSyncer.Durability.valueOf(options.getOrDefault("durability",
+                FileSyncer.Durability.NONE.name()).toUpperCase().replace('-', '_'));
+    }
+
+    /**
+     * @return layout of the files in the data set folders given by {@code --shards}, {@code --shard-depth} and
+     * {@code --shard-width}, if any, see {@link ShardLayout}
+     */
+    Optional<ShardLayout> shardLayout() {
+        String shards = options.get("shards");
+        if (shards == null) {
+            return Optional.empty();
+        }
+        ShardLayout.Scheme scheme = ShardLayout.Scheme.valueOf(shards.toUpperCase());
+        int width = intOption("shard-width", scheme == ShardLayout.Scheme.HASH ?
+                ShardLayout.DEFAULT_HASH_WIDTH : ShardLayout.DEFAULT_RANGE_WIDTH);
+        return Optional.of(ShardLayout.of(scheme, intOption("shard-depth", ShardLayout.DEFAULT_DEPTH), width));
+    }
+
+    /**
+     * @return true if the files completed by an interrupted run are to be kept and only the remaining ones written
+     */
+    public boolean resume() {
+        return booleanOption("resume");
+    }
+
+    /**
+     * @return max number of MB written or copied per second by all threads together, 0 (unlimited) by default
+     */
+    public long maxMegaBytesPerSecond() {
+        return longOption(Throttle.MAX_MB_PER_SECOND, 0);
+    }
+
+    /**
+     * @return max number of files written or copied per second by all threads together, 0 (unlimited) by default
+     */
+    public long maxFilesPerSecond() {
+        return longOption(Throttle.MAX_FILES_PER_SECOND, 0);
+    }
+
+    /**
+     * @return control file the throttle limits are read from while the run is in progress, if any
+     */
+    public Optional<Path> throttleFile() {
+        return Optional.ofNullable(options.get("throttle-file")).map(Paths::get);
+    }
+
+    /**
+     * @return seed from which the content of every file of the master data set is derived, 0 by default
+     */
+    public long masterSeed() {
+        return longOption("master-seed", 0);
+    }
+
+    /**
+     * @return indices of the files to be (re)generated, if only some of them are wanted
+     */
+    public Optional<Set<Long>> onlyFiles() {
+        String files = options.get("files");
+        if (files == null) {
+            return Optional.empty();
+        }
+        Set<Long> indices = new HashSet<>();
+        Splitter.on(DELIMITER).trimResults().omitEmptyStrings().split(files)
+                .forEach(idx -> indices.add(toLong(idx)));
+        return Optional.of(indices);
+    }
+
+    /**
+     * @return name of a data set file, after {@link #FILENAME_TEMPLATE} followed by the extension of the compression
+     */
+    static String fileName(long fileIndex, WriteSettings.Compression compression) {
+        return format(FILENAME_TEMPLATE, fileIndex) + compression.extension();
+    }
+
+    /**
+     * @return true if the file is named after {@link #FILENAME_TEMPLATE}, compressed or not
+     */
+    static boolean isDataSetFile(Path file) {
+        String fileName = uncompressedName(file);
+        return fileName.startsWith(FILENAME_PREFIX) && fileName.endsWith(FILENAME_SUFFIX) &&
+                fileName.length() > FILENAME_PREFIX.length() + FILENAME_SUFFIX.length() &&
+                fileName.substring(FILENAME_PREFIX.length(), fileName.length() - FILENAME_SUFFIX.length())
+                        .chars().allMatch(Character::isDigit);
+    }
+
+    /**
+     * @return true if the data set file is named after {@link #FILENAME_TEMPLATE} and
+     * {@link WriteSettings.Compression#GZIP}
+     */
+    static boolean isCompressed(Path file) {
+        return file.getFileName().toString().endsWith(WriteSettings.Compression.GZIP.extension());
+    }
+
+    /**
+     * @return index of a data set file named after {@link #FILENAME_TEMPLATE}, compressed or not
+     */
+    static long fileIndex(Path file) {
+        String fileName = uncompressedName(file);
+        Validate.isTrue(fileName.startsWith(FILENAME_PREFIX) && fileName.endsWith(FILENAME_SUFFIX),
+                "Not a data set file: %s", file);
+        return toLong(fileName.substring(FILENAME_PREFIX.length(), fileName.length() - FILENAME_SUFFIX.length()));
+    }
+
+    private static String uncompressedName(Path file) {
+        String fileName = file.getFileName().toString();
+        return isCompressed(file) ?
+                fileName.substring(0, fileName.length() - WriteSettings.Compression.GZIP.extension().length()) : fileName;
+    }
+
+    long longOption(String name, long defaultValue) {
+        String value = options.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(format("--%s=%s is not a number. %s", name, value, USAGE));
+        }
+    }
+
+    int intOption(String name, int defaultValue) {
+        long value = longOption(name, defaultValue);
+        Validate.isTrue(value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE, "--%s=%s is out of range. %s",
+                name, options.get(name), USAGE);
+        return (int) value;
+    }
+
+    boolean booleanOption(String name) {
+        return Boolean.parseBoolean(options.get(name));
+    }
+
     public static final class DataSet {
         private final String dataSetName;
         private final long dataSetSizeMB;
@@ -205,7 +711,7 @@ public class MasterDataSetSpec {
         try {
             return Long.parseLong(str);
         } catch (NumberFormatException e) {
-            throw new IllegalArgumentException(format("% is not a number", str));
+            throw new IllegalArgumentException(format("%s is not a number", str));
         }
     }
 
@@ -222,6 +728,7 @@ public class MasterDataSetSpec {
                 ", fileSize=" + fileSize +
                 ", dataSets=" + dataSets +
                 ", backupFolder=" + backupFolder +
+                ", options=" + options +
                 '}';
     }
 }
@@ -0,0 +1,622 @@
+package org.trinakria.masterdataset;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static java.lang.String.format;
+import static java.nio.file.FileVisitResult.CONTINUE;
+import static java.nio.file.FileVisitResult.SKIP_SUBTREE;
+import static java.nio.file.StandardCopyOption.COPY_ATTRIBUTES;
+
+/**
+ * Copies a file tree with a pool of threads.
+ *
+ * The tree is enumerated once, then directories are created and files are copied concurrently on a work-stealing
+ * {@link ForkJoinPool}. File content is moved with {@link FileChannel#transferTo} so it stays in the kernel, and files
+ * larger than {@link #RANGE_SIZE_BYTE} are split into ranges copied in parallel. Once all files are copied the
+ * modification time of the directories is fixed up, deepest first.
+ *
+ * As {@link FileUtils#copyFile}, a file that already exists in the target tree is not copied again.
+ *
+ * The copier records a {@link BackupManifest} of the files it visits. When the manifest of a previous copy of the same
+ * tree is given (see {@link #incremental}) files that have not changed since are hard-linked from the previous copy,
+ * and files that have grown by appending get the previous copy of their content plus only the appended tail from the
+ * source. A file has grown by appending if its first bytes have the CRC32 of the previous copy, as recorded in the
+ * previous manifest or computed from the previous copy; files rewritten since, for instance by a compaction, are
+ * copied whole. All the files of a folder holding a {@link DataSetCompactor#REWRITE_MARKER} that is not in the previous
+ * manifest, or has changed since, are copied whole as well.
+ *
+ * In {@link #mirror} mode, used to restore a backup, files of the target that differ from the source are replaced,
+ * files that match are skipped, and files and folders of the target that are not in the source are removed.
+ *
+ * Copies can be paced by a {@link Throttle}, which is asked for each copied file and each transferred chunk, and made
+ * durable by a {@link FileSyncer}. With {@link #directIo} target files are written around the page cache.
+ *
+ * @author Mario Giurlanda
+ */
+class ParallelTreeCopier {
+
+    static final long RANGE_SIZE_BYTE = 256L * MasterDataSetSpec.ONE_MB;
+    private static final long TRANSFER_CHUNK_BYTE = 8L * MasterDataSetSpec.ONE_MB;
+
+    private final Path source;
+    private final Path target;
+    private final boolean preserve;
+    private final int parallelism;
+    private final List<Path> directories = new ArrayList<>();
+    private final List<FileEntry> files = new ArrayList<>();
+    private final List<Path> rewrittenFolders = new ArrayList<>();
+    private final AtomicLong bytesCopied = new AtomicLong();
+    private final AtomicLong filesCopied = new AtomicLong();
+    private final AtomicLong filesLinked = new AtomicLong();
+    private final BackupManifest manifest = new BackupManifest();
+    private Path previousCopy;
+    private BackupManifest previousManifest;
+    private boolean hash;
+    private Predicate<Path> filter = path -> true;
+    private boolean mirror;
+    private BackupManifest expected;
+    private final AtomicLong filesSkipped = new AtomicLong();
+    private final AtomicLong filesRemoved = new AtomicLong();
+    private RunMetrics.Phase metrics = RunMetrics.Phase.detached("copy");
+    private Throttle throttle = Throttle.unlimited();
+    private ForkJoinPool pool;
+    private FileSyncer syncer = FileSyncer.of(FileSyncer.Durability.NONE);
+    private boolean directIo;
+
+    ParallelTreeCopier(Path source, Path target, boolean preserve, int parallelism) {
+        this.source = source;
+        this.target = target;
+        this.preserve = preserve;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Makes the copy incremental with respect to a previous copy of the same source tree. Folders rewritten since the
+     * previous copy, as told by a new {@link DataSetCompactor#REWRITE_MARKER}, are copied whole.
+     *
+     * @param previousCopy root of the previous copy
+     * @param previousManifest manifest of the previous copy
+     * @param hash if true, files are only considered unchanged if their CRC32 matches as well
+     * @return this copier
+     */
+    ParallelTreeCopier incremental(Path previousCopy, BackupManifest previousManifest, boolean hash) {
+        this.previousCopy = previousCopy;
+        this.previousManifest = previousManifest;
+        this.hash = hash;
+        return this;
+    }
+
+    /**
+     * Restricts the copy to the files and directories whose path relative to the source is accepted by the filter.
+     *
+     * @return this copier
+     */
+    ParallelTreeCopier filter(Predicate<Path> filter) {
+        this.filter = filter;
+        return this;
+    }
+
+    /**
+     * Makes the target a mirror of the source. A target file is considered up to date when it has the size and
+     * modification time of the source file as recorded in the {@code expected} manifest, or as found on disk if the
+     * manifest has no entry for it. Copied files get that modification time.
+     *
+     * @param expected manifest describing the source files, can be empty
+     * @return this copier
+     */
+    ParallelTreeCopier mirror(BackupManifest expected) {
+        this.mirror = true;
+        this.expected = expected;
+        return this;
+    }
+
+    /**
+     * Records each copied file, with its size and copy latency, in the given phase.
+     *
+     * @return this copier
+     */
+    ParallelTreeCopier metrics(RunMetrics.Phase metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    /**
+     * Limits the rate at which files and bytes are copied.
+     *
+     * @return this copier
+     */
+    ParallelTreeCopier throttle(Throttle throttle) {
+        this.throttle = throttle;
+        return this;
+    }
+
+    /**
+     * Runs the copies on a pool shared with other runs instead of a pool of its own, unless null.
+     *
+     * @return this copier
+     */
+    ParallelTreeCopier pool(ForkJoinPool pool) {
+        this.pool = pool;
+        return this;
+    }
+
+    /**
+     * Commits each copied or linked file to the given syncer, which makes it durable along with the folders up to
+     * the target root.
+     *
+     * @return this copier
+     */
+    ParallelTreeCopier syncer(FileSyncer syncer) {
+        this.syncer = syncer;
+        return this;
+    }
+
+    /**
+     * Writes whole copied files around the page cache with {@link DirectIo}, and releases the other copies from it.
+     *
+     * @return this copier
+     */
+    ParallelTreeCopier directIo(boolean directIo) {
+        this.directIo = directIo;
+        return this;
+    }
+
+    /**
+     * Copies the tree.
+     *
+     * @return number of bytes copied
+     */
+    long copy() {
+        enumerate();
+        List<Path> failedDirectories = new ArrayList<>();
+        directories.stream()
+                .filter(dir -> !copyDirectory(dir))
+                .forEach(failedDirectories::add);
+        // as with a visitor, the content of a directory that cannot be created is skipped
+        files.removeIf(file -> failedDirectories.stream().anyMatch(file.path::startsWith));
+        if (previousManifest != null) {
+            findRewrittenFolders();
+        }
+        ForkJoinPool pool = this.pool != null ? this.pool : new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    List<RecursiveAction> tasks = new ArrayList<>();
+                    files.forEach(file -> tasks.add(new CopyFileTask(file)));
+                    invokeAll(tasks);
+                }
+            });
+        } finally {
+            if (pool != this.pool) {
+                pool.shutdown();
+            }
+        }
+        if (mirror) {
+            removeExtraneousFiles();
+        }
+        if (preserve) {
+            for (int i = directories.size() - 1; i >= 0; i--) {
+                fixUpModificationTime(directories.get(i));
+            }
+        }
+        return bytesCopied.get();
+    }
+
+    long filesCopied() {
+        return filesCopied.get();
+    }
+
+    long filesLinked() {
+        return filesLinked.get();
+    }
+
+    long filesSkipped() {
+        return filesSkipped.get();
+    }
+
+    long filesRemoved() {
+        return filesRemoved.get();
+    }
+
+    /**
+     * @return manifest of the files visited by the last copy
+     */
+    BackupManifest manifest() {
+        return manifest;
+    }
+
+    private void enumerate() {
+        try {
+            Files.walkFileTree(source, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE,
+                    new SimpleFileVisitor<Path>() {
+                        @Override
+                        public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                            if (!dir.equals(source) && !filter.test(source.relativize(dir))) {
+                                return SKIP_SUBTREE;
+                            }
+                            directories.add(dir);
+                            return CONTINUE;
+                        }
+
+                        @Override
+                        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                            if (!filter.test(source.relativize(file))) {
+                                return CONTINUE;
+                            }
+                            files.add(new FileEntry(file, attrs.size(), attrs.lastModifiedTime().toMillis()));
+                            return CONTINUE;
+                        }
+
+                        @Override
+                        public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                            if (exc instanceof FileSystemLoopException) {
+                                System.err.println("cycle detected: " + file);
+                                return SKIP_SUBTREE;
+                            }
+                            System.err.format("Unable to copy: %s: %s%n", file, exc);
+                            return CONTINUE;
+                        }
+                    });
+        } catch (IOException e) {
+            throw new RuntimeException(format("Unable to copy: %s to %s", source, target), e);
+        }
+    }
+
+    private void findRewrittenFolders() {
+        for (FileEntry file : files) {
+            if (file.path.getFileName().toString().equals(DataSetCompactor.REWRITE_MARKER)) {
+                BackupManifest.Entry entry = new BackupManifest.Entry(file.size, file.modifiedMillis, null);
+                if (!previousManifest.get(source.relativize(file.path).toString())
+                        .map(previous -> previous.sameAs(entry)).orElse(false)) {
+                    System.out.format("%s was rewritten since the previous copy, copying it whole%n",
+                            file.path.getParent());
+                    rewrittenFolders.add(file.path.getParent());
+                }
+            }
+        }
+    }
+
+    private boolean copyDirectory(Path dir) {
+        // okay if directory already exists
+        CopyOption[] options = (preserve) ? new CopyOption[] { COPY_ATTRIBUTES } : new CopyOption[0];
+        Path newdir = resolve(dir);
+        try {
+            Files.copy(dir, newdir, options);
+        } catch (FileAlreadyExistsException x) {
+            // ignore
+        } catch (IOException x) {
+            System.err.format("Unable to create: %s: %s%n", newdir, x);
+            return false;
+        }
+        return true;
+    }
+
+    private void fixUpModificationTime(Path dir) {
+        Path newdir = resolve(dir);
+        try {
+            FileTime time = Files.getLastModifiedTime(dir);
+            Files.setLastModifiedTime(newdir, time);
+        } catch (IOException x) {
+            System.err.format("Unable to copy all attributes to: %s: %s%n", newdir, x);
+        }
+    }
+
+    /**
+     * Removes the files of the target that are not in the source. The folders right below the root are walked whole,
+     * so files in folders the source does not have, such as shard folders created since the backup, are removed too,
+     * along with those folders.
+     *
+     * @throws RuntimeException if any of them cannot be listed or removed, as the target would not mirror the source
+     */
+    private void removeExtraneousFiles() {
+        Set<Path> sourceFiles = files.stream().map(file -> file.path).collect(Collectors.toSet());
+        Set<Path> sourceDirectories = new HashSet<>(directories);
+        List<Path> extraneousDirectories = new ArrayList<>();
+        List<String> failures = new ArrayList<>();
+        for (Path dir : directories) {
+            boolean root = dir.equals(source);
+            if (!root && !dir.getParent().equals(source)) {
+                // walked with its top level folder
+                continue;
+            }
+            try (Stream<Path> stream = root ? Files.list(resolve(dir)) : Files.walk(resolve(dir))) {
+                stream.filter(path -> filter.test(target.relativize(path)))
+                        .forEach(path -> {
+                            Path sourcePath = source.resolve(target.relativize(path));
+                            if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                                if (!sourceDirectories.contains(sourcePath)) {
+                                    extraneousDirectories.add(path);
+                                }
+                            } else if (!sourceFiles.contains(sourcePath)) {
+                                try {
+                                    Files.delete(path);
+                                    filesRemoved.incrementAndGet();
+                                } catch (IOException x) {
+                                    failures.add(format("Unable to remove: %s: %s", path, x));
+                                }
+                            }
+                        });
+            } catch (IOException | UncheckedIOException x) {
+                failures.add(format("Unable to list: %s: %s", resolve(dir), x));
+            }
+        }
+        // deepest first, so that nested folders are empty by the time their parent is removed
+        extraneousDirectories.sort(Comparator.comparingInt(Path::getNameCount).reversed());
+        for (Path dir : extraneousDirectories) {
+            try {
+                Files.delete(dir);
+            } catch (IOException x) {
+                failures.add(format("Unable to remove: %s: %s", dir, x));
+            }
+        }
+        if (!failures.isEmpty()) {
+            failures.forEach(System.err::println);
+            throw new RuntimeException(format("Unable to mirror %s to %s, %d paths not removed, first one %s", source,
+                    target, failures.size(), failures.get(0)));
+        }
+    }
+
+    private Path resolve(Path path) {
+        return target.resolve(source.relativize(path));
+    }
+
+    /**
+     * Copies a range of the source file to the same range of the target file.
+     *
+     * @return number of bytes copied, always {@code count}
+     * @throws IOException if the source file shrank while being copied, as another range may already have been
+     * written past the missing bytes, which would leave a hole in the copy
+     */
+    private long transfer(Path source, Path target, long position, long count, boolean direct) throws IOException {
+        if (direct) {
+            Optional<DirectIo.Channel> out = DirectIo.open(target, EnumSet.of(StandardOpenOption.WRITE));
+            if (out.isPresent()) {
+                try (DirectIo.Channel channel = out.get()) {
+                    return transferDirect(source, channel, position, count);
+                }
+            }
+        }
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(target, StandardOpenOption.WRITE)) {
+            out.position(position);
+            long end = position + count;
+            while (position < end) {
+                long chunk = Math.min(TRANSFER_CHUNK_BYTE, end - position);
+                throttle.acquireBytes(chunk);
+                long transferred = in.transferTo(position, chunk, out);
+                if (transferred <= 0) {
+                    throw new IOException(format("%s shrank while being copied", source));
+                }
+                position += transferred;
+            }
+            if (directIo) {
+                DirectIo.release(out);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Copies a range that starts at a block boundary and either ends at one or at the end of the file through an
+     * aligned buffer, padding the last block of the file and truncating it to its size afterwards.
+     */
+    private long transferDirect(Path source, DirectIo.Channel out, long position, long count) throws IOException {
+        ByteBuffer buffer = DirectIo.buffer();
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ)) {
+            long end = position + count;
+            while (position < end) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                throttle.acquireBytes(buffer.remaining());
+                while (buffer.hasRemaining() && in.read(buffer, position + buffer.position()) > 0) {
+                    // fill the buffer unless the source file shrank while being copied
+                }
+                if (buffer.hasRemaining()) {
+                    throw new IOException(format("%s shrank while being copied", source));
+                }
+                buffer.flip();
+                position += out.write(buffer, position);
+            }
+            if (!out.isAligned(position)) {
+                out.channel().truncate(position);
+            }
+        }
+        return count;
+    }
+
+    private static final class FileEntry {
+        private final Path path;
+        private final long size;
+        private final long modifiedMillis;
+
+        FileEntry(Path path, long size, long modifiedMillis) {
+            this.path = path;
+            this.size = size;
+            this.modifiedMillis = modifiedMillis;
+        }
+    }
+
+    private final class CopyFileTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final FileEntry file;
+
+        CopyFileTask(FileEntry file) {
+            this.file = file;
+        }
+
+        @Override
+        protected void compute() {
+            long startTime = System.nanoTime();
+            boolean copied = mirror ? mirrorFile() : copyFile();
+            if (copied) {
+                metrics.record(RunMetrics.dataSetOf(source.relativize(file.path)), file.size,
+                        System.nanoTime() - startTime);
+            }
+        }
+
+        private boolean copyFile() {
+            Path newfile = resolve(file.path);
+            String relativePath = source.relativize(file.path).toString();
+            BackupManifest.Entry entry = new BackupManifest.Entry(file.size, file.modifiedMillis,
+                    hash ? BackupManifest.hash(file.path) : null);
+            manifest.put(relativePath, entry);
+            Optional<BackupManifest.Entry> previous = previousManifest == null ||
+                    rewrittenFolders.stream().anyMatch(file.path::startsWith) ?
+                    Optional.empty() : previousManifest.get(relativePath);
+            Path previousFile = previousCopy == null ? null : previousCopy.resolve(relativePath);
+            if (previous.isPresent() && previous.get().sameAs(entry) && link(previousFile, newfile)) {
+                syncer.commit(newfile, target);
+                filesLinked.incrementAndGet();
+                return false;
+            }
+            try {
+                Files.createFile(newfile);
+            } catch (FileAlreadyExistsException x) {
+                return false;
+            } catch (IOException e) {
+                throw new RuntimeException(format("Unable to copy: %s to %s", file.path, newfile), e);
+            }
+            throttle.acquireFile();
+            List<RecursiveAction> ranges = new ArrayList<>();
+            long start = 0;
+            if (previous.isPresent() && previous.get().size() < file.size && Files.exists(previousFile) &&
+                    isAppendedTo(previousFile, previous.get())) {
+                start = previous.get().size();
+                addRanges(ranges, previousFile, newfile, 0, start, false);
+            }
+            // only whole files have ranges starting at block boundaries
+            addRanges(ranges, file.path, newfile, start, file.size, directIo && start == 0);
+            invokeAll(ranges);
+            if (preserve) {
+                copyAttributes(file.path, newfile);
+            }
+            syncer.commit(newfile, target);
+            filesCopied.incrementAndGet();
+            return true;
+        }
+
+        /**
+         * @return true if the source file starts with the content of the previous copy, so it was only appended to
+         */
+        private boolean isAppendedTo(Path previousFile, BackupManifest.Entry previous) {
+            long previousHash = previous.hash().orElseGet(() -> BackupManifest.hash(previousFile));
+            return BackupManifest.hash(file.path, previous.size()) == previousHash;
+        }
+
+        private boolean mirrorFile() {
+            Path newfile = resolve(file.path);
+            BackupManifest.Entry entry = expected.get(source.relativize(file.path).toString())
+                    .orElse(new BackupManifest.Entry(file.size, file.modifiedMillis, null));
+            if (upToDate(newfile, entry)) {
+                filesSkipped.incrementAndGet();
+                return false;
+            }
+            throttle.acquireFile();
+            try {
+                FileChannel.open(newfile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING).close();
+            } catch (IOException e) {
+                throw new RuntimeException(format("Unable to copy: %s to %s", file.path, newfile), e);
+            }
+            List<RecursiveAction> ranges = new ArrayList<>();
+            addRanges(ranges, file.path, newfile, 0, file.size, directIo);
+            invokeAll(ranges);
+            try {
+                Files.setLastModifiedTime(newfile, FileTime.fromMillis(entry.modifiedMillis()));
+            } catch (IOException x) {
+                System.err.format("Unable to copy all attributes to: %s: %s%n", newfile, x);
+            }
+            filesCopied.incrementAndGet();
+            return true;
+        }
+    }
+
+    /**
+     * @return true if the file exists with the size and modification time of the entry
+     */
+    static boolean upToDate(Path file, BackupManifest.Entry entry) {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+            return attrs.size() == entry.size() && attrs.lastModifiedTime().toMillis() == entry.modifiedMillis();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void addRanges(List<RecursiveAction> ranges, Path from, Path to, long start, long end, boolean direct) {
+        for (long position = start; position < end; position += RANGE_SIZE_BYTE) {
+            ranges.add(new CopyRangeTask(from, to, position, Math.min(RANGE_SIZE_BYTE, end - position), direct));
+        }
+    }
+
+    private static boolean link(Path existing, Path link) {
+        try {
+            Files.createLink(link, existing);
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            // e.g. previous copy on another file system, fall back to a copy
+            return false;
+        }
+    }
+
+    private final class CopyRangeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Path source;
+        private final Path target;
+        private final long position;
+        private final long count;
+        private final boolean direct;
+
+        CopyRangeTask(Path source, Path target, long position, long count, boolean direct) {
+            this.source = source;
+            this.target = target;
+            this.position = position;
+            this.count = count;
+            this.direct = direct;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                bytesCopied.addAndGet(transfer(source, target, position, count, direct));
+            } catch (IOException e) {
+                throw new RuntimeException(format("Unable to copy: %s to %s", source, target), e);
+            }
+        }
+    }
+
+    private static void copyAttributes(Path source, Path target) {
+        try {
+            PosixFileAttributeView view = Files.getFileAttributeView(target, PosixFileAttributeView.class);
+            if (view != null) {
+                view.setPermissions(Files.getPosixFilePermissions(source));
+            }
+            Files.setLastModifiedTime(target, Files.getLastModifiedTime(source));
+        } catch (IOException x) {
+            System.err.format("Unable to copy all attributes to: %s: %s%n", target, x);
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package org.trinakria.masterdataset;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.lang.String.format;
+
+/**
+ * Deletes a file tree with a pool of threads.
+ *
+ * Each directory is listed by its own task on a work-stealing {@link ForkJoinPool}, which deletes its files in
+ * batches of {@link #BATCH_SIZE}, forks a task per subdirectory and removes the directory once they are all done, so
+ * that deletes of a large tree keep the file system busy without enumerating it upfront. Symbolic links are deleted,
+ * never followed.
+ *
+ * Nothing is printed per file. A path that cannot be deleted does not stop the others: it is recorded in
+ * {@link #failures()}, and the directories holding it are left in place.
+ *
+ * Deletes can be paced by a {@link Throttle}, which is asked for each deleted file.
+ *
+ * @author Mario Giurlanda
+ */
+final class ParallelTreeDeleter {
+
+    private static final int BATCH_SIZE = 256;
+
+    private final Path root;
+    private final int parallelism;
+    private final AtomicLong filesDeleted = new AtomicLong();
+    private final Queue<String> failures = new ConcurrentLinkedQueue<>();
+    private RunMetrics.Phase metrics = RunMetrics.Phase.detached("delete");
+    private Throttle throttle = Throttle.unlimited();
+    private ForkJoinPool pool;
+
+    ParallelTreeDeleter(Path root, int parallelism) {
+        this.root = root;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Records each deleted file, with its delete latency, in the given phase.
+     *
+     * @return this deleter
+     */
+    ParallelTreeDeleter metrics(RunMetrics.Phase metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    /**
+     * Limits the rate at which files are deleted.
+     *
+     * @return this deleter
+     */
+    ParallelTreeDeleter throttle(Throttle throttle) {
+        this.throttle = throttle;
+        return this;
+    }
+
+    /**
+     * Runs the deletes on a pool shared with other runs instead of a pool of its own, unless null.
+     *
+     * @return this deleter
+     */
+    ParallelTreeDeleter pool(ForkJoinPool pool) {
+        this.pool = pool;
+        return this;
+    }
+
+    /**
+     * Deletes the tree, or the file, at the root. Nothing is done if it does not exist.
+     *
+     * @return true if everything was deleted, otherwise see {@link #failures()}
+     */
+    boolean delete() {
+        if (Files.notExists(root, LinkOption.NOFOLLOW_LINKS)) {
+            return true;
+        }
+        ForkJoinPool pool = this.pool != null ? this.pool : new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new DeleteTask(root));
+        } finally {
+            if (pool != this.pool) {
+                pool.shutdown();
+            }
+        }
+        return failures.isEmpty();
+    }
+
+    long filesDeleted() {
+        return filesDeleted.get();
+    }
+
+    /**
+     * @return paths that could not be deleted, each with the reason
+     */
+    List<String> failures() {
+        return new ArrayList<>(failures);
+    }
+
+    private boolean deleteFile(Path file) {
+        throttle.acquireFile();
+        long startTime = System.nanoTime();
+        try {
+            Files.delete(file);
+        } catch (NoSuchFileException x) {
+            return true;
+        } catch (IOException x) {
+            failures.add(format("%s: %s", file, x));
+            return false;
+        }
+        filesDeleted.incrementAndGet();
+        metrics.record(RunMetrics.dataSetOf(root.relativize(file)), 0, System.nanoTime() - startTime);
+        return true;
+    }
+
+    /**
+     * Deletes a directory with all its content, or a single file.
+     */
+    private final class DeleteTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Path path;
+        private boolean deleted;
+
+        DeleteTask(Path path) {
+            this.path = path;
+        }
+
+        @Override
+        protected void compute() {
+            if (!Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                deleted = deleteFile(path);
+                return;
+            }
+            List<DeleteTask> directories = new ArrayList<>();
+            List<DeleteBatchTask> batches = new ArrayList<>();
+            List<Path> batch = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
+                for (Path child : stream) {
+                    if (Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                        directories.add(new DeleteTask(child));
+                    } else {
+                        batch.add(child);
+                        if (batch.size() == BATCH_SIZE) {
+                            batches.add(new DeleteBatchTask(batch));
+                            batch = new ArrayList<>();
+                        }
+                    }
+                }
+            } catch (IOException x) {
+                failures.add(format("%s: %s", path, x));
+                return;
+            }
+            if (!batch.isEmpty()) {
+                batches.add(new DeleteBatchTask(batch));
+            }
+            invokeAll(directories);
+            invokeAll(batches);
+            if (directories.stream().allMatch(task -> task.deleted) && batches.stream().allMatch(task -> task.deleted)) {
+                try {
+                    Files.delete(path);
+                    deleted = true;
+                } catch (IOException x) {
+                    failures.add(format("%s: %s", path, x));
+                }
+            }
+        }
+    }
+
+    private final class DeleteBatchTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<Path> files;
+        private boolean deleted = true;
+
+        DeleteBatchTask(List<Path> files) {
+            this.files = files;
+        }
+
+        @Override
+        protected void compute() {
+            for (Path file : files) {
+                deleted &= deleteFile(file);
+            }
+        }
+    }
+}
@@ -0,0 +1,423 @@
+package org.trinakria.masterdataset;
+
+import org.apache.commons.lang3.Validate;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+
+import static java.lang.String.format;
+import static org.trinakria.masterdataset.MasterDataSetSpec.ONE_MB;
+
+/**
+ * Splits the generation of a master data set into partitions that independent worker processes, possibly on
+ * different hosts, claim and generate, with no coordinator other than the file system they share.
+ *
+ * A partition is a range of consecutive file indices of one data set, with the size of its files, as
+ * {@code generate} would write them: the content of each file only depends on the master seed, the data set and the
+ * index, so the files are the same whichever worker writes them. The plan file records the generation settings and
+ * one tab separated line per partition:
+ * <pre>
+ *     id dataSet firstIndex files fileSizeByte lastFileSizeByte
+ * </pre>
+ *
+ * Workers coordinate through the {@code <plan file>.claims} folder next to the plan file:
+ * <ul>
+ *     <li>{@code <id>.claim} is created exclusively by the worker that claims a partition, which touches it after each
+ *     file it writes. A claim that has not been touched for the claim timeout is taken over by another worker, which
+ *     first renames it so that only one worker can take it. A worker that finds its claim taken over when touching it
+ *     abandons the partition</li>
+ *     <li>{@code <id>.done} is written, and linked into place, once all the files of the partition are written. It
+ *     records the root they were written to and the size of each file, from which the manifests of the data sets are
+ *     merged. Only the first worker to complete a partition records it, a worker whose claim was taken over does
+ *     not</li>
+ * </ul>
+ *
+ * @author Mario Giurlanda
+ */
+final class PartitionPlan {
+
+    static final long DEFAULT_PARTITION_FILES = 64;
+    private static final String CLAIMS_SUFFIX = ".claims";
+    private static final String CLAIM_SUFFIX = ".claim";
+    private static final String DONE_SUFFIX = ".done";
+    private static final String STALE_SUFFIX = ".stale";
+    private static final String INPUT_FOLDER = "inputFolder=";
+    private static final String FILE_SIZE_MB = "fileSizeMB=";
+    private static final String DATA_SET = "dataSet=";
+    private static final String OPTION = "option.";
+    private static final String ROOT = "root=";
+    private static final String WORKER = "worker=";
+    private static final String SEPARATOR = "\t";
+    private static final String LIST_SEPARATOR = ",";
+
+    private final MasterDataSetSpec specification;
+    private final List<Partition> partitions;
+    private final Path claimsFolder;
+
+    private PartitionPlan(MasterDataSetSpec specification, List<Partition> partitions, Path planFile) {
+        this.specification = specification;
+        this.partitions = Collections.unmodifiableList(partitions);
+        this.claimsFolder = planFile.resolveSibling(planFile.getFileName() + CLAIMS_SUFFIX);
+    }
+
+    /**
+     * Plans the generation of the master data set of a specification in partitions of at most
+     * {@code partitionFiles} files.
+     */
+    static PartitionPlan create(MasterDataSetSpec specification, long partitionFiles, Path planFile) {
+        Validate.isTrue(partitionFiles > 0, "partition-files must be a positive number");
+        List<Partition> partitions = new ArrayList<>();
+        for (MasterDataSetSpec.DataSet dataSet : specification.dataSets()) {
+            long noOfFiles = specification.noOfFilesInDataSet(dataSet.dataSetSizeMB());
+            long lastFileSizeByte = (dataSet.dataSetSizeMB() - (noOfFiles - 1) * specification.fileSizeMB()) * ONE_MB;
+            for (long firstIndex = 0; firstIndex < noOfFiles; firstIndex += partitionFiles) {
+                long files = Math.min(partitionFiles, noOfFiles - firstIndex);
+                partitions.add(new Partition(partitions.size(), dataSet.dataSetName(), firstIndex, files,
+                        specification.fileSizeByte(),
+                        firstIndex + files == noOfFiles ? lastFileSizeByte : specification.fileSizeByte()));
+            }
+        }
+        return new PartitionPlan(specification, partitions, planFile);
+    }
+
+    static PartitionPlan load(Path planFile) {
+        Validate.isTrue(Files.isRegularFile(planFile), "Plan file %s does not exist", planFile);
+        Path inputFolder = null;
+        long fileSizeMB = 0;
+        List<MasterDataSetSpec.DataSet> dataSets = new ArrayList<>();
+        Map<String, String> options = new HashMap<>();
+        List<Partition> partitions = new ArrayList<>();
+        try {
+            for (String line : Files.readAllLines(planFile, StandardCharsets.UTF_8)) {
+                if (line.startsWith(INPUT_FOLDER)) {
+                    inputFolder = Paths.get(line.substring(INPUT_FOLDER.length()));
+                } else if (line.startsWith(FILE_SIZE_MB)) {
+                    fileSizeMB = Long.parseLong(line.substring(FILE_SIZE_MB.length()));
+                } else if (line.startsWith(DATA_SET)) {
+                    String[] fields = line.substring(DATA_SET.length()).split(LIST_SEPARATOR);
+                    dataSets.add(MasterDataSetSpec.DataSet.of(fields[0], Long.parseLong(fields[1])));
+                } else if (line.startsWith(OPTION)) {
+                    String option = line.substring(OPTION.length());
+                    int separator = option.indexOf('=');
+                    options.put(option.substring(0, separator), option.substring(separator + 1));
+                } else if (!line.isEmpty() && !line.startsWith("#")) {
+                    String[] fields = line.split(SEPARATOR);
+                    partitions.add(new Partition(Integer.parseInt(fields[0]), fields[1], Long.parseLong(fields[2]),
+                            Long.parseLong(fields[3]), Long.parseLong(fields[4]), Long.parseLong(fields[5])));
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            throw new RuntimeException(format("Cannot read plan %s", planFile), e);
+        }
+        Validate.validState(inputFolder != null, "Plan %s has no input folder", planFile);
+        return new PartitionPlan(new MasterDataSetSpec(MasterDataSetSpec.Mode.GENERATE, inputFolder, fileSizeMB,
+                dataSets, Optional.empty(), options), partitions, planFile);
+    }
+
+    /**
+     * Writes the plan file, replacing the previous one atomically, and clears the claims of any previous plan.
+     */
+    void save(Path planFile) {
+        Path tempFile = planFile.resolveSibling(planFile.getFileName() + ".tmp");
+        try {
+            if (Files.exists(claimsFolder)) {
+                FileUtils.deepDelete(claimsFolder);
+            }
+            Files.createDirectories(claimsFolder);
+            try (BufferedWriter writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+                writer.write("# id\tdataSet\tfirstIndex\tfiles\tfileSizeByte\tlastFileSizeByte");
+                writer.newLine();
+                writer.write(INPUT_FOLDER + specification.inputFolder());
+                writer.newLine();
+                writer.write(FILE_SIZE_MB + specification.fileSizeMB());
+                writer.newLine();
+                for (MasterDataSetSpec.DataSet dataSet : specification.dataSets()) {
+                    writer.write(DATA_SET + dataSet.dataSetName() + LIST_SEPARATOR + dataSet.dataSetSizeMB());
+                    writer.newLine();
+                }
+                for (Map.Entry<String, String> option : new TreeMap<>(specification.options()).entrySet()) {
+                    writer.write(OPTION + option.getKey() + "=" + option.getValue());
+                    writer.newLine();
+                }
+                for (Partition partition : partitions) {
+                    writer.write(partition.id + SEPARATOR + partition.dataSetName + SEPARATOR + partition.firstIndex +
+                            SEPARATOR + partition.files + SEPARATOR + partition.fileSizeByte + SEPARATOR +
+                            partition.lastFileSizeByte);
+                    writer.newLine();
+                }
+            }
+            Files.move(tempFile, planFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new RuntimeException(format("Cannot write plan %s", planFile), e);
+        }
+    }
+
+    /**
+     * @return specification of the generation of the whole master data set
+     */
+    MasterDataSetSpec specification() {
+        return specification;
+    }
+
+    List<Partition> partitions() {
+        return partitions;
+    }
+
+    /**
+     * Claims a partition for a worker, unless it is complete or claimed by another worker that touched its claim less
+     * than {@code timeoutMillis} ago. A worker gets back the claims it left behind.
+     *
+     * @return true if the worker is to generate the partition
+     */
+    boolean claim(Partition partition, String worker, long timeoutMillis) {
+        if (Files.exists(doneFile(partition))) {
+            return false;
+        }
+        Path claimFile = claimFile(partition);
+        try {
+            Files.write(claimFile, Collections.singletonList(WORKER + worker), StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            return true;
+        } catch (FileAlreadyExistsException e) {
+            // claimed by a worker, possibly a dead one
+        } catch (IOException e) {
+            throw new RuntimeException(format("Cannot claim partition %d in %s", partition.id, claimsFolder), e);
+        }
+        try {
+            String owner = String.join("", Files.readAllLines(claimFile, StandardCharsets.UTF_8));
+            if (owner.equals(WORKER + worker)) {
+                return heartbeat(partition, worker);
+            }
+            long idleMillis = System.currentTimeMillis() - Files.getLastModifiedTime(claimFile).toMillis();
+            if (idleMillis < timeoutMillis) {
+                return false;
+            }
+            // only the worker whose rename succeeds takes over the claim
+            Path staleFile = claimsFolder.resolve(partition.id + CLAIM_SUFFIX + "." + fileNameOf(worker) + STALE_SUFFIX);
+            Files.move(claimFile, staleFile, StandardCopyOption.ATOMIC_MOVE);
+            Files.delete(staleFile);
+            System.out.format("Taking over partition %d from %s, idle for %ds%n", partition.id,
+                    owner.substring(Math.min(owner.length(), WORKER.length())), idleMillis / 1000);
+            return claim(partition, worker, timeoutMillis);
+        } catch (NoSuchFileException e) {
+            // completed, or taken over by another worker
+            return false;
+        } catch (IOException e) {
+            throw new RuntimeException(format("Cannot claim partition %d in %s", partition.id, claimsFolder), e);
+        }
+    }
+
+    /**
+     * Tells other workers that the claim of a worker on the partition is still alive.
+     *
+     * @return false if the claim has been taken over by another worker, which is then to generate the partition
+     */
+    boolean heartbeat(Partition partition, String worker) {
+        Path claimFile = claimFile(partition);
+        try {
+            Files.setLastModifiedTime(claimFile, FileTime.fromMillis(System.currentTimeMillis()));
+            // read after the touch, which would otherwise keep alive a claim taken over in between
+            return String.join("", Files.readAllLines(claimFile, StandardCharsets.UTF_8)).equals(WORKER + worker);
+        } catch (NoSuchFileException e) {
+            // being taken over, or completed by another worker
+            return false;
+        } catch (IOException e) {
+            // the claim may have been taken over without this worker seeing it, which must not complete it then
+            System.err.format("Cannot touch claim of partition %d: %s%n", partition.id, e);
+            return false;
+        }
+    }
+
+    /**
+     * Records that all the files of a partition have been written, unless the claim of the worker has been taken over
+     * or another worker completed the partition first, whose record is kept.
+     *
+     * @param root root folder the files have been written to
+     * @param fileSizes size of each file by index
+     * @return true if the completion of the worker is recorded
+     */
+    boolean complete(Partition partition, String worker, Path root, Map<Long, Long> fileSizes) {
+        if (!heartbeat(partition, worker)) {
+            return false;
+        }
+        Path doneFile = doneFile(partition);
+        Path tempFile = doneFile.resolveSibling(doneFile.getFileName() + "." + fileNameOf(worker) + ".tmp");
+        try {
+            try (BufferedWriter writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+                writer.write(ROOT + root);
+                writer.newLine();
+                writer.write(WORKER + worker);
+                writer.newLine();
+                for (Map.Entry<Long, Long> file : new TreeMap<>(fileSizes).entrySet()) {
+                    writer.write(file.getKey() + SEPARATOR + file.getValue());
+                    writer.newLine();
+                }
+            }
+            if (!publish(tempFile, doneFile)) {
+                Files.delete(tempFile);
+                String owner = Files.readAllLines(doneFile, StandardCharsets.UTF_8).stream()
+                        .filter(line -> line.startsWith(WORKER))
+                        .findFirst()
+                        .orElse("");
+                return owner.equals(WORKER + worker);
+            }
+            Files.deleteIfExists(claimFile(partition));
+            return true;
+        } catch (IOException e) {
+            throw new RuntimeException(format("Cannot complete partition %d in %s", partition.id, claimsFolder), e);
+        }
+    }
+
+    /**
+     * Gives a complete file its final name, unless a file already has it.
+     *
+     * @return false if the target already exists
+     */
+    private static boolean publish(Path file, Path target) throws IOException {
+        try {
+            // a link is created atomically and only if the target does not exist, unlike a rename
+            Files.createLink(target, file);
+            Files.delete(file);
+            return true;
+        } catch (FileAlreadyExistsException e) {
+            return false;
+        } catch (IOException | UnsupportedOperationException e) {
+            // e.g. a file system without hard links, where two workers may still race between the check and the move
+            if (Files.exists(target)) {
+                return false;
+            }
+            Files.move(file, target, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        }
+    }
+
+    /**
+     * @return the record of a complete partition, empty if it is not complete yet
+     */
+    Optional<Completion> completion(Partition partition) {
+        Path doneFile = doneFile(partition);
+        if (Files.notExists(doneFile)) {
+            return Optional.empty();
+        }
+        Path root = null;
+        Map<Long, Long> fileSizes = new TreeMap<>();
+        try {
+            for (String line : Files.readAllLines(doneFile, StandardCharsets.UTF_8)) {
+                if (line.startsWith(ROOT)) {
+                    root = Paths.get(line.substring(ROOT.length()));
+                } else if (!line.isEmpty() && !line.startsWith(WORKER)) {
+                    String[] fields = line.split(SEPARATOR);
+                    fileSizes.put(Long.parseLong(fields[0]), Long.parseLong(fields[1]));
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            throw new RuntimeException(format("Cannot read completion of partition %d in %s", partition.id,
+                    claimsFolder), e);
+        }
+        Validate.validState(root != null && fileSizes.size() == partition.files,
+                "Completion of partition %d in %s is incomplete", partition.id, claimsFolder);
+        return Optional.of(new Completion(root, fileSizes));
+    }
+
+    private Path claimFile(Partition partition) {
+        return claimsFolder.resolve(partition.id + CLAIM_SUFFIX);
+    }
+
+    private Path doneFile(Partition partition) {
+        return claimsFolder.resolve(partition.id + DONE_SUFFIX);
+    }
+
+    /**
+     * @return identity of a worker made fit for a file name
+     */
+    static String fileNameOf(String worker) {
+        return worker.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    /**
+     * A range of consecutive files of a data set.
+     */
+    static final class Partition {
+        private final int id;
+        private final String dataSetName;
+        private final long firstIndex;
+        private final long files;
+        private final long fileSizeByte;
+        private final long lastFileSizeByte;
+
+        Partition(int id, String dataSetName, long firstIndex, long files, long fileSizeByte, long lastFileSizeByte) {
+            this.id = id;
+            this.dataSetName = dataSetName;
+            this.firstIndex = firstIndex;
+            this.files = files;
+            this.fileSizeByte = fileSizeByte;
+            this.lastFileSizeByte = lastFileSizeByte;
+        }
+
+        int id() {
+            return id;
+        }
+
+        String dataSetName() {
+            return dataSetName;
+        }
+
+        long firstIndex() {
+            return firstIndex;
+        }
+
+        long files() {
+            return files;
+        }
+
+        /**
+         * @return size of the file of the given index, which must be in the partition
+         */
+        long fileSizeByte(long fileIndex) {
+            return fileIndex == firstIndex + files - 1 ? lastFileSizeByte : fileSizeByte;
+        }
+
+        @Override
+        public String toString() {
+            return format("partition %d: data set %s, files %d to %d", id, dataSetName, firstIndex,
+                    firstIndex + files - 1);
+        }
+    }
+
+    /**
+     * Where the files of a complete partition have been written, and their sizes.
+     */
+    static final class Completion {
+        private final Path root;
+        private final Map<Long, Long> fileSizes;
+
+        Completion(Path root, Map<Long, Long> fileSizes) {
+            this.root = root;
+            this.fileSizes = Collections.unmodifiableMap(fileSizes);
+        }
+
+        Path root() {
+            return root;
+        }
+
+        Map<Long, Long> fileSizes() {
+            return fileSizes;
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package org.trinakria.masterdataset;
+
+/**
+ * Receives the progress of a run submitted to a {@link MasterDataSetService}.
+ *
+ * It is called by the worker threads each time a file has been written, copied or read, so it must be fast and
+ * thread safe.
+ *
+ * @author Mario Giurlanda
+ */
+@FunctionalInterface
+public interface ProgressListener {
+
+    ProgressListener NONE = (phase, dataSet, phaseBytes, phaseFiles) -> { };
+
+    /**
+     * @param phase phase of the run, for instance {@code generate} or {@code backup}
+     * @param dataSet data set of the file that has just been processed
+     * @param phaseBytes bytes processed by the phase so far
+     * @param phaseFiles files processed by the phase so far
+     */
+    void progress(String phase, String dataSet, long phaseBytes, long phaseFiles);
+}
@@ -0,0 +1,279 @@
+package org.trinakria.masterdataset;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.lang.String.format;
+
+/**
+ * Throughput and latency metrics of a run, split by phase (for instance {@code generate}, {@code update-plan},
+ * {@code backup}) and by data set.
+ *
+ * Each phase counts bytes and files, keeps a {@link LatencyHistogram} of the time spent on each file and measures
+ * the wall-clock and process CPU time spent in it, which tells CPU-bound phases from I/O-bound ones. Progress is
+ * exposed over JMX as {@value #OBJECT_NAME} while the run is in progress, and to a {@link ProgressListener} each
+ * time a file is processed, and a JSON summary can be written at the end.
+ *
+ * @author Mario Giurlanda
+ */
+final class RunMetrics implements RunMetricsMXBean {
+
+    static final String OBJECT_NAME = "org.trinakria.masterdataset:type=RunMetrics";
+    private static final String ROOT = "(root)";
+
+    private final Map<String, Phase> phases = new ConcurrentSkipListMap<>();
+    private final List<String> phaseOrder = new ArrayList<>();
+    private final ProgressListener listener;
+    private volatile Phase current;
+
+    RunMetrics() {
+        this(ProgressListener.NONE);
+    }
+
+    RunMetrics(ProgressListener listener) {
+        this.listener = listener;
+        this.current = new Phase("none", listener);
+    }
+
+    /**
+     * Returns the phase with the given name, creating it on first use, and makes it the current one.
+     */
+    synchronized Phase phase(String name) {
+        Phase phase = phases.computeIfAbsent(name, phaseName -> new Phase(phaseName, listener));
+        if (!phaseOrder.contains(name)) {
+            phaseOrder.add(name);
+        }
+        current = phase;
+        return phase;
+    }
+
+    void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(this, new ObjectName(OBJECT_NAME));
+        } catch (InstanceAlreadyExistsException e) {
+            System.err.format("Metrics already registered as %s%n", OBJECT_NAME);
+        } catch (JMException e) {
+            throw new RuntimeException("Cannot register metrics MBean", e);
+        }
+    }
+
+    void unregister() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (JMException e) {
+            throw new RuntimeException("Cannot unregister metrics MBean", e);
+        }
+    }
+
+    /**
+     * Writes the JSON summary of all phases to the given file.
+     */
+    void writeSummary(Path file) {
+        try {
+            Files.write(file, getSummary().getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new RuntimeException(format("Cannot write metrics summary to %s", file), e);
+        }
+    }
+
+    /**
+     * Prints one line per phase to the standard output.
+     */
+    synchronized void print() {
+        for (String name : phaseOrder) {
+            Phase phase = phases.get(name);
+            System.out.format(Locale.ROOT, "Phase %s: %d files, %dMB in %dms (cpu %dms), %.2f MB/s, %.1f files/s, " +
+                            "latency p50=%dus p99=%dus max=%dus%n", name, phase.files(), phase.bytes() / MasterDataSetSpec.ONE_MB,
+                    phase.elapsedNanos() / 1_000_000, phase.cpuNanos() / 1_000_000, phase.megaBytesPerSecond(),
+                    phase.filesPerSecond(), phase.latency.percentile(50) / 1000, phase.latency.percentile(99) / 1000,
+                    phase.latency.max() / 1000);
+        }
+    }
+
+    @Override
+    public String getCurrentPhase() {
+        return current.name;
+    }
+
+    @Override
+    public long getBytesProcessed() {
+        return current.bytes();
+    }
+
+    @Override
+    public long getFilesProcessed() {
+        return current.files();
+    }
+
+    @Override
+    public double getMegaBytesPerSecond() {
+        return current.megaBytesPerSecond();
+    }
+
+    @Override
+    public long getP99LatencyMicros() {
+        return current.latency.percentile(99) / 1000;
+    }
+
+    @Override
+    public synchronized String getSummary() {
+        StringBuilder json = new StringBuilder("{\"phases\":[");
+        for (int i = 0; i < phaseOrder.size(); i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            phases.get(phaseOrder.get(i)).appendJson(json);
+        }
+        return json.append("]}").toString();
+    }
+
+    /**
+     * @return the data set a file belongs to, given its path relative to the master data set folder
+     */
+    static String dataSetOf(Path relativePath) {
+        return relativePath.getNameCount() > 1 ? relativePath.getName(0).toString() : ROOT;
+    }
+
+    private static long processCpuNanos() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+        }
+        return 0;
+    }
+
+    /**
+     * Metrics of a single phase. A phase can be entered several times, for instance once per data set, and only the
+     * time spent inside it is accounted.
+     */
+    static final class Phase {
+        private final String name;
+        private final ProgressListener listener;
+        private final LongAdder bytes = new LongAdder();
+        private final LongAdder files = new LongAdder();
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final Map<String, LongAdder[]> dataSets = new ConcurrentHashMap<>();
+        private long elapsedNanos;
+        private long cpuNanos;
+        private long beginNanos = -1;
+        private long beginCpuNanos;
+
+        private Phase(String name, ProgressListener listener) {
+            this.name = name;
+            this.listener = listener;
+        }
+
+        /**
+         * @return a phase that is not part of any run
+         */
+        static Phase detached(String name) {
+            return new Phase(name, ProgressListener.NONE);
+        }
+
+        synchronized Phase begin() {
+            beginNanos = System.nanoTime();
+            beginCpuNanos = processCpuNanos();
+            return this;
+        }
+
+        synchronized void end() {
+            if (beginNanos >= 0) {
+                elapsedNanos += System.nanoTime() - beginNanos;
+                cpuNanos += processCpuNanos() - beginCpuNanos;
+                beginNanos = -1;
+            }
+        }
+
+        /**
+         * Records a file processed by the phase.
+         *
+         * @param dataSet data set the file belongs to
+         * @param fileBytes bytes written, copied or read
+         * @param latencyNanos time spent on the file
+         */
+        void record(String dataSet, long fileBytes, long latencyNanos) {
+            bytes.add(fileBytes);
+            files.increment();
+            latency.record(latencyNanos);
+            LongAdder[] counters = dataSets.computeIfAbsent(dataSet, name -> new LongAdder[] {
+                    new LongAdder(), new LongAdder() });
+            counters[0].add(fileBytes);
+            counters[1].increment();
+            listener.progress(name, dataSet, bytes(), files());
+        }
+
+        long bytes() {
+            return bytes.sum();
+        }
+
+        long files() {
+            return files.sum();
+        }
+
+        LatencyHistogram latency() {
+            return latency;
+        }
+
+        synchronized long elapsedNanos() {
+            return elapsedNanos + (beginNanos >= 0 ? System.nanoTime() - beginNanos : 0);
+        }
+
+        synchronized long cpuNanos() {
+            return cpuNanos + (beginNanos >= 0 ? processCpuNanos() - beginCpuNanos : 0);
+        }
+
+        double megaBytesPerSecond() {
+            return perSecond(bytes() / (double) MasterDataSetSpec.ONE_MB);
+        }
+
+        double filesPerSecond() {
+            return perSecond(files());
+        }
+
+        private double perSecond(double value) {
+            long elapsed = elapsedNanos();
+            return elapsed == 0 ? 0 : value / (elapsed / 1e9);
+        }
+
+        private void appendJson(StringBuilder json) {
+            json.append(format(Locale.ROOT, "{\"name\":\"%s\",\"elapsedMillis\":%d,\"cpuMillis\":%d,\"bytes\":%d," +
+                            "\"files\":%d,\"megaBytesPerSecond\":%.3f,\"filesPerSecond\":%.3f," +
+                            "\"latencyMicros\":{\"p50\":%d,\"p99\":%d,\"max\":%d},\"dataSets\":{",
+                    name, elapsedNanos() / 1_000_000, cpuNanos() / 1_000_000, bytes(), files(),
+                    megaBytesPerSecond(), filesPerSecond(), latency.percentile(50) / 1000,
+                    latency.percentile(99) / 1000, latency.max() / 1000));
+            boolean first = true;
+            for (Map.Entry<String, LongAdder[]> entry : new ConcurrentSkipListMap<>(dataSets).entrySet()) {
+                if (!first) {
+                    json.append(',');
+                }
+                first = false;
+                long dataSetBytes = entry.getValue()[0].sum();
+                json.append(format(Locale.ROOT, "\"%s\":{\"bytes\":%d,\"files\":%d,\"megaBytesPerSecond\":%.3f}",
+                        entry.getKey().replace("\\", "\\\\").replace("\"", "\\\""), dataSetBytes,
+                        entry.getValue()[1].sum(), perSecond(dataSetBytes / (double) MasterDataSetSpec.ONE_MB)));
+            }
+            json.append("}}");
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package org.trinakria.masterdataset;
+
+/**
+ * Management interface exposing the progress of a run over JMX, see {@link RunMetrics}.
+ *
+ * @author Mario Giurlanda
+ */
+public interface RunMetricsMXBean {
+
+    /**
+     * @return name of the phase being run
+     */
+    String getCurrentPhase();
+
+    /**
+     * @return bytes written, copied or read by the current phase so far
+     */
+    long getBytesProcessed();
+
+    /**
+     * @return files written, copied or read by the current phase so far
+     */
+    long getFilesProcessed();
+
+    /**
+     * @return throughput of the current phase so far
+     */
+    double getMegaBytesPerSecond();
+
+    /**
+     * @return 99th percentile of the per-file latency of the current phase, in microseconds
+     */
+    long getP99LatencyMicros();
+
+    /**
+     * @return summary of all phases as JSON
+     */
+    String getSummary();
+}
@@ -0,0 +1,42 @@
+package org.trinakria.masterdataset;
+
+/**
+ * Outcome of a run submitted to a {@link MasterDataSetService}.
+ *
+ * @author Mario Giurlanda
+ */
+public final class RunResult {
+
+    private final MasterDataSetSpec specification;
+    private final long elapsedMillis;
+    private final String metricsSummary;
+
+    RunResult(MasterDataSetSpec specification, long elapsedMillis, String metricsSummary) {
+        this.specification = specification;
+        this.elapsedMillis = elapsedMillis;
+        this.metricsSummary = metricsSummary;
+    }
+
+    public MasterDataSetSpec specification() {
+        return specification;
+    }
+
+    public long elapsedMillis() {
+        return elapsedMillis;
+    }
+
+    /**
+     * @return JSON summary of the metrics of each phase, as written by {@code --metrics-file}
+     */
+    public String metricsSummary() {
+        return metricsSummary;
+    }
+
+    @Override
+    public String toString() {
+        return "RunResult{" +
+                "specification=" + specification +
+                ", elapsedMillis=" + elapsedMillis +
+                '}';
+    }
+}
@@ -0,0 +1,283 @@
+package org.trinakria.masterdataset;
+
+import org.apache.commons.lang3.Validate;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.stream.Stream;
+
+import static java.lang.String.format;
+
+/**
+ * Spreads the files of each data set folder across a tree of subfolders, so that no folder ends up with millions of
+ * entries when a large data set is made of small files.
+ *
+ * A file lives {@code depth} folders below its data set folder, each level having {@code width} folders named after
+ * zero padded numbers:
+ * <ul>
+ *     <li>{@link Scheme#RANGE} keeps consecutive indices together: the last level holds {@code width} files, each
+ *     level above groups {@code width} folders of the level below, and the first level grows as needed. Files
+ *     appended by updates fill the last folders, and a data set is read folder by folder in index order</li>
+ *     <li>{@link Scheme#HASH} picks each level from a hash of the index, so files are spread evenly across the
+ *     {@code width^depth} last folders whatever the size of the data set</li>
+ * </ul>
+ *
+ * The layout is the same for all data sets of a master data set, and is recorded in the input folder as
+ * {@value #FILE_NAME} so that every mode finds it without being given it again. A master data set without it is
+ * {@link Scheme#FLAT}. The layout of existing data sets is changed by {@code reshard}, which records the target layout
+ * as {@value #FILE_NAME}{@value #PENDING_SUFFIX} while it moves files: no other mode runs until it completes.
+ *
+ * @author Mario Giurlanda
+ */
+final class ShardLayout {
+
+    /**
+     * How the folder of a file is derived from its index.
+     */
+    enum Scheme {
+        /**
+         * All files directly in the data set folder
+         */
+        FLAT,
+        /**
+         * Folders of consecutive indices
+         */
+        RANGE,
+        /**
+         * Folders picked by a hash of the index
+         */
+        HASH
+    }
+
+    static final String FILE_NAME = ".shards";
+    static final String PENDING_SUFFIX = ".pending";
+    static final ShardLayout FLAT = new ShardLayout(Scheme.FLAT, 0, 1);
+    static final int DEFAULT_DEPTH = 2;
+    static final int DEFAULT_RANGE_WIDTH = 1000;
+    static final int DEFAULT_HASH_WIDTH = 256;
+    private static final String SCHEME = "scheme";
+    private static final String DEPTH = "depth";
+    private static final String WIDTH = "width";
+
+    private final Scheme scheme;
+    private final int depth;
+    private final int width;
+    private final String folderFormat;
+
+    private ShardLayout(Scheme scheme, int depth, int width) {
+        this.scheme = scheme;
+        this.depth = depth;
+        this.width = width;
+        this.folderFormat = "%0" + Integer.toString(width - 1).length() + "d";
+    }
+
+    static ShardLayout of(Scheme scheme, int depth, int width) {
+        if (scheme == Scheme.FLAT) {
+            return FLAT;
+        }
+        Validate.isTrue(depth > 0, "shard-depth must be a positive number");
+        Validate.isTrue(width > 1, "shard-width must be at least 2");
+        return new ShardLayout(scheme, depth, width);
+    }
+
+    /**
+     * Layout of the master data set of a specification: the one recorded in the input folder, or the one given by
+     * {@link MasterDataSetSpec#shardLayout()} for an input folder without data sets yet.
+     */
+    static ShardLayout of(MasterDataSetSpec specification) {
+        Path inputFolder = specification.inputFolder();
+        ShardLayout recorded = load(inputFolder);
+        Optional<ShardLayout> given = specification.shardLayout();
+        if (!given.isPresent() || given.get().equals(recorded)) {
+            return recorded;
+        }
+        Validate.isTrue(!hasDataSets(inputFolder), "Data sets of %s are laid out as %s, use reshard to lay them out " +
+                "as %s", inputFolder, recorded, given.get());
+        return given.get();
+    }
+
+    /**
+     * @return layout recorded in the given folder, {@link #FLAT} if none
+     * @throws IllegalStateException if a change of layout of the folder was interrupted
+     */
+    static ShardLayout load(Path inputFolder) {
+        Validate.validState(Files.notExists(pendingFile(inputFolder)), "Resharding of %s was interrupted, run " +
+                "reshard again to complete it", inputFolder);
+        return read(inputFolder.resolve(FILE_NAME)).orElse(FLAT);
+    }
+
+    /**
+     * @return true if a change of layout of the folder was interrupted
+     */
+    static boolean isPending(Path inputFolder) {
+        return Files.exists(pendingFile(inputFolder));
+    }
+
+    /**
+     * Records the layout in the input folder, replacing the previous one atomically. Nothing is recorded for a flat
+     * layout unless another one was.
+     */
+    void save(Path inputFolder) {
+        Path file = inputFolder.resolve(FILE_NAME);
+        if (this == FLAT && Files.notExists(file)) {
+            return;
+        }
+        write(file);
+    }
+
+    /**
+     * Records the layout as the target of a reshard in progress.
+     */
+    void savePending(Path inputFolder) {
+        write(pendingFile(inputFolder));
+    }
+
+    /**
+     * Makes the target of a reshard the layout of the input folder.
+     */
+    static void commitPending(Path inputFolder) {
+        try {
+            Files.move(pendingFile(inputFolder), inputFolder.resolve(FILE_NAME), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new RuntimeException(format("Cannot write shard layout %s", inputFolder.resolve(FILE_NAME)), e);
+        }
+    }
+
+    Scheme scheme() {
+        return scheme;
+    }
+
+    /**
+     * @return number of folders between a data set folder and its files
+     */
+    int depth() {
+        return depth;
+    }
+
+    int width() {
+        return width;
+    }
+
+    /**
+     * @return path of a data set file relative to its data set folder
+     */
+    Path relativeFile(long fileIndex, WriteSettings.Compression compression) {
+        String fileName = MasterDataSetSpec.fileName(fileIndex, compression);
+        if (scheme == Scheme.FLAT) {
+            return Paths.get(fileName);
+        }
+        String[] names = new String[depth + 1];
+        names[depth] = fileName;
+        if (scheme == Scheme.RANGE) {
+            long group = fileIndex / width;
+            for (int level = depth - 1; level > 0; level--) {
+                names[level] = format(folderFormat, group % width);
+                group /= width;
+            }
+            names[0] = format(folderFormat, group);
+        } else {
+            long hash = mix(fileIndex);
+            for (int level = 0; level < depth; level++) {
+                names[level] = format(folderFormat, Long.remainderUnsigned(hash, width));
+                hash = Long.divideUnsigned(hash, width);
+            }
+        }
+        return Paths.get(names[0], Arrays.copyOfRange(names, 1, names.length));
+    }
+
+    /**
+     * @return path of a data set file in the given data set folder
+     */
+    Path file(Path dataSetFolder, long fileIndex, WriteSettings.Compression compression) {
+        return dataSetFolder.resolve(relativeFile(fileIndex, compression));
+    }
+
+    /**
+     * Finalizer of SplitMix64, so that consecutive indices land in unrelated folders.
+     */
+    private static long mix(long value) {
+        long z = value + 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    private static Optional<ShardLayout> read(Path file) {
+        if (Files.notExists(file)) {
+            return Optional.empty();
+        }
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        } catch (IOException e) {
+            throw new RuntimeException(format("Cannot read shard layout %s", file), e);
+        }
+        Scheme scheme = Scheme.valueOf(properties.getProperty(SCHEME, Scheme.FLAT.name()).trim().toUpperCase());
+        return Optional.of(of(scheme, Integer.parseInt(properties.getProperty(DEPTH, "0").trim()),
+                Integer.parseInt(properties.getProperty(WIDTH, "1").trim())));
+    }
+
+    private void write(Path file) {
+        Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            List<String> lines = Arrays.asList("# layout of the files in each data set folder",
+                    SCHEME + "=" + scheme.name().toLowerCase(), DEPTH + "=" + depth, WIDTH + "=" + width);
+            Files.write(tempFile, lines, StandardCharsets.UTF_8);
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new RuntimeException(format("Cannot write shard layout %s", file), e);
+        }
+    }
+
+    private static Path pendingFile(Path inputFolder) {
+        return inputFolder.resolve(FILE_NAME + PENDING_SUFFIX);
+    }
+
+    /**
+     * @return true if the folder holds a data set folder
+     */
+    private static boolean hasDataSets(Path inputFolder) {
+        if (Files.notExists(inputFolder)) {
+            return false;
+        }
+        try (Stream<Path> stream = Files.list(inputFolder)) {
+            return stream.anyMatch(path -> Files.isDirectory(path) && !path.getFileName().toString().startsWith("."));
+        } catch (IOException e) {
+            throw new RuntimeException(format("Cannot list data sets of %s", inputFolder), e);
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        ShardLayout that = (ShardLayout) o;
+        return scheme == that.scheme && depth == that.depth && width == that.width;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(scheme, depth, width);
+    }
+
+    @Override
+    public String toString() {
+        return scheme == Scheme.FLAT ? "flat" :
+                format("%s, depth %d, width %d", scheme.name().toLowerCase(), depth, width);
+    }
+}
@@ -0,0 +1,277 @@
+package org.trinakria.masterdataset;
+
+import org.apache.commons.lang3.Validate;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static java.lang.String.format;
+
+/**
+ * Places the files of the data sets across several root folders, or stripes, typically one per device, so that files
+ * are written and read from all devices at once.
+ *
+ * Stripe 0 is the input folder of the master data set, which also holds the manifests and journals of the data sets;
+ * further roots are recorded in the input folder as {@value #FILE_NAME}, one path per line, so that every mode finds
+ * them without being given them again. Roots given on the command line are relative to the working directory and
+ * recorded as absolute paths, while relative paths recorded by hand are relative to the input folder, whatever the
+ * working directory of the mode reading them. A data set has a folder named after it in each root, and the
+ * {@link DataSetManifest} of the data set records the stripe of each of its files. Within each of its folders, the files
+ * of a data set are laid out as given by the {@link ShardLayout} of the master data set.
+ *
+ * @author Mario Giurlanda
+ */
+final class StripeLayout {
+
+    /**
+     * How a new file is assigned to a stripe.
+     */
+    enum Placement {
+        /**
+         * File {@code i} goes to stripe {@code i % stripes}
+         */
+        ROUND_ROBIN,
+        /**
+         * Each file goes to the stripe with the most usable space left, once the files already placed are accounted
+         */
+        FREE_SPACE
+    }
+
+    static final String FILE_NAME = ".roots";
+    private static final String BACKUP_PREFIX = ".stripe";
+
+    private final Path inputFolder;
+    private final List<Path> roots;
+    private final Placement placement;
+    private final ShardLayout shards;
+    private final long[] plannedBytes;
+    private long[] usableBytes;
+
+    private StripeLayout(Path inputFolder, List<Path> roots, Placement placement, ShardLayout shards) {
+        this.inputFolder = inputFolder;
+        this.roots = Collections.unmodifiableList(roots);
+        this.placement = placement;
+        this.shards = shards;
+        this.plannedBytes = new long[roots.size()];
+    }
+
+    /**
+     * Layout of the master data set of a specification: the roots recorded in the input folder, extended by the ones
+     * given by {@link MasterDataSetSpec#roots()}, which must list the recorded ones first and in the same order.
+     * Files are laid out as given by {@link ShardLayout#of(MasterDataSetSpec)}.
+     */
+    static StripeLayout of(MasterDataSetSpec specification) {
+        return of(specification, ShardLayout.of(specification));
+    }
+
+    /**
+     * Layout of the master data set of a specification, with the given shard layout.
+     */
+    static StripeLayout of(MasterDataSetSpec specification, ShardLayout shards) {
+        Path inputFolder = specification.inputFolder();
+        List<Path> recorded = load(inputFolder);
+        List<Path> given = specification.roots().stream().map(StripeLayout::absolute).collect(Collectors.toList());
+        List<Path> roots = new ArrayList<>();
+        roots.add(inputFolder);
+        if (given.isEmpty()) {
+            roots.addAll(recorded);
+        } else {
+            Validate.isTrue(given.size() >= recorded.size() && given.subList(0, recorded.size()).equals(
+                    recorded.stream().map(StripeLayout::absolute).collect(Collectors.toList())),
+                    "Roots %s do not extend the roots %s recorded in %s", given, recorded, inputFolder);
+            roots.addAll(given);
+        }
+        return new StripeLayout(inputFolder, roots, specification.placement(), shards);
+    }
+
+    /**
+     * @return roots recorded in the given input folder, without the input folder itself
+     */
+    static List<Path> load(Path inputFolder) {
+        return load(inputFolder, inputFolder);
+    }
+
+    /**
+     * @param folder folder the roots are recorded in, such as a backup generation of the input folder
+     * @param inputFolder input folder relative roots are resolved against
+     * @return roots recorded in the given folder, without the input folder itself
+     */
+    static List<Path> load(Path folder, Path inputFolder) {
+        Path file = folder.resolve(FILE_NAME);
+        if (Files.notExists(file)) {
+            return Collections.emptyList();
+        }
+        try {
+            return Files.readAllLines(file, StandardCharsets.UTF_8).stream()
+                    .filter(line -> !line.isEmpty() && !line.startsWith("#"))
+                    .map(inputFolder::resolve)
+                    .collect(Collectors.toList());
+        } catch (IOException e) {
+            throw new RuntimeException(format("Cannot read roots %s", file), e);
+        }
+    }
+
+    /**
+     * Records the roots and the shard layout in the input folder, replacing the previous ones atomically.
+     */
+    void save() {
+        shards.save(inputFolder);
+        if (roots.size() == 1 && Files.notExists(inputFolder.resolve(FILE_NAME))) {
+            return;
+        }
+        Path file = inputFolder.resolve(FILE_NAME);
+        Path tempFile = inputFolder.resolve(FILE_NAME + ".tmp");
+        try {
+            List<String> lines = new ArrayList<>();
+            lines.add("# roots of stripe 1 and above, stripe 0 is this folder");
+            roots.subList(1, roots.size()).forEach(root -> lines.add(root.toString()));
+            Files.write(tempFile, lines, StandardCharsets.UTF_8);
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new RuntimeException(format("Cannot write roots %s", file), e);
+        }
+    }
+
+    List<Path> roots() {
+        return roots;
+    }
+
+    private static Path absolute(Path root) {
+        return root.toAbsolutePath().normalize();
+    }
+
+    int stripes() {
+        return roots.size();
+    }
+
+    Path root(int stripe) {
+        return roots.get(stripe);
+    }
+
+    ShardLayout shards() {
+        return shards;
+    }
+
+    /**
+     * @return folder of a data set in the given stripe
+     */
+    Path dataSetFolder(int stripe, String dataSetName) {
+        return roots.get(stripe).resolve(dataSetName);
+    }
+
+    /**
+     * @return folders of a data set in all stripes, stripe 0 first
+     */
+    List<Path> dataSetFolders(String dataSetName) {
+        return roots.stream().map(root -> root.resolve(dataSetName)).collect(Collectors.toList());
+    }
+
+    /**
+     * @return path of a data set file in the given stripe
+     */
+    Path file(int stripe, String dataSetName, long fileIndex, WriteSettings.Compression compression) {
+        return shards.file(dataSetFolder(stripe, dataSetName), fileIndex, compression);
+    }
+
+    /**
+     * Creates the folder of a data set in all stripes.
+     */
+    void createDataSetFolders(String dataSetName) {
+        roots.forEach(FileUtils::createDirIfNotExist);
+        dataSetFolders(dataSetName).forEach(FileUtils::createDirIfNotExist);
+    }
+
+    /**
+     * Finds an existing file of a data set in any stripe, compressed or not.
+     *
+     * @return the file, or where it would be in stripe 0 if it does not exist
+     */
+    Path locate(String dataSetName, long fileIndex) {
+        for (Path folder : dataSetFolders(dataSetName)) {
+            for (WriteSettings.Compression compression : WriteSettings.Compression.values()) {
+                Path file = shards.file(folder, fileIndex, compression);
+                if (Files.exists(file)) {
+                    return file;
+                }
+            }
+        }
+        return file(0, dataSetName, fileIndex, WriteSettings.Compression.NONE);
+    }
+
+    /**
+     * Assigns a new file to a stripe.
+     *
+     * @param fileIndex index of the file in its data set
+     * @param sizeByte size the file will have
+     * @return the stripe
+     */
+    synchronized int place(long fileIndex, long sizeByte) {
+        int stripe;
+        switch (placement) {
+            case ROUND_ROBIN: {
+                stripe = (int) (fileIndex % roots.size());
+                break;
+            }
+            case FREE_SPACE: {
+                if (usableBytes == null) {
+                    usableBytes = usableBytes();
+                }
+                stripe = 0;
+                for (int i = 1; i < roots.size(); i++) {
+                    if (usableBytes[i] - plannedBytes[i] > usableBytes[stripe] - plannedBytes[stripe]) {
+                        stripe = i;
+                    }
+                }
+                break;
+            }
+            default: {
+                throw new IllegalArgumentException(format("Unknown placement %s", placement));
+            }
+        }
+        plannedBytes[stripe] += sizeByte;
+        return stripe;
+    }
+
+    private long[] usableBytes() {
+        long[] usable = new long[roots.size()];
+        for (int i = 0; i < roots.size(); i++) {
+            try {
+                FileUtils.createDirIfNotExist(roots.get(i));
+                usable[i] = Files.getFileStore(roots.get(i)).getUsableSpace();
+            } catch (IOException e) {
+                throw new RuntimeException(format("Cannot determine usable space of %s", roots.get(i)), e);
+            }
+        }
+        return usable;
+    }
+
+    /**
+     * @return name of the folder of a backup generation holding the copy of a stripe other than 0
+     */
+    static String backupFolderName(int stripe) {
+        return BACKUP_PREFIX + stripe;
+    }
+
+    /**
+     * @return true if a top level entry of a backup generation holds the copy of a stripe
+     */
+    static boolean isBackupFolder(Path relativePath) {
+        return relativePath.getName(0).toString().startsWith(BACKUP_PREFIX);
+    }
+
+    @Override
+    public String toString() {
+        return "StripeLayout{" +
+                "roots=" + roots +
+                ", placement=" + placement +
+                ", shards=" + shards +
+                '}';
+    }
+}
@@ -0,0 +1,302 @@
+package org.trinakria.masterdataset;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.Reader;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Limits the rate at which bytes and files are written or copied, with one token bucket for bytes and one for files
+ * shared by all writer and copier threads of a run. A limit of 0 means unlimited.
+ *
+ * A thread asks for tokens before each write or copy chunk; when the bucket is empty its request is queued behind the
+ * earlier ones and it is parked until the bucket has refilled enough to serve it. Waits are taken in slices of at most
+ * {@link #MAX_PAUSE_NANOS} nanoseconds, after each of which the thread checks the bucket again, so a limit raised
+ * while requests are waiting shortens their wait instead of keeping the run stalled at the old rate. Buckets hold at
+ * most one second of tokens, so an idle period does not allow a burst above the limit afterwards.
+ *
+ * Limits can be changed while a run is in progress through JMX, as {@value #OBJECT_NAME}, or by editing a control
+ * file polled every second (see {@link #watch}) with the {@value #MAX_MB_PER_SECOND} and {@value #MAX_FILES_PER_SECOND}
+ * properties. The control file is read as soon as it is watched, so the limits it sets win over the ones given on
+ * the command line, while a property missing from it leaves the limit in force unchanged.
+ *
+ * As every writer and copier goes through the throttle before each file and chunk, it is also where a run is
+ * cancelled (see {@link #cancel}): once cancelled, asking for tokens throws a {@link CancellationException}.
+ *
+ * A throttle can be nested in another one (see {@link #within}), as the runs of a {@link MasterDataSetService} are in
+ * the throttle of the service: tokens are then taken from both, so that the runs keep limits and a cancellation of
+ * their own while sharing the limits of the service.
+ *
+ * @author Mario Giurlanda
+ */
+final class Throttle implements ThrottleMXBean {
+
+    static final String OBJECT_NAME = "org.trinakria.masterdataset:type=Throttle";
+    static final String MAX_MB_PER_SECOND = "max-mb-per-second";
+    static final String MAX_FILES_PER_SECOND = "max-files-per-second";
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+    /**
+     * Longest a waiting thread sleeps before checking its bucket again
+     */
+    static final long MAX_PAUSE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final Bucket bytes = new Bucket();
+    private final Bucket files = new Bucket();
+    /**
+     * Throttle the tokens are also taken from, null if none
+     */
+    private final Throttle parent;
+    private ScheduledExecutorService watcher;
+    private ObjectName registeredName;
+    private volatile boolean cancelled;
+
+    /**
+     * @return a throttle without limits
+     */
+    static Throttle unlimited() {
+        return new Throttle(null);
+    }
+
+    /**
+     * @return a throttle without limits of its own nested in the given one, which also limits and cancels it
+     */
+    static Throttle within(Throttle parent) {
+        return new Throttle(parent);
+    }
+
+    private Throttle(Throttle parent) {
+        this.parent = parent;
+    }
+
+    /**
+     * Blocks until {@code count} bytes can be written or copied.
+     */
+    void acquireBytes(long count) {
+        acquireBytes(count, this);
+    }
+
+    /**
+     * Blocks until a further file can be written or copied.
+     */
+    void acquireFile() {
+        acquireFile(this);
+    }
+
+    private void acquireBytes(long count, Throttle requester) {
+        requester.checkCancelled();
+        pause(bytes, bytes.reserve(count), requester);
+        if (parent != null) {
+            parent.acquireBytes(count, requester);
+        }
+    }
+
+    private void acquireFile(Throttle requester) {
+        requester.checkCancelled();
+        pause(files, files.reserve(1), requester);
+        if (parent != null) {
+            parent.acquireFile(requester);
+        }
+    }
+
+    /**
+     * Makes every further request for tokens fail, which stops the writers and copiers of the run, and of the runs of
+     * nested throttles, at their next file or chunk.
+     */
+    void cancel() {
+        cancelled = true;
+    }
+
+    private void checkCancelled() {
+        if (isCancelled()) {
+            throw new CancellationException("Run cancelled");
+        }
+    }
+
+    private boolean isCancelled() {
+        return cancelled || parent != null && parent.isCancelled();
+    }
+
+    @Override
+    public long getMaxBytesPerSecond() {
+        return bytes.rate;
+    }
+
+    @Override
+    public void setMaxBytesPerSecond(long maxBytesPerSecond) {
+        bytes.setRate(maxBytesPerSecond);
+    }
+
+    @Override
+    public long getMaxFilesPerSecond() {
+        return files.rate;
+    }
+
+    @Override
+    public void setMaxFilesPerSecond(long maxFilesPerSecond) {
+        files.setRate(maxFilesPerSecond);
+    }
+
+    void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            server.registerMBean(this, name);
+            registeredName = name;
+        } catch (InstanceAlreadyExistsException e) {
+            System.err.format("Throttle already registered as %s%n", OBJECT_NAME);
+        } catch (JMException e) {
+            throw new RuntimeException("Cannot register throttle MBean", e);
+        }
+    }
+
+    /**
+     * Polls the given control file every second and applies its limits whenever it changes. The file is first read
+     * when watching starts, so a limit it sets overrides the one given on the command line; a limit it does not set,
+     * for instance because the file is only half written, keeps the value in force.
+     */
+    synchronized void watch(Path controlFile) {
+        if (watcher != null) {
+            return;
+        }
+        watcher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "throttle-watcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long[] lastModified = { Long.MIN_VALUE };
+        watcher.scheduleWithFixedDelay(() -> {
+            try {
+                if (Files.exists(controlFile)) {
+                    long modified = Files.getLastModifiedTime(controlFile).toMillis();
+                    if (modified != lastModified[0]) {
+                        lastModified[0] = modified;
+                        load(controlFile);
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                System.err.format("Unable to read throttle control file %s: %s%n", controlFile, e);
+            }
+        }, 0, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops watching the control file and unregisters the MBean.
+     */
+    synchronized void close() {
+        if (watcher != null) {
+            watcher.shutdownNow();
+            watcher = null;
+        }
+        if (registeredName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+            } catch (JMException e) {
+                throw new RuntimeException("Cannot unregister throttle MBean", e);
+            }
+            registeredName = null;
+        }
+    }
+
+    private void load(Path controlFile) throws IOException {
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(controlFile, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        }
+        // parse both limits before applying either, so that a malformed file leaves the throttle as it was
+        long maxBytesPerSecond = properties.containsKey(MAX_MB_PER_SECOND) ?
+                Long.parseLong(properties.getProperty(MAX_MB_PER_SECOND).trim()) * MasterDataSetSpec.ONE_MB :
+                getMaxBytesPerSecond();
+        long maxFilesPerSecond = Long.parseLong(properties.getProperty(MAX_FILES_PER_SECOND,
+                String.valueOf(getMaxFilesPerSecond())).trim());
+        setMaxBytesPerSecond(maxBytesPerSecond);
+        setMaxFilesPerSecond(maxFilesPerSecond);
+        System.out.format("Throttle set to %dMB/s and %d files/s from %s%n",
+                getMaxBytesPerSecond() / MasterDataSetSpec.ONE_MB, getMaxFilesPerSecond(), controlFile);
+    }
+
+    /**
+     * Parks the calling thread until the bucket has served the given ticket, checking the bucket again after each
+     * slice so that a change of limit or a cancellation of the requesting throttle is seen while waiting.
+     */
+    private void pause(Bucket bucket, double ticket, Throttle requester) {
+        long nanos = bucket.waitNanos(ticket);
+        while (nanos > 0) {
+            LockSupport.parkNanos(Math.min(nanos, MAX_PAUSE_NANOS));
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            requester.checkCancelled();
+            nanos = bucket.waitNanos(ticket);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Throttle{" +
+                "maxBytesPerSecond=" + bytes.rate +
+                ", maxFilesPerSecond=" + files.rate +
+                '}';
+    }
+
+    /**
+     * Token bucket that serves requests in order. It counts the tokens requested and the tokens added since it was
+     * created: a request is served once as many tokens have been added as had been requested up to and including it,
+     * its ticket. The bucket holds {@code added - requested} tokens, negative while requests are waiting, and at most
+     * one second of them.
+     */
+    private static final class Bucket {
+        private volatile long rate;
+        private double requested;
+        private double added;
+        private long lastRefill = System.nanoTime();
+
+        synchronized void setRate(long rate) {
+            refill(System.nanoTime());
+            this.rate = Math.max(0, rate);
+            // without a limit waiting requests are served at once, and owe nothing to a later limit
+            added = this.rate == 0 ? Math.max(added, requested) : Math.min(added, requested + this.rate);
+        }
+
+        /**
+         * Takes tokens from the bucket, possibly going below zero.
+         *
+         * @return ticket to wait for, see {@link #waitNanos}
+         */
+        synchronized double reserve(long count) {
+            if (rate == 0) {
+                return requested;
+            }
+            refill(System.nanoTime());
+            requested += count;
+            return requested;
+        }
+
+        /**
+         * @return nanoseconds before the request of the given ticket is served at the current rate, 0 if it is
+         */
+        synchronized long waitNanos(double ticket) {
+            if (rate == 0) {
+                return 0;
+            }
+            refill(System.nanoTime());
+            return added >= ticket ? 0 : (long) Math.ceil((ticket - added) * NANOS_PER_SECOND / rate);
+        }
+
+        private void refill(long now) {
+            added = Math.min(requested + rate, added + (now - lastRefill) * (double) rate / NANOS_PER_SECOND);
+            lastRefill = now;
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package org.trinakria.masterdataset;
+
+/**
+ * Management interface to read and change the I/O limits of a running job over JMX, see {@link Throttle}.
+ *
+ * @author Mario Giurlanda
+ */
+public interface ThrottleMXBean {
+
+    /**
+     * @return max number of bytes written or copied per second, 0 if unlimited
+     */
+    long getMaxBytesPerSecond();
+
+    void setMaxBytesPerSecond(long maxBytesPerSecond);
+
+    /**
+     * @return max number of files written or copied per second, 0 if unlimited
+     */
+    long getMaxFilesPerSecond();
+
+    void setMaxFilesPerSecond(long maxFilesPerSecond);
+}
@@ -0,0 +1,197 @@
+package org.trinakria.masterdataset;
+
+import org.apache.commons.lang3.Validate;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Settings that drive how {@link FileUtils#writeFile} puts data set files on disk.
+ *
+ * @author Mario Giurlanda
+ */
+public final class WriteSettings {
+
+    /**
+     * Strategy used to write a data set file.
+     */
+    public enum Strategy {
+        /**
+         * Lines are streamed to the file through a {@link java.nio.channels.FileChannel}, growing it at each write.
+         */
+        STREAM,
+        /**
+         * The file is extended to its final size up front and filled through memory-mapped windows.
+         */
+        MAPPED
+    }
+
+    /**
+     * Compression of a data set file.
+     */
+    public enum Compression {
+        /**
+         * Plain lines
+         */
+        NONE(""),
+        /**
+         * Lines compressed in independent gzip members, see {@link BlockGzip}. Files are always streamed.
+         */
+        GZIP(".gz");
+
+        private final String extension;
+
+        Compression(String extension) {
+            this.extension = extension;
+        }
+
+        /**
+         * @return extension added to the name of a data set file
+         */
+        public String extension() {
+            return extension;
+        }
+    }
+
+    /**
+     * Bytes the size of a compressed data set file is measured in.
+     */
+    public enum SizeBasis {
+        /**
+         * The file holds exactly the requested number of bytes of lines
+         */
+        UNCOMPRESSED,
+        /**
+         * The file takes about the requested number of bytes on disk
+         */
+        COMPRESSED
+    }
+
+    public static final long DEFAULT_MAP_WINDOW_BYTES = 64L * MasterDataSetSpec.ONE_MB;
+
+    private static final WriteSettings DEFAULTS = new WriteSettings(Strategy.STREAM, DEFAULT_MAP_WINDOW_BYTES,
+            Compression.NONE, SizeBasis.UNCOMPRESSED, Throttle.unlimited(), false, ForkJoinPool.commonPool());
+
+    private final Strategy strategy;
+    /**
+     * Max number of bytes mapped at once by {@link Strategy#MAPPED}
+     */
+    private final long mapWindowBytes;
+    private final Compression compression;
+    /**
+     * Bytes the size of a compressed file is measured in
+     */
+    private final SizeBasis sizeBasis;
+    /**
+     * Limits shared with the other writers of the run
+     */
+    private final Throttle throttle;
+    /**
+     * True if files are written around the page cache, see {@link DirectIo}
+     */
+    private final boolean directIo;
+    /**
+     * Pool the blocks of compressed files are deflated on
+     */
+    private final ForkJoinPool compressors;
+
+    private WriteSettings(Strategy strategy, long mapWindowBytes, Compression compression, SizeBasis sizeBasis,
+                          Throttle throttle, boolean directIo, ForkJoinPool compressors) {
+        Validate.isTrue(mapWindowBytes > 0 && mapWindowBytes <= Integer.MAX_VALUE,
+                "map window size must be between 1 byte and 2GB");
+        this.strategy = strategy;
+        this.mapWindowBytes = mapWindowBytes;
+        this.compression = compression;
+        this.sizeBasis = sizeBasis;
+        this.throttle = throttle;
+        this.directIo = directIo;
+        this.compressors = compressors;
+    }
+
+    public static WriteSettings of(Strategy strategy, long mapWindowBytes) {
+        return of(strategy, mapWindowBytes, Compression.NONE, SizeBasis.UNCOMPRESSED);
+    }
+
+    public static WriteSettings of(Strategy strategy, long mapWindowBytes, Compression compression,
+                                   SizeBasis sizeBasis) {
+        return new WriteSettings(strategy, mapWindowBytes, compression, sizeBasis, Throttle.unlimited(), false,
+                ForkJoinPool.commonPool());
+    }
+
+    public static WriteSettings defaults() {
+        return DEFAULTS;
+    }
+
+    public Strategy strategy() {
+        return strategy;
+    }
+
+    public long mapWindowBytes() {
+        return mapWindowBytes;
+    }
+
+    public Compression compression() {
+        return compression;
+    }
+
+    public SizeBasis sizeBasis() {
+        return sizeBasis;
+    }
+
+    /**
+     * @return a copy of these settings writing files with the given compression, for instance the one of the data set
+     * a file is appended to
+     */
+    WriteSettings withCompression(Compression compression) {
+        return new WriteSettings(strategy, mapWindowBytes, compression, sizeBasis, throttle, directIo, compressors);
+    }
+
+    /**
+     * @return a copy of these settings whose writes are limited by the given throttle
+     */
+    WriteSettings withThrottle(Throttle throttle) {
+        return new WriteSettings(strategy, mapWindowBytes, compression, sizeBasis, throttle, directIo, compressors);
+    }
+
+    /**
+     * @return a copy of these settings writing files around the page cache, or through it
+     */
+    WriteSettings withDirectIo(boolean directIo) {
+        return new WriteSettings(strategy, mapWindowBytes, compression, sizeBasis, throttle, directIo, compressors);
+    }
+
+    /**
+     * @return a copy of these settings deflating the blocks of compressed files on the given pool, for instance the
+     * one of the run, rather than on the common pool
+     */
+    WriteSettings withCompressors(ForkJoinPool compressors) {
+        return new WriteSettings(strategy, mapWindowBytes, compression, sizeBasis, throttle, directIo, compressors);
+    }
+
+    Throttle throttle() {
+        return throttle;
+    }
+
+    /**
+     * @return true if files are written with {@link DirectIo} when possible. Files that cannot be, such as compressed
+     * or mapped ones and appends, are released from the page cache once written as far as the JDK allows
+     */
+    boolean directIo() {
+        return directIo;
+    }
+
+    ForkJoinPool compressors() {
+        return compressors;
+    }
+
+    @Override
+    public String toString() {
+        return "WriteSettings{" +
+                "strategy=" + strategy +
+                ", mapWindowBytes=" + mapWindowBytes +
+                ", compression=" + compression +
+                ", sizeBasis=" + sizeBasis +
+                ", throttle=" + throttle +
+                ", directIo=" + directIo +
+                '}';
+    }
+}
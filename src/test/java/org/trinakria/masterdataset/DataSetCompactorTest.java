@@ -0,0 +1,87 @@
+package org.trinakria.masterdataset;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.trinakria.masterdataset.MasterDataSetSpec.ONE_MB;
+import static org.trinakria.masterdataset.MasterDataSetTests.assertSameDataSetFiles;
+import static org.trinakria.masterdataset.MasterDataSetTests.dataSetFiles;
+import static org.trinakria.masterdataset.MasterDataSetTests.run;
+
+/**
+ * Round trips of {@link DataSetCompactor}.
+ *
+ * @author Mario Giurlanda
+ */
+public class DataSetCompactorTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void rewritesTheContentIntoFilesOfTheTargetSize() throws IOException {
+        Path inputFolder = temp.getRoot().toPath().resolve("data");
+        run("GENERATE", inputFolder.toString(), "2", "a,5");
+        byte[] content = content(inputFolder.resolve("a"));
+
+        run("COMPACT", inputFolder.toString(), "3");
+
+        Path dataSetFolder = inputFolder.resolve("a");
+        assertArrayEquals(content, content(dataSetFolder));
+        assertEquals(3 * ONE_MB, Files.size(dataSetFolder.resolve("file0.txt")));
+        assertEquals(2 * ONE_MB, Files.size(dataSetFolder.resolve("file1.txt")));
+        assertTrue(Files.exists(dataSetFolder.resolve(DataSetCompactor.REWRITE_MARKER)));
+        DataSetManifest manifest = DataSetManifest.loadOrScan(dataSetFolder);
+        assertEquals(2, manifest.fileCount());
+        assertEquals(5 * ONE_MB, manifest.totalSize());
+    }
+
+    @Test
+    public void makesTheNextIncrementalCopyOfTheDataSetAFullOne() throws IOException {
+        Path inputFolder = temp.getRoot().toPath().resolve("data");
+        run("GENERATE", inputFolder.toString(), "1", "a,3");
+        Path first = temp.getRoot().toPath().resolve("first");
+        ParallelTreeCopier copier = new ParallelTreeCopier(inputFolder, first, false, 2);
+        copier.copy();
+        Path second = temp.getRoot().toPath().resolve("second");
+        copier = new ParallelTreeCopier(inputFolder, second, false, 2).incremental(first, copier.manifest(), true);
+        copier.copy();
+
+        run("COMPACT", inputFolder.toString(), "2");
+        // the hashes of the manifest still match the first bytes of the compacted files, only the marker tells the
+        // copier not to take them from the previous copy
+        Path previousFile = second.resolve("a").resolve("file0.txt");
+        Files.write(previousFile, new byte[(int) Files.size(previousFile)]);
+        Path third = temp.getRoot().toPath().resolve("third");
+        copier = new ParallelTreeCopier(inputFolder, third, false, 2).incremental(second, copier.manifest(), true);
+        copier.copy();
+        assertSameDataSetFiles(inputFolder, third);
+
+        Path fourth = temp.getRoot().toPath().resolve("fourth");
+        copier = new ParallelTreeCopier(inputFolder, fourth, false, 2).incremental(third, copier.manifest(), false);
+        copier.copy();
+        assertEquals(0, copier.filesCopied());
+        assertSameDataSetFiles(inputFolder, fourth);
+    }
+
+    /**
+     * @return the content of the files of a data set folder, in index order
+     */
+    private static byte[] content(Path dataSetFolder) throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        for (long idx = 0; idx < dataSetFiles(dataSetFolder).size(); idx++) {
+            Path file = dataSetFolder.resolve(MasterDataSetSpec.fileName(idx, WriteSettings.Compression.NONE));
+            content.write(Files.readAllBytes(file));
+        }
+        return content.toByteArray();
+    }
+}
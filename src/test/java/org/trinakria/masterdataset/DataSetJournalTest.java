@@ -0,0 +1,76 @@
+package org.trinakria.masterdataset;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.trinakria.masterdataset.MasterDataSetTests.append;
+import static org.trinakria.masterdataset.MasterDataSetTests.assertSameDataSetFiles;
+import static org.trinakria.masterdataset.MasterDataSetTests.run;
+
+/**
+ * Round trips of runs interrupted by a crash, recovered through the {@link DataSetJournal} of the data set.
+ *
+ * @author Mario Giurlanda
+ */
+public class DataSetJournalTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void updateRollsBackAnInterruptedAppend() throws IOException {
+        Path expected = temp.getRoot().toPath().resolve("expected");
+        run("GENERATE", expected.toString(), "2", "a,3");
+        run("UPDATE", expected.toString(), "a,2");
+
+        Path inputFolder = temp.getRoot().toPath().resolve("data");
+        run("GENERATE", inputFolder.toString(), "2", "a,3");
+        Path dataSetFolder = inputFolder.resolve("a");
+        Path partial = dataSetFolder.resolve("file1.txt");
+        DataSetJournal journal = DataSetJournal.open(dataSetFolder);
+        journal.plan(2, 1, 2);
+        journal.appendStarted(1, Files.size(partial));
+        append(partial, "half written line".getBytes(StandardCharsets.UTF_8));
+
+        run("UPDATE", inputFolder.toString(), "a,2");
+
+        assertSameDataSetFiles(expected, inputFolder);
+        assertFalse(DataSetJournal.exists(dataSetFolder));
+    }
+
+    @Test
+    public void resumedGenerateOnlyWritesTheMissingFiles() throws IOException {
+        Path expected = temp.getRoot().toPath().resolve("expected");
+        run("GENERATE", expected.toString(), "1", "a,4");
+
+        Path inputFolder = temp.getRoot().toPath().resolve("data");
+        run("GENERATE", inputFolder.toString(), "1", "a,4");
+        Path dataSetFolder = inputFolder.resolve("a");
+        // a crash after two files were journaled, while the third was still written under its temporary name
+        DataSetJournal journal = DataSetJournal.open(dataSetFolder);
+        FileTime journaled = FileTime.fromMillis(System.currentTimeMillis() - 60_000);
+        for (long idx = 0; idx < 2; idx++) {
+            Path file = dataSetFolder.resolve(MasterDataSetSpec.fileName(idx, WriteSettings.Compression.NONE));
+            journal.done(idx, Files.size(file));
+            Files.setLastModifiedTime(file, journaled);
+        }
+        Files.move(dataSetFolder.resolve("file2.txt"), dataSetFolder.resolve("file2.txt.tmp"));
+        Files.delete(dataSetFolder.resolve("file3.txt"));
+
+        run("GENERATE", inputFolder.toString(), "1", "a,4", "--resume");
+
+        assertSameDataSetFiles(expected, inputFolder);
+        assertEquals(journaled, Files.getLastModifiedTime(dataSetFolder.resolve("file0.txt")));
+        assertEquals(journaled, Files.getLastModifiedTime(dataSetFolder.resolve("file1.txt")));
+        assertFalse(DataSetJournal.exists(dataSetFolder));
+    }
+}
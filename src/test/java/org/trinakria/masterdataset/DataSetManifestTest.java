@@ -0,0 +1,61 @@
+package org.trinakria.masterdataset;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import static org.junit.Assert.assertEquals;
+import static org.trinakria.masterdataset.MasterDataSetSpec.ONE_MB;
+import static org.trinakria.masterdataset.MasterDataSetTests.run;
+
+/**
+ * Round trips of {@link DataSetManifest} through the modes that change a data set.
+ *
+ * @author Mario Giurlanda
+ */
+public class DataSetManifestTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void followsGenerateAndUpdate() {
+        Path inputFolder = temp.getRoot().toPath().resolve("data");
+        run("GENERATE", inputFolder.toString(), "2", "a,3");
+        Path dataSetFolder = inputFolder.resolve("a");
+        assertSameAsScan(dataSetFolder);
+
+        run("UPDATE", inputFolder.toString(), "a,4");
+        assertSameAsScan(dataSetFolder);
+        assertEquals(7 * ONE_MB, DataSetManifest.loadOrScan(dataSetFolder).totalSize());
+    }
+
+    @Test
+    public void rescansFoldersModifiedInTheTickItWasSavedIn() throws IOException {
+        Path inputFolder = temp.getRoot().toPath().resolve("data");
+        run("GENERATE", inputFolder.toString(), "1", "a,2");
+        Path dataSetFolder = inputFolder.resolve("a");
+        Files.setLastModifiedTime(dataSetFolder, FileTime.fromMillis(System.currentTimeMillis()));
+        DataSetManifest.scan(dataSetFolder).save();
+
+        // a file added within the same tick of a coarse clock leaves the folder time as it was
+        FileTime modified = Files.getLastModifiedTime(dataSetFolder);
+        Files.copy(dataSetFolder.resolve("file0.txt"), dataSetFolder.resolve("file2.txt"));
+        Files.setLastModifiedTime(dataSetFolder, modified);
+
+        assertEquals(3, DataSetManifest.loadOrScan(dataSetFolder).fileCount());
+    }
+
+    private static void assertSameAsScan(Path dataSetFolder) {
+        DataSetManifest manifest = DataSetManifest.loadOrScan(dataSetFolder);
+        DataSetManifest scanned = DataSetManifest.scan(dataSetFolder);
+        assertEquals(scanned.fileCount(), manifest.fileCount());
+        assertEquals(scanned.totalSize(), manifest.totalSize());
+        assertEquals(scanned.partialIndex(), manifest.partialIndex());
+    }
+}
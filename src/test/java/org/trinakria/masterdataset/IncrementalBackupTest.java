@@ -0,0 +1,115 @@
+package org.trinakria.masterdataset;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.trinakria.masterdataset.MasterDataSetTests.append;
+import static org.trinakria.masterdataset.MasterDataSetTests.assertSameDataSetFiles;
+import static org.trinakria.masterdataset.MasterDataSetTests.backupPath;
+import static org.trinakria.masterdataset.MasterDataSetTests.run;
+
+/**
+ * Round trips of incremental backups through {@link ParallelTreeCopier}.
+ *
+ * @author Mario Giurlanda
+ */
+public class IncrementalBackupTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void linksUnchangedFilesAndCopiesTheTailOfAppendedFiles() throws IOException {
+        Path source = temp.newFolder("source").toPath();
+        Files.write(source.resolve("file0.txt"), bytes("unchanged\n"));
+        Files.write(source.resolve("file1.txt"), bytes("first line\n"));
+        Path first = temp.getRoot().toPath().resolve("first");
+        BackupManifest manifest = copy(source, first, null, null);
+
+        append(source.resolve("file1.txt"), bytes("second line\n"));
+        Path second = temp.getRoot().toPath().resolve("second");
+        ParallelTreeCopier copier = new ParallelTreeCopier(source, second, false, 2)
+                .incremental(first, manifest, false);
+        copier.copy();
+
+        assertEquals(1, copier.filesLinked());
+        assertEquals(1, copier.filesCopied());
+        assertSameDataSetFiles(source, second);
+    }
+
+    @Test
+    public void copiesWholeFilesRewrittenWithALargerSize() throws IOException {
+        Path source = temp.newFolder("source").toPath();
+        Files.write(source.resolve("file0.txt"), bytes("old line\n"));
+        Path first = temp.getRoot().toPath().resolve("first");
+        BackupManifest manifest = copy(source, first, null, null);
+
+        Files.write(source.resolve("file0.txt"), bytes("rewritten line\n"));
+        Path second = temp.getRoot().toPath().resolve("second");
+        copy(source, second, first, manifest);
+
+        assertArrayEquals(bytes("rewritten line\n"), Files.readAllBytes(second.resolve("file0.txt")));
+    }
+
+    @Test
+    public void copiesWholeFilesRewrittenWithALargerSizeWhenHashed() throws IOException {
+        Path source = temp.newFolder("source").toPath();
+        Files.write(source.resolve("file0.txt"), bytes("old line\n"));
+        Path first = temp.getRoot().toPath().resolve("first");
+        BackupManifest manifest = copy(source, first, null, null);
+        Path second = temp.getRoot().toPath().resolve("second");
+        ParallelTreeCopier copier = new ParallelTreeCopier(source, second, false, 2)
+                .incremental(first, manifest, true);
+        copier.copy();
+
+        Files.write(source.resolve("file0.txt"), bytes("rewritten line\n"));
+        Path third = temp.getRoot().toPath().resolve("third");
+        new ParallelTreeCopier(source, third, false, 2)
+                .incremental(second, copier.manifest(), true)
+                .copy();
+
+        assertArrayEquals(bytes("rewritten line\n"), Files.readAllBytes(third.resolve("file0.txt")));
+    }
+
+    @Test
+    public void backsUpACompactedDataSetIncrementally() throws IOException {
+        Path inputFolder = temp.getRoot().toPath().resolve("data");
+        Path backupFolder = temp.getRoot().toPath().resolve("backup");
+        run("GENERATE", inputFolder.toString(), "2", "a,3");
+        // the backup of an absolute input folder is nested in the backup folder
+        Files.createDirectories(backupPath(backupFolder, inputFolder).getParent());
+        run("BACKUP", inputFolder.toString(), backupFolder.toString());
+        run("UPDATE", inputFolder.toString(), "a,4");
+        run("BACKUP", inputFolder.toString(), backupFolder.toString(), "--incremental");
+        assertSameDataSetFiles(inputFolder, backupPath(backupFolder, inputFolder));
+
+        run("COMPACT", inputFolder.toString(), "3");
+        run("BACKUP", inputFolder.toString(), backupFolder.toString(), "--incremental");
+        assertSameDataSetFiles(inputFolder, backupPath(backupFolder, inputFolder));
+
+        run("UPDATE", inputFolder.toString(), "a,5");
+        run("BACKUP", inputFolder.toString(), backupFolder.toString(), "--incremental", "--hash");
+        assertSameDataSetFiles(inputFolder, backupPath(backupFolder, inputFolder));
+    }
+
+    private static BackupManifest copy(Path source, Path target, Path previousCopy, BackupManifest previousManifest) {
+        ParallelTreeCopier copier = new ParallelTreeCopier(source, target, false, 2);
+        if (previousCopy != null) {
+            copier.incremental(previousCopy, previousManifest, false);
+        }
+        copier.copy();
+        return copier.manifest();
+    }
+
+    private static byte[] bytes(String content) {
+        return content.getBytes(StandardCharsets.UTF_8);
+    }
+}
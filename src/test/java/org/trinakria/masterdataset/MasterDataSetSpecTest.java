@@ -0,0 +1,73 @@
+package org.trinakria.masterdataset;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Parsing of the command line by {@link MasterDataSetSpec#fromArgs}.
+ *
+ * @author Mario Giurlanda
+ */
+public class MasterDataSetSpecTest {
+
+    @Test
+    public void acceptsTheOptionsOfTheModeAndOfAllModes() {
+        MasterDataSetSpec spec = MasterDataSetSpec.fromArgs(new String[]{"BACKUP", "data", "backup", "--incremental",
+                "--parallelism=4", "--max-mb-per-second=50"});
+        assertTrue(spec.booleanOption("incremental"));
+        assertEquals(4, spec.parallelism());
+        assertEquals(50, spec.maxMegaBytesPerSecond());
+    }
+
+    @Test
+    public void rejectsUnknownOptions() {
+        assertRejected("GENERATE", "data", "1", "a,2", "--paralelism=4");
+    }
+
+    @Test
+    public void rejectsOptionsOfOtherModes() {
+        assertRejected("BACKUP", "data", "backup", "--master-seed=1");
+        assertRejected("RESTORE", "data", "backup", "--incremental");
+    }
+
+    @Test
+    public void rejectsOptionsTheModeCannotHonour() {
+        assertRejected("RESHARD", "data", "hash", "--datasets=a");
+        assertRejected("PLAN", "data", "1", "a,2", "plan", "--roots=other");
+        assertRejected("PLAN", "data", "1", "a,2", "plan", "--placement=free-space");
+    }
+
+    @Test
+    public void rejectsOptionsThatAreNotNumbers() {
+        assertInvalidParallelism("--parallelism=abc", "--parallelism=abc is not a number");
+    }
+
+    @Test
+    public void rejectsOptionsOutOfTheRangeOfAnInt() {
+        assertInvalidParallelism("--parallelism=4294967297", "--parallelism=4294967297 is out of range");
+    }
+
+    private static void assertInvalidParallelism(String option, String expectedMessage) {
+        MasterDataSetSpec spec = MasterDataSetSpec.fromArgs(new String[]{"GENERATE", "data", "1", "a,2", option});
+        try {
+            spec.parallelism();
+            fail("Expected " + option + " to be rejected");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith(expectedMessage));
+            assertTrue(e.getMessage(), e.getMessage().contains("Usage"));
+        }
+    }
+
+    private static void assertRejected(String... args) {
+        try {
+            MasterDataSetSpec.fromArgs(args);
+            fail("Expected options of " + String.join(" ", args) + " to be rejected");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Unknown options"));
+            assertTrue(e.getMessage(), e.getMessage().contains("Usage"));
+        }
+    }
+}
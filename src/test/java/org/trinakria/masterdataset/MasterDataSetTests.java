@@ -0,0 +1,72 @@
+package org.trinakria.masterdataset;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Helpers shared by the tests, which run the modes as the command line does.
+ *
+ * @author Mario Giurlanda
+ */
+final class MasterDataSetTests {
+
+    private MasterDataSetTests() {
+    }
+
+    /**
+     * Runs a mode with the given command line arguments.
+     */
+    static RunResult run(String... args) {
+        return new MasterDataSetRunner().execute(MasterDataSetSpec.fromArgs(args));
+    }
+
+    /**
+     * @return folder the latest backup generation of an input folder is written to
+     */
+    static Path backupPath(Path backupFolder, Path inputFolder) {
+        return Paths.get(backupFolder.toString(), inputFolder.toString());
+    }
+
+    /**
+     * @return data set files of a folder, relative to it and sorted
+     */
+    static List<Path> dataSetFiles(Path folder) throws IOException {
+        try (Stream<Path> stream = Files.walk(folder)) {
+            return stream.filter(MasterDataSetSpec::isDataSetFile)
+                    .map(folder::relativize)
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Asserts that two folders hold the same data set files with the same content.
+     */
+    static void assertSameDataSetFiles(Path expected, Path actual) throws IOException {
+        List<Path> files = dataSetFiles(expected);
+        assertEquals(files, dataSetFiles(actual));
+        for (Path file : files) {
+            assertArrayEquals("Content of " + file, Files.readAllBytes(expected.resolve(file)),
+                    Files.readAllBytes(actual.resolve(file)));
+        }
+    }
+
+    /**
+     * Appends bytes to a file.
+     */
+    static void append(Path file, byte... bytes) throws IOException {
+        byte[] content = Files.readAllBytes(file);
+        byte[] appended = Arrays.copyOf(content, content.length + bytes.length);
+        System.arraycopy(bytes, 0, appended, content.length, bytes.length);
+        Files.write(file, appended);
+    }
+}
@@ -0,0 +1,86 @@
+package org.trinakria.masterdataset;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.trinakria.masterdataset.MasterDataSetSpec.ONE_MB;
+import static org.trinakria.masterdataset.MasterDataSetTests.assertSameDataSetFiles;
+import static org.trinakria.masterdataset.MasterDataSetTests.run;
+
+/**
+ * Round trips of the generation of a {@link PartitionPlan} by workers.
+ *
+ * @author Mario Giurlanda
+ */
+public class PartitionPlanTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void workersGenerateWhatGenerateWrites() throws IOException {
+        Path generated = temp.getRoot().toPath().resolve("generated");
+        run("GENERATE", generated.toString(), "1", "a,5,b,2");
+        Path inputFolder = temp.getRoot().toPath().resolve("data");
+        Path planFile = temp.getRoot().toPath().resolve("plan");
+        run("PLAN", inputFolder.toString(), "1", "a,5,b,2", planFile.toString(), "--partition-files=2");
+        assertEquals(4, PartitionPlan.load(planFile).partitions().size());
+
+        run("WORKER", planFile.toString(), "--worker-id=first");
+        run("WORKER", planFile.toString(), "--worker-id=second");
+        run("MERGE", planFile.toString());
+
+        assertSameDataSetFiles(generated, inputFolder);
+        assertEquals(5 * ONE_MB, DataSetManifest.loadOrScan(inputFolder.resolve("a")).totalSize());
+        assertEquals(2 * ONE_MB, DataSetManifest.loadOrScan(inputFolder.resolve("b")).totalSize());
+    }
+
+    @Test
+    public void heartbeatReportsAClaimTakenOver() throws IOException {
+        Path inputFolder = temp.getRoot().toPath().resolve("data");
+        Path planFile = temp.getRoot().toPath().resolve("plan");
+        run("PLAN", inputFolder.toString(), "1", "a,2", planFile.toString());
+        PartitionPlan plan = PartitionPlan.load(planFile);
+        PartitionPlan.Partition partition = plan.partitions().get(0);
+        assertTrue(plan.claim(partition, "stalled", 60_000));
+        assertTrue(plan.heartbeat(partition, "stalled"));
+
+        assertFalse(plan.claim(partition, "other", 60_000));
+        assertTrue(plan.claim(partition, "other", 0));
+        assertFalse(plan.heartbeat(partition, "stalled"));
+        assertTrue(plan.heartbeat(partition, "other"));
+
+        // the worker that took the claim over gets it back when restarted
+        run("WORKER", planFile.toString(), "--worker-id=other");
+        run("MERGE", planFile.toString());
+        assertEquals(2 * ONE_MB, DataSetManifest.loadOrScan(inputFolder.resolve("a")).totalSize());
+    }
+
+    @Test
+    public void keepsTheCompletionOfTheWorkerThatTookTheClaimOver() throws IOException {
+        Path inputFolder = temp.getRoot().toPath().resolve("data");
+        Path planFile = temp.getRoot().toPath().resolve("plan");
+        run("PLAN", inputFolder.toString(), "1", "a,2", planFile.toString());
+        PartitionPlan plan = PartitionPlan.load(planFile);
+        PartitionPlan.Partition partition = plan.partitions().get(0);
+        Map<Long, Long> fileSizes = new HashMap<>();
+        fileSizes.put(partition.firstIndex(), (long) ONE_MB);
+        fileSizes.put(partition.firstIndex() + 1, (long) ONE_MB);
+        Path otherRoot = temp.getRoot().toPath().resolve("other");
+        assertTrue(plan.claim(partition, "stalled", 60_000));
+        assertTrue(plan.claim(partition, "other", 0));
+        assertTrue(plan.complete(partition, "other", otherRoot, fileSizes));
+
+        assertFalse(plan.complete(partition, "stalled", inputFolder, fileSizes));
+        assertEquals(otherRoot, plan.completion(partition).get().root());
+    }
+}
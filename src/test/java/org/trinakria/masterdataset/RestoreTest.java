@@ -0,0 +1,95 @@
+package org.trinakria.masterdataset;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.trinakria.masterdataset.MasterDataSetTests.append;
+import static org.trinakria.masterdataset.MasterDataSetTests.assertSameDataSetFiles;
+import static org.trinakria.masterdataset.MasterDataSetTests.backupPath;
+import static org.trinakria.masterdataset.MasterDataSetTests.run;
+
+/**
+ * Round trips of master data sets through BACKUP and RESTORE.
+ *
+ * @author Mario Giurlanda
+ */
+public class RestoreTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void restoresModifiedExtraAndDeletedFilesFromATree() throws IOException {
+        restoresModifiedExtraAndDeletedFiles("tree");
+    }
+
+    @Test
+    public void restoresModifiedExtraAndDeletedFilesFromAnArchive() throws IOException {
+        restoresModifiedExtraAndDeletedFiles("archive");
+    }
+
+    @Test
+    public void removesShardFoldersCreatedSinceTheBackup() throws IOException {
+        Path inputFolder = temp.getRoot().toPath().resolve("data");
+        Path expected = temp.getRoot().toPath().resolve("expected");
+        Path backupFolder = temp.getRoot().toPath().resolve("backup");
+        run("GENERATE", inputFolder.toString(), "1", "a,4", "--shards=range", "--shard-depth=1", "--shard-width=2");
+        run("GENERATE", expected.toString(), "1", "a,4", "--shards=range", "--shard-depth=1", "--shard-width=2");
+        Files.createDirectories(backupPath(backupFolder, inputFolder).getParent());
+        run("BACKUP", inputFolder.toString(), backupFolder.toString());
+
+        // files 4 to 6 go to shard folders 2 and 3, which are not in the backup
+        run("UPDATE", inputFolder.toString(), "a,3");
+        run("RESTORE", inputFolder.toString(), backupFolder.toString());
+
+        assertSameDataSetFiles(expected, inputFolder);
+        assertFalse(Files.exists(inputFolder.resolve("a").resolve("2")));
+        assertFalse(Files.exists(inputFolder.resolve("a").resolve("3")));
+        run("VERIFY", inputFolder.toString(), "1", "a,4");
+    }
+
+    @Test
+    public void restoresOnlyTheSelectedDataSets() throws IOException {
+        Path inputFolder = temp.getRoot().toPath().resolve("data");
+        Path backupFolder = temp.getRoot().toPath().resolve("backup");
+        run("GENERATE", inputFolder.toString(), "1", "a,2,b,2");
+        Files.createDirectories(backupPath(backupFolder, inputFolder).getParent());
+        run("BACKUP", inputFolder.toString(), backupFolder.toString());
+
+        Path fileOfA = inputFolder.resolve("a").resolve("file0.txt");
+        Path fileOfB = inputFolder.resolve("b").resolve("file0.txt");
+        append(fileOfA, (byte) 'x');
+        append(fileOfB, (byte) 'x');
+        byte[] modifiedB = Files.readAllBytes(fileOfB);
+        run("RESTORE", inputFolder.toString(), backupFolder.toString(), "--datasets=a");
+
+        assertSameDataSetFiles(backupPath(backupFolder, inputFolder).resolve("a"), inputFolder.resolve("a"));
+        assertArrayEquals(modifiedB, Files.readAllBytes(fileOfB));
+    }
+
+    private void restoresModifiedExtraAndDeletedFiles(String format) throws IOException {
+        Path inputFolder = temp.getRoot().toPath().resolve("data");
+        Path expected = temp.getRoot().toPath().resolve("expected");
+        Path backupFolder = temp.getRoot().toPath().resolve("backup");
+        run("GENERATE", inputFolder.toString(), "1", "a,3,b,2");
+        run("GENERATE", expected.toString(), "1", "a,3,b,2");
+        // the backup of an absolute input folder is nested in the backup folder
+        Files.createDirectories(backupPath(backupFolder, inputFolder).getParent());
+        run("BACKUP", inputFolder.toString(), backupFolder.toString(), "--format=" + format);
+
+        append(inputFolder.resolve("a").resolve("file0.txt"), (byte) 'x');
+        Files.copy(inputFolder.resolve("a").resolve("file1.txt"), inputFolder.resolve("a").resolve("file7.txt"));
+        Files.delete(inputFolder.resolve("b").resolve("file1.txt"));
+        run("RESTORE", inputFolder.toString(), backupFolder.toString(), "--parallelism=2");
+
+        assertSameDataSetFiles(expected, inputFolder);
+        run("VERIFY", inputFolder.toString(), "1", "a,3,b,2");
+    }
+}
@@ -0,0 +1,68 @@
+package org.trinakria.masterdataset;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.trinakria.masterdataset.MasterDataSetTests.assertSameDataSetFiles;
+import static org.trinakria.masterdataset.MasterDataSetTests.dataSetFiles;
+import static org.trinakria.masterdataset.MasterDataSetTests.run;
+
+/**
+ * Round trips of data sets moved between {@link ShardLayout}s by RESHARD.
+ *
+ * @author Mario Giurlanda
+ */
+public class ShardLayoutTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void movesEveryFileToTheTargetLayoutAndBack() throws IOException {
+        Path inputFolder = temp.getRoot().toPath().resolve("data");
+        Path expected = temp.getRoot().toPath().resolve("expected");
+        run("GENERATE", inputFolder.toString(), "1", "a,4,b,3");
+        run("GENERATE", expected.toString(), "1", "a,4,b,3");
+
+        run("RESHARD", inputFolder.toString(), "hash", "--shard-depth=1", "--shard-width=4", "--parallelism=2");
+        assertEquals(ShardLayout.of(ShardLayout.Scheme.HASH, 1, 4), ShardLayout.load(inputFolder));
+        for (Path file : dataSetFiles(inputFolder)) {
+            // <data set>/<shard>/<file>
+            assertEquals(file.toString(), 3, file.getNameCount());
+        }
+        assertEquals(7, dataSetFiles(inputFolder).size());
+        run("VERIFY", inputFolder.toString(), "1", "a,4,b,3");
+
+        run("RESHARD", inputFolder.toString(), "flat");
+        assertEquals(ShardLayout.FLAT, ShardLayout.load(inputFolder));
+        assertSameDataSetFiles(expected, inputFolder);
+    }
+
+    @Test
+    public void completesAnInterruptedReshard() throws IOException {
+        Path inputFolder = temp.getRoot().toPath().resolve("data");
+        Path expected = temp.getRoot().toPath().resolve("expected");
+        run("GENERATE", inputFolder.toString(), "1", "a,4");
+        run("GENERATE", expected.toString(), "1", "a,4");
+
+        // as if a reshard from flat to hash had stopped after moving some files
+        run("RESHARD", inputFolder.toString(), "hash", "--shard-depth=1", "--shard-width=2");
+        Path moved = inputFolder.resolve(dataSetFiles(inputFolder).get(0));
+        Files.move(moved, inputFolder.resolve("a").resolve(moved.getFileName()));
+        ShardLayout.load(inputFolder).savePending(inputFolder);
+        assertTrue(ShardLayout.isPending(inputFolder));
+        run("RESHARD", inputFolder.toString(), "flat");
+
+        assertFalse(ShardLayout.isPending(inputFolder));
+        assertSameDataSetFiles(expected, inputFolder);
+        run("VERIFY", inputFolder.toString(), "1", "a,4");
+    }
+}
@@ -0,0 +1,44 @@
+package org.trinakria.masterdataset;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.trinakria.masterdataset.MasterDataSetTests.dataSetFiles;
+import static org.trinakria.masterdataset.MasterDataSetTests.run;
+
+/**
+ * Round trips of data sets striped by {@link StripeLayout}.
+ *
+ * @author Mario Giurlanda
+ */
+public class StripeLayoutTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void resolvesRecordedRootsAgainstTheInputFolder() throws IOException {
+        Path inputFolder = temp.getRoot().toPath().resolve("data");
+        Path root = temp.getRoot().toPath().resolve("disk1");
+        run("GENERATE", inputFolder.toString(), "1", "a,4", "--roots=" + root);
+        assertEquals(Collections.singletonList(root), StripeLayout.load(inputFolder));
+        assertEquals(2, dataSetFiles(root.resolve("a")).size());
+
+        Files.write(inputFolder.resolve(StripeLayout.FILE_NAME), Arrays.asList("# relative", "../disk1"),
+                StandardCharsets.UTF_8);
+        assertEquals(root.normalize(), StripeLayout.load(inputFolder).get(0).normalize());
+        run("UPDATE", inputFolder.toString(), "a,2");
+
+        assertEquals(3, dataSetFiles(root.resolve("a")).size());
+        run("VERIFY", inputFolder.toString(), "1", "a,6");
+    }
+}
@@ -0,0 +1,119 @@
+package org.trinakria.masterdataset;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.trinakria.masterdataset.MasterDataSetSpec.ONE_MB;
+
+/**
+ * Checks that waits for tokens follow the limits of a {@link Throttle} as they change.
+ *
+ * @author Mario Giurlanda
+ */
+public class ThrottleTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test(timeout = 5000)
+    public void raisingTheLimitShortensWaitsAlreadyReserved() throws Exception {
+        Throttle throttle = Throttle.unlimited();
+        throttle.setMaxBytesPerSecond(ONE_MB);
+        // the bucket starts empty, so this waits for about 60s at the initial limit
+        CompletableFuture<Void> acquired = CompletableFuture.runAsync(() -> throttle.acquireBytes(60 * ONE_MB));
+        Thread.sleep(200);
+        throttle.setMaxBytesPerSecond(1024 * ONE_MB);
+        acquired.get(2, TimeUnit.SECONDS);
+    }
+
+    @Test(timeout = 5000)
+    public void removingTheLimitReleasesWaitingThreads() throws Exception {
+        Throttle throttle = Throttle.unlimited();
+        throttle.setMaxFilesPerSecond(1);
+        throttle.acquireFile();
+        CompletableFuture<Void> acquired = CompletableFuture.runAsync(() -> {
+            for (int i = 0; i < 60; i++) {
+                throttle.acquireFile();
+            }
+        });
+        Thread.sleep(200);
+        throttle.setMaxFilesPerSecond(0);
+        acquired.get(2, TimeUnit.SECONDS);
+    }
+
+    @Test(timeout = 5000)
+    public void keepsTheLimit() {
+        Throttle throttle = Throttle.unlimited();
+        throttle.setMaxFilesPerSecond(10);
+        long startTime = System.nanoTime();
+        for (int i = 0; i < 11; i++) {
+            throttle.acquireFile();
+        }
+        assertTrue(System.nanoTime() - startTime >= TimeUnit.MILLISECONDS.toNanos(900));
+    }
+
+    @Test(timeout = 5000)
+    public void controlFileKeepsTheLimitsItDoesNotSet() throws Exception {
+        Path controlFile = temporaryFolder.newFile("throttle.properties").toPath();
+        Files.write(controlFile, (Throttle.MAX_MB_PER_SECOND + "=100\n").getBytes(StandardCharsets.UTF_8));
+        Throttle throttle = Throttle.unlimited();
+        throttle.setMaxFilesPerSecond(1);
+        throttle.watch(controlFile);
+        try {
+            while (throttle.getMaxBytesPerSecond() == 0) {
+                Thread.sleep(10);
+            }
+            assertEquals(100L * ONE_MB, throttle.getMaxBytesPerSecond());
+            assertEquals(1, throttle.getMaxFilesPerSecond());
+        } finally {
+            throttle.close();
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void nestedThrottlesShareTheLimitOfTheirParent() {
+        Throttle parent = Throttle.unlimited();
+        parent.setMaxFilesPerSecond(10);
+        Throttle first = Throttle.within(parent);
+        Throttle second = Throttle.within(parent);
+        long startTime = System.nanoTime();
+        for (int i = 0; i < 6; i++) {
+            first.acquireFile();
+            second.acquireFile();
+        }
+        assertTrue(System.nanoTime() - startTime >= TimeUnit.MILLISECONDS.toNanos(900));
+    }
+
+    @Test(timeout = 5000)
+    public void cancellingANestedThrottleLeavesItsSiblingsRunning() {
+        Throttle parent = Throttle.unlimited();
+        Throttle cancelled = Throttle.within(parent);
+        Throttle sibling = Throttle.within(parent);
+        cancelled.cancel();
+        sibling.acquireFile();
+        try {
+            cancelled.acquireFile();
+            fail("Expected the cancelled throttle to refuse tokens");
+        } catch (CancellationException e) {
+            // expected
+        }
+        parent.cancel();
+        try {
+            sibling.acquireFile();
+            fail("Expected the cancellation of the parent to reach its nested throttles");
+        } catch (CancellationException e) {
+            // expected
+        }
+    }
+}